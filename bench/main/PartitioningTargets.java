@@ -0,0 +1,34 @@
+import java.util.List;
+
+import bench.PartitioningTarget;
+
+/**
+ * Exposes {@link Partitioning} and {@link AdaptivePartitioner} to the benchmarks in the bench package.
+ */
+public class PartitioningTargets implements PartitioningTarget {
+    private final Partitioning partitioning;
+
+    public PartitioningTargets(List<String> blocks) {
+        partitioning = Partitioning.fromBlocks(blocks);
+    }
+
+    @Override
+    public int size() {
+        return partitioning.size();
+    }
+
+    @Override
+    public int cellOf(int x, int y) {
+        return partitioning.cellOf(x, y);
+    }
+
+    @Override
+    public int overlapping(int minX, int minY, int maxX, int maxY, int[] cells) {
+        return partitioning.overlapping(minX, minY, maxX, maxY, cells);
+    }
+
+    @Override
+    public List<String> tiles(int[] xs, int[] ys, int size, int cells) {
+        return AdaptivePartitioner.strTiles(xs, ys, size, cells, 1, 1, 10000, 10000);
+    }
+}
@@ -0,0 +1,149 @@
+package bench;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * Synthetic inputs of the benchmarks, in the space and rectangle sizes of CreateDatabase: coordinates in
+ * [1, 10000], rectangles up to 7 wide and 20 high.
+ *
+ * Locations follow one of three distributions:
+ * "uniform" over the whole space, "clustered" around eight Gaussian centres (sigma 300), and "zipf", where the
+ * space is cut into 64x64 tiles whose popularity follows a Zipf law of exponent 1.1 and locations are uniform
+ * inside the chosen tile. Points and rectangle corners are drawn from the same distribution, and a fixed seed
+ * makes every run see the same data.
+ */
+public final class Datasets {
+    public static final int MIN = 1;
+    public static final int MAX = 10000;
+    public static final int MAX_HEIGHT = 20;
+    public static final int MAX_WIDTH = 7;
+    public static final String WINDOW = MIN + "," + MIN + "," + MAX + "," + MAX;
+
+    private static final int ZIPF_TILES = 64;
+    private static final double ZIPF_EXPONENT = 1.1;
+    private static final int CLUSTERS = 8;
+    private static final double CLUSTER_SIGMA = 300;
+
+    public final int[] pointX;
+    public final int[] pointY;
+    public final int[] rectangleX;
+    public final int[] rectangleY;
+    public final int[] rectangleHeight;
+    public final int[] rectangleWidth;
+
+    private Datasets(int points, int rectangles) {
+        pointX = new int[points];
+        pointY = new int[points];
+        rectangleX = new int[rectangles];
+        rectangleY = new int[rectangles];
+        rectangleHeight = new int[rectangles];
+        rectangleWidth = new int[rectangles];
+    }
+
+    public static Datasets generate(String distribution, int points, int rectangles, long seed) {
+        Random rand = new Random(seed);
+        Locations locations = locations(distribution, rand);
+        Datasets data = new Datasets(points, rectangles);
+        int[] location = new int[2];
+        for (int i = 0; i < points; i++) {
+            locations.next(location, MAX, MAX);
+            data.pointX[i] = location[0];
+            data.pointY[i] = location[1];
+        }
+        for (int i = 0; i < rectangles; i++) {
+            locations.next(location, MAX - MAX_WIDTH, MAX - MAX_HEIGHT);
+            data.rectangleX[i] = location[0];
+            data.rectangleY[i] = location[1];
+            data.rectangleHeight[i] = MIN + rand.nextInt(MAX_HEIGHT);
+            data.rectangleWidth[i] = MIN + rand.nextInt(MAX_WIDTH);
+        }
+        return data;
+    }
+
+    /**
+     * @return The points as input lines "x,y".
+     */
+    public Text[] pointLines() {
+        Text[] lines = new Text[pointX.length];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = new Text(pointX[i] + "," + pointY[i]);
+        }
+        return lines;
+    }
+
+    /**
+     * @return The rectangles as input lines "rN,x,y,h,w".
+     */
+    public Text[] rectangleLines() {
+        Text[] lines = new Text[rectangleX.length];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = new Text("r" + i + "," + rectangleX[i] + "," + rectangleY[i] + "," + rectangleHeight[i] + "," + rectangleWidth[i]);
+        }
+        return lines;
+    }
+
+    private interface Locations {
+        /**
+         * Draws a location in [MIN, maxX] x [MIN, maxY] into {@code location}.
+         */
+        void next(int[] location, int maxX, int maxY);
+    }
+
+    private static Locations locations(String distribution, final Random rand) {
+        switch (distribution) {
+            case "uniform":
+                return (location, maxX, maxY) -> {
+                    location[0] = MIN + rand.nextInt(maxX - MIN + 1);
+                    location[1] = MIN + rand.nextInt(maxY - MIN + 1);
+                };
+            case "clustered":
+                final int[] centreX = new int[CLUSTERS];
+                final int[] centreY = new int[CLUSTERS];
+                for (int c = 0; c < CLUSTERS; c++) {
+                    centreX[c] = MIN + rand.nextInt(MAX);
+                    centreY[c] = MIN + rand.nextInt(MAX);
+                }
+                return (location, maxX, maxY) -> {
+                    int c = rand.nextInt(CLUSTERS);
+                    location[0] = clamp((int) Math.round(centreX[c] + rand.nextGaussian() * CLUSTER_SIGMA), maxX);
+                    location[1] = clamp((int) Math.round(centreY[c] + rand.nextGaussian() * CLUSTER_SIGMA), maxY);
+                };
+            case "zipf":
+                int tiles = ZIPF_TILES * ZIPF_TILES;
+                final double[] cumulative = new double[tiles];
+                double total = 0;
+                for (int rank = 0; rank < tiles; rank++) {
+                    total += 1 / Math.pow(rank + 1, ZIPF_EXPONENT);
+                    cumulative[rank] = total;
+                }
+                // Popular tiles are scattered over the space rather than packed in a corner.
+                final int[] tileOfRank = new int[tiles];
+                for (int t = 0; t < tiles; t++) {
+                    tileOfRank[t] = t;
+                }
+                for (int t = tiles - 1; t > 0; t--) {
+                    int other = rand.nextInt(t + 1);
+                    int swap = tileOfRank[t];
+                    tileOfRank[t] = tileOfRank[other];
+                    tileOfRank[other] = swap;
+                }
+                final double sum = total;
+                return (location, maxX, maxY) -> {
+                    int rank = Arrays.binarySearch(cumulative, rand.nextDouble() * sum);
+                    int tile = tileOfRank[rank >= 0 ? rank : Math.min(-rank - 1, cumulative.length - 1)];
+                    int tileSize = MAX / ZIPF_TILES;
+                    location[0] = clamp(MIN + (tile % ZIPF_TILES) * tileSize + rand.nextInt(tileSize), maxX);
+                    location[1] = clamp(MIN + (tile / ZIPF_TILES) * tileSize + rand.nextInt(tileSize), maxY);
+                };
+            default:
+                throw new IllegalArgumentException("Unknown distribution: " + distribution);
+        }
+    }
+
+    private static int clamp(int value, int max) {
+        return Math.max(MIN, Math.min(max, value));
+    }
+}
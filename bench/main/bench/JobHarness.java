@@ -0,0 +1,252 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapred.RawKeyValueIterator;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.counters.GenericCounter;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+import org.apache.hadoop.mapreduce.lib.reduce.WrappedReducer;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+import org.apache.hadoop.mapreduce.task.ReduceContextImpl;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.apache.hadoop.util.Progress;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Runs the mappers and reducers of the job in memory, through the same Mapper.run and Reducer.run loops and
+ * context implementations as a task, without input files, spills or a shuffle.
+ */
+public final class JobHarness {
+
+    private JobHarness() {
+    }
+
+    /**
+     * Creates the job configuration for the window of the datasets. With "adaptive" partitioning the STR
+     * tiles of a sample of the points are written to a partition file, read back by the tasks as in a job
+     * without the distributed cache link.
+     */
+    public static Configuration configuration(String partition, Datasets data, String engine) throws IOException {
+        Configuration conf = new Configuration();
+        conf.set("window", Datasets.WINDOW);
+        conf.set("join.engine", engine);
+        if (partition.equals("adaptive")) {
+            int sample = Math.min(data.pointX.length, 100000);
+            List<String> tiles = PartitioningTarget.load(PartitioningTarget.grid())
+                    .tiles(Arrays.copyOf(data.pointX, sample), Arrays.copyOf(data.pointY, sample), sample, 16);
+            File file = File.createTempFile("partitions", ".txt");
+            file.deleteOnExit();
+            Files.write(file.toPath(), tiles, StandardCharsets.UTF_8);
+            conf.set("partition.file", file.toURI().toString());
+        } else if (!partition.equals("grid")) {
+            throw new IllegalArgumentException("Unknown partitioning: " + partition);
+        }
+        return conf;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> T newInstance(String className) {
+        try {
+            return (T) Class.forName(className).getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create " + className, e);
+        }
+    }
+
+    /**
+     * Runs a mapper over the lines, handing every output record to the writer.
+     */
+    public static void map(Mapper<Object, Text, Object, Object> mapper, Configuration conf, Text[] lines,
+                           RecordWriter<Object, Object> writer) throws IOException, InterruptedException {
+        MapContextImpl<Object, Text, Object, Object> context = new MapContextImpl<>(conf, new TaskAttemptID(),
+                new LineReader(lines), writer, null, new TaskAttemptContextImpl.DummyReporter(), null);
+        mapper.run(new WrappedMapper<Object, Text, Object, Object>().getMapContext(context));
+    }
+
+    /**
+     * Runs a reducer over serialized map output sorted by key.
+     */
+    public static void reduce(Reducer<Object, Object, Object, Object> reducer, Configuration conf, Shuffle input,
+                              RecordWriter<Object, Object> writer) throws IOException, InterruptedException {
+        ReduceContextImpl<Object, Object, Object, Object> context = new ReduceContextImpl<>(conf, new TaskAttemptID(),
+                input.iterator(), new GenericCounter(), new GenericCounter(), writer, null,
+                new TaskAttemptContextImpl.DummyReporter(), input.grouping, input.keyClass, input.valueClass);
+        reducer.run(new WrappedReducer<Object, Object, Object, Object>().getReducerContext(context));
+    }
+
+    /**
+     * Hands every record to a JMH blackhole.
+     */
+    public static RecordWriter<Object, Object> consume(final Blackhole blackhole) {
+        return new RecordWriter<Object, Object>() {
+            @Override
+            public void write(Object key, Object value) {
+                blackhole.consume(key);
+                blackhole.consume(value);
+            }
+
+            @Override
+            public void close(TaskAttemptContext context) {
+            }
+        };
+    }
+
+    /**
+     * Map output collected in serialized form and sorted like the shuffle, to be replayed to reducers.
+     */
+    public static final class Shuffle extends RecordWriter<Object, Object> {
+        private final List<byte[]> keys = new ArrayList<>();
+        private final List<byte[]> values = new ArrayList<>();
+        private final DataOutputBuffer buffer = new DataOutputBuffer();
+        private Class<Object> keyClass;
+        private Class<Object> valueClass;
+        private RawComparator<Object> grouping;
+        private Integer[] order = new Integer[0];
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void write(Object key, Object value) throws IOException {
+            keyClass = (Class<Object>) key.getClass();
+            valueClass = (Class<Object>) value.getClass();
+            keys.add(serialize((Writable) key));
+            values.add(serialize((Writable) value));
+        }
+
+        private byte[] serialize(Writable writable) throws IOException {
+            buffer.reset();
+            writable.write(buffer);
+            return Arrays.copyOf(buffer.getData(), buffer.getLength());
+        }
+
+        @Override
+        public void close(TaskAttemptContext context) {
+        }
+
+        /**
+         * Sorts the records with the registered raw comparator of the key class and sets the comparator
+         * grouping the keys of one reduce call.
+         */
+        @SuppressWarnings("unchecked")
+        public void sort(RawComparator<?> groupingComparator) {
+            grouping = (RawComparator<Object>) groupingComparator;
+            final WritableComparator comparator = WritableComparator.get(keyClass.asSubclass(WritableComparable.class));
+            order = new Integer[keys.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> {
+                byte[] ka = keys.get(a);
+                byte[] kb = keys.get(b);
+                return comparator.compare(ka, 0, ka.length, kb, 0, kb.length);
+            });
+        }
+
+        public int size() {
+            return keys.size();
+        }
+
+        RawKeyValueIterator iterator() {
+            return new RawKeyValueIterator() {
+                private final DataInputBuffer key = new DataInputBuffer();
+                private final DataInputBuffer value = new DataInputBuffer();
+                private final Progress progress = new Progress();
+                private int index = -1;
+
+                @Override
+                public DataInputBuffer getKey() {
+                    return key;
+                }
+
+                @Override
+                public DataInputBuffer getValue() {
+                    return value;
+                }
+
+                @Override
+                public boolean next() {
+                    if (++index >= order.length) {
+                        return false;
+                    }
+                    byte[] k = keys.get(order[index]);
+                    byte[] v = values.get(order[index]);
+                    key.reset(k, k.length);
+                    value.reset(v, v.length);
+                    return true;
+                }
+
+                @Override
+                public void close() {
+                }
+
+                @Override
+                public Progress getProgress() {
+                    return progress;
+                }
+            };
+        }
+    }
+
+    /**
+     * Record reader over lines held in memory, keyed like TextInputFormat by a (here fake) byte offset.
+     */
+    private static final class LineReader extends RecordReader<Object, Text> {
+        private final Text[] lines;
+        private final LongWritable offset = new LongWritable();
+        private int index = -1;
+
+        LineReader(Text[] lines) {
+            this.lines = lines;
+        }
+
+        @Override
+        public void initialize(InputSplit split, TaskAttemptContext context) {
+        }
+
+        @Override
+        public boolean nextKeyValue() {
+            return ++index < lines.length;
+        }
+
+        @Override
+        public Object getCurrentKey() {
+            offset.set(index);
+            return offset;
+        }
+
+        @Override
+        public Text getCurrentValue() {
+            return lines[index];
+        }
+
+        @Override
+        public float getProgress() {
+            return lines.length == 0 ? 1 : index / (float) lines.length;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
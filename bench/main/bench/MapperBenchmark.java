@@ -0,0 +1,69 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of SpatialMapper.MapPoints and SpatialMapper.MapRectangles, in input records per second. Each
+ * invocation runs a whole map task (setup, map over every line, cleanup) over lines held in memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MapperBenchmark {
+    static final int RECORDS = 100000;
+
+    @Param({"uniform", "clustered", "zipf"})
+    public String distribution;
+
+    @Param({"grid", "adaptive"})
+    public String partition;
+
+    private Configuration conf;
+    private Text[] points;
+    private Text[] rectangles;
+    private Mapper<Object, Text, Object, Object> mapPoints;
+    private Mapper<Object, Text, Object, Object> mapRectangles;
+
+    @Setup
+    public void setup() throws IOException {
+        Datasets data = Datasets.generate(distribution, RECORDS, RECORDS, 42);
+        conf = JobHarness.configuration(partition, data, "sweep");
+        points = data.pointLines();
+        rectangles = data.rectangleLines();
+        mapPoints = JobHarness.newInstance("SpatialMapper$MapPoints");
+        mapRectangles = JobHarness.newInstance("SpatialMapper$MapRectangles");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void mapPoints(Blackhole blackhole) throws IOException, InterruptedException {
+        JobHarness.map(mapPoints, conf, points, JobHarness.consume(blackhole));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void mapRectangles(Blackhole blackhole) throws IOException, InterruptedException {
+        JobHarness.map(mapRectangles, conf, rectangles, JobHarness.consume(blackhole));
+    }
+}
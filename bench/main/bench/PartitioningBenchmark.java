@@ -0,0 +1,76 @@
+package bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the partitioning: locating the cell of a point, listing the cells a rectangle overlaps (per
+ * record), and cutting a 100000 point sample into STR tiles (per partitioning built).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PartitioningBenchmark {
+    static final int RECORDS = 100000;
+
+    @Param({"uniform", "clustered", "zipf"})
+    public String distribution;
+
+    @Param({"grid", "adaptive"})
+    public String partition;
+
+    private Datasets data;
+    private PartitioningTarget partitioning;
+    private int[] cells;
+
+    @Setup
+    public void setup() {
+        data = Datasets.generate(distribution, RECORDS, RECORDS, 42);
+        PartitioningTarget grid = PartitioningTarget.load(PartitioningTarget.grid());
+        partitioning = partition.equals("grid") ? grid
+                : PartitioningTarget.load(grid.tiles(data.pointX, data.pointY, RECORDS, 64));
+        cells = new int[partitioning.size()];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public int cellOf() {
+        int sum = 0;
+        for (int i = 0; i < RECORDS; i++) {
+            sum += partitioning.cellOf(data.pointX[i], data.pointY[i]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public int overlapping() {
+        int sum = 0;
+        for (int i = 0; i < RECORDS; i++) {
+            sum += partitioning.overlapping(data.rectangleX[i], data.rectangleY[i],
+                    data.rectangleX[i] + data.rectangleWidth[i], data.rectangleY[i] + data.rectangleHeight[i], cells);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public List<String> strTiles() {
+        return partitioning.tiles(data.pointX, data.pointY, RECORDS, 64);
+    }
+}
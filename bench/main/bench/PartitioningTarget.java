@@ -0,0 +1,46 @@
+package bench;
+
+import java.util.List;
+
+/**
+ * The partitioning code of the job as seen by the benchmarks. The job classes live in the default package,
+ * which classes of a named package (as JMH requires for benchmarks) cannot reference; the default-package
+ * PartitioningTargets implements this interface and is loaded by name with {@link #load(List)}.
+ */
+public interface PartitioningTarget {
+
+    int size();
+
+    int cellOf(int x, int y);
+
+    int overlapping(int minX, int minY, int maxX, int maxY, int[] cells);
+
+    /**
+     * Cuts the benchmark space into about {@code cells} STR tiles of the sample, like AdaptivePartitioner.
+     */
+    List<String> tiles(int[] xs, int[] ys, int size, int cells);
+
+    /**
+     * @return The partitioning of the given blocks in the "gN,x1,y1,x2,y2" format.
+     */
+    static PartitioningTarget load(List<String> blocks) {
+        try {
+            return (PartitioningTarget) Class.forName("PartitioningTargets").getConstructor(List.class).newInstance(blocks);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot load the partitioning of the job", e);
+        }
+    }
+
+    /**
+     * @return The fixed 4x4 grid of DivideIntoBlocks.
+     */
+    @SuppressWarnings("unchecked")
+    static List<String> grid() {
+        try {
+            return (List<String>) Class.forName("DivideIntoBlocks").getMethod("createBlocks", Integer.class, Integer.class)
+                    .invoke(null, 10000, 2500);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot load the grid of the job", e);
+        }
+    }
+}
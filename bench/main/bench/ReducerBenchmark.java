@@ -0,0 +1,73 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of SpatialReducer.SpatialJoinReduce over the whole map output of the datasets, in input records
+ * (points plus rectangles, before replication) per second. The map output is produced once by the mappers,
+ * serialized and sorted like the shuffle, and each invocation runs a whole reduce task over it: deserialization,
+ * grouping by cell, the local join and the output records.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReducerBenchmark {
+    static final int POINTS = 200000;
+    static final int RECTANGLES = 100000;
+
+    @Param({"uniform", "clustered", "zipf"})
+    public String distribution;
+
+    @Param({"grid", "adaptive"})
+    public String partition;
+
+    @Param({"sweep", "rtree"})
+    public String engine;
+
+    private Configuration conf;
+    private JobHarness.Shuffle shuffle;
+    private Reducer<Object, Object, Object, Object> reducer;
+
+    @Setup
+    public void setup() throws IOException, InterruptedException {
+        Datasets data = Datasets.generate(distribution, POINTS, RECTANGLES, 42);
+        conf = JobHarness.configuration(partition, data, engine);
+        shuffle = new JobHarness.Shuffle();
+        Mapper<Object, Text, Object, Object> mapPoints = JobHarness.newInstance("SpatialMapper$MapPoints");
+        Mapper<Object, Text, Object, Object> mapRectangles = JobHarness.newInstance("SpatialMapper$MapRectangles");
+        JobHarness.map(mapPoints, conf, data.pointLines(), shuffle);
+        JobHarness.map(mapRectangles, conf, data.rectangleLines(), shuffle);
+        RawComparator<?> grouping = JobHarness.newInstance("CellKey$GroupingComparator");
+        shuffle.sort(grouping);
+        reducer = JobHarness.newInstance("SpatialReducer$SpatialJoinReduce");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POINTS + RECTANGLES)
+    public void reduce(Blackhole blackhole) throws IOException, InterruptedException {
+        JobHarness.reduce(reducer, conf, shuffle, JobHarness.consume(blackhole));
+    }
+}
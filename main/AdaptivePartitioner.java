@@ -0,0 +1,247 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Job;
+
+/**
+ * Builds a data-aware partitioning of the query window from a sample of both inputs.
+ *
+ * The window is cut into Sort-Tile-Recursive tiles: vertical slabs holding the same number of
+ * sampled records, each cut into tiles holding the same number of sampled records. Skewed data
+ * therefore gets small cells where it is dense and large cells where it is sparse, so every
+ * reducer receives a similar share of the work. The tiles are written in the same
+ * "gX,X1,Y1,X2,Y2" format as {@link DivideIntoBlocks} and shipped to the tasks through the
+ * distributed cache.
+ */
+public class AdaptivePartitioner {
+
+    /**
+     * Name of the partition file link in the working directory of the tasks.
+     */
+    public static final String PARTITION_LINK = "partitions";
+
+    /**
+     * Samples the inputs, builds the STR tiles, writes them to the given file and registers the
+     * file in the distributed cache of the job.
+     * The number of cells is taken from "partition.cells" and defaults to the number of reducers
+     * times "partition.cells.per.reducer" (4), so the partitioning grows with the cluster.
+     * @return The number of cells written.
+     */
+    public static int createPartitionFile(Job job, Path points, Path rectangles, Path partitionFile) throws IOException {
+        Configuration conf = job.getConfiguration();
+        List<String> blocks = sampleTiles(conf, points, rectangles, job.getNumReduceTasks());
+
+        FileSystem fs = partitionFile.getFileSystem(conf);
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(fs.create(partitionFile, true), StandardCharsets.UTF_8))) {
+            for (String block : blocks) {
+                writer.write(block);
+                writer.write('\n');
+            }
+        }
+
+        conf.set("partition.file", partitionFile.toString());
+        try {
+            URI uri = fs.makeQualified(partitionFile).toUri();
+            job.addCacheFile(new URI(uri.getScheme(), uri.getAuthority(), uri.getPath(), null, PARTITION_LINK));
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid partition file path: " + partitionFile, e);
+        }
+        return blocks.size();
+    }
+
+    /**
+     * Samples the inputs and cuts the window into STR tiles, for a job with the given number of reducers.
+     * @return The tiles in the format "gX,X1,Y1,X2,Y2".
+     */
+    public static List<String> sampleTiles(Configuration conf, Path points, Path rectangles, int reducers) throws IOException {
+        SpatialMapper.MapRectangles.Window window = SpatialMapper.MapRectangles.Window.parseWindowString(conf.get("window"));
+        int sampleSize = conf.getInt("partition.sample.size", 100000);
+        int cells = conf.getInt("partition.cells", Math.max(1, reducers) * conf.getInt("partition.cells.per.reducer", 4));
+
+        // The first input is the probe side and the second the build side, points or rectangles by join.predicate
+        JoinPredicate predicate = JoinPredicate.of(conf);
+        LocalJoin.PointBuffer sample = new LocalJoin.PointBuffer();
+        if (predicate.probesPoints()) {
+            samplePoints(conf, points, sampleSize / 2, window, sample);
+        } else {
+            sampleRectangles(conf, points, sampleSize / 2, window, sample);
+        }
+        if (predicate.buildsRectangles()) {
+            sampleRectangles(conf, rectangles, sampleSize / 2, window, sample);
+        } else {
+            samplePoints(conf, rectangles, sampleSize / 2, window, sample);
+        }
+
+        return strTiles(sample.x, sample.y, sample.size, cells, window.getX1(), window.getY1(), window.getX2(), window.getY2());
+    }
+
+    /**
+     * Cuts the box (minX,minY)-(maxX,maxY) into roughly {@code cells} STR tiles holding the same
+     * number of sample points each. Boundaries that would create empty tiles (duplicate sample
+     * coordinates) are dropped, so heavily skewed samples may produce fewer cells.
+     * @return The tiles in the format "gX,X1,Y1,X2,Y2", ordered slab by slab.
+     */
+    public static List<String> strTiles(int[] xs, int[] ys, int size, int cells, int minX, int minY, int maxX, int maxY) {
+        int slabs = Math.max(1, (int) Math.ceil(Math.sqrt(cells)));
+        int tilesPerSlab = Math.max(1, (cells + slabs - 1) / slabs);
+
+        long[] byX = new long[size];
+        for (int i = 0; i < size; i++) {
+            byX[i] = ((long) xs[i] << 32) | i;
+        }
+        Arrays.sort(byX);
+        int[] sortedX = new int[size];
+        for (int i = 0; i < size; i++) {
+            sortedX[i] = (int) (byX[i] >> 32);
+        }
+        int[] xBounds = quantileBounds(sortedX, size, slabs, minX, maxX);
+
+        List<String> blocks = new ArrayList<>();
+        StringBuilder block = new StringBuilder();
+        int first = 0;
+        for (int s = 0; s + 1 < xBounds.length; s++) {
+            // The samples are sorted on x, so the samples of a slab form a contiguous range.
+            boolean lastSlab = s + 2 == xBounds.length;
+            int last = first;
+            while (last < size && (lastSlab || sortedX[last] < xBounds[s + 1])) {
+                last++;
+            }
+            int[] slabY = new int[last - first];
+            for (int i = first; i < last; i++) {
+                slabY[i - first] = ys[(int) byX[i]];
+            }
+            Arrays.sort(slabY);
+            int[] yBounds = quantileBounds(slabY, slabY.length, tilesPerSlab, minY, maxY);
+            for (int t = 0; t + 1 < yBounds.length; t++) {
+                block.setLength(0);
+                block.append("g").append(blocks.size() + 1).append(",")
+                        .append(xBounds[s]).append(",").append(yBounds[t]).append(",")
+                        .append(xBounds[s + 1]).append(",").append(yBounds[t + 1]);
+                blocks.add(block.toString());
+            }
+            first = last;
+        }
+        return blocks;
+    }
+
+    /**
+     * Returns strictly increasing boundaries min = b0 < b1 < ... < bk = max splitting the sorted
+     * values into {@code parts} ranges of about the same count.
+     */
+    private static int[] quantileBounds(int[] sorted, int size, int parts, int min, int max) {
+        int[] bounds = new int[parts + 1];
+        int count = 0;
+        bounds[count++] = min;
+        for (int k = 1; k < parts && size > 0; k++) {
+            int value = sorted[(int) ((long) k * size / parts)];
+            if (value > bounds[count - 1] && value < max) {
+                bounds[count++] = value;
+            }
+        }
+        if (max > bounds[count - 1] || count == 1) {
+            bounds[count++] = max;
+        }
+        return Arrays.copyOf(bounds, count);
+    }
+
+    private static void samplePoints(Configuration conf, Path path, int target, SpatialMapper.MapRectangles.Window window, LocalJoin.PointBuffer sample) throws IOException {
+        for (String line : sampleLines(conf, path, target)) {
+            String[] parts = line.split(",");
+            if (parts.length < 2) {
+                continue;
+            }
+            int x = Integer.parseInt(parts[0].trim());
+            int y = Integer.parseInt(parts[1].trim());
+            if (x >= window.getX1() && x <= window.getX2() && y >= window.getY1() && y <= window.getY2()) {
+                sample.add(x, y);
+            }
+        }
+    }
+
+    private static void sampleRectangles(Configuration conf, Path path, int target, SpatialMapper.MapRectangles.Window window, LocalJoin.PointBuffer sample) throws IOException {
+        for (String line : sampleLines(conf, path, target)) {
+            String[] fields = line.split(",");
+            if (fields.length < 5) {
+                continue;
+            }
+            int x1 = Integer.parseInt(fields[1].trim());
+            int y1 = Integer.parseInt(fields[2].trim());
+            int h = Integer.parseInt(fields[3].trim());
+            int w = Integer.parseInt(fields[4].trim());
+            int x2 = x1 + w;
+            int y2 = y1 + h;
+            if (x2 >= window.getX1() && x1 <= window.getX2() && y2 >= window.getY1() && y1 <= window.getY2()) {
+                // Rectangles count at the center of the part that lies inside the window.
+                int cx = Math.max(x1, window.getX1()) / 2 + Math.min(x2, window.getX2()) / 2;
+                int cy = Math.max(y1, window.getY1()) / 2 + Math.min(y2, window.getY2()) / 2;
+                sample.add(cx, cy);
+            }
+        }
+    }
+
+    /**
+     * Reads about {@code target} lines from the files under the path. The lines are read in
+     * chunks starting at evenly spaced offsets of each file, so the sample covers the whole
+     * input without reading all of it. Columnar files are sampled by block and decoded to lines.
+     */
+    static List<String> sampleLines(Configuration conf, Path path, int target) throws IOException {
+        FileSystem fs = path.getFileSystem(conf);
+        List<FileStatus> files = new ArrayList<>();
+        for (FileStatus status : fs.globStatus(path)) {
+            if (status.isDirectory()) {
+                for (FileStatus child : fs.listStatus(status.getPath())) {
+                    String name = child.getPath().getName();
+                    if (child.isFile() && !name.startsWith("_") && !name.startsWith(".")) {
+                        files.add(child);
+                    }
+                }
+            } else {
+                files.add(status);
+            }
+        }
+
+        int chunkLines = 500;
+        List<String> lines = new ArrayList<>();
+        for (FileStatus file : files) {
+            int perFile = Math.max(1, target / files.size());
+            if (file.getPath().getName().endsWith(ColumnarLayout.EXTENSION)) {
+                lines.addAll(ColumnarLayout.sampleLines(fs, file, perFile));
+                continue;
+            }
+            int chunks = Math.max(1, perFile / chunkLines);
+            long length = file.getLen();
+            try (FSDataInputStream in = fs.open(file.getPath())) {
+                for (int c = 0; c < chunks; c++) {
+                    long offset = length * c / chunks;
+                    in.seek(offset);
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                    if (offset > 0) {
+                        // Skip the partial line the offset landed in.
+                        reader.readLine();
+                    }
+                    String line;
+                    for (int i = 0; i < Math.min(chunkLines, perFile) && (line = reader.readLine()) != null; i++) {
+                        if (!line.isEmpty()) {
+                            lines.add(line);
+                        }
+                    }
+                }
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,150 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapreduce.Partitioner;
+
+/**
+ * Map output key of the repartition join: the index of the grid cell followed by the point or rectangle
+ * itself, the map output value being {@link NullWritable}.
+ *
+ * Keys sort by cell and then in {@link SpatialRecord} order, so within a cell every build record (the rectangles
+ * of a point-in-rectangle join) comes before every probe record and both sides arrive sorted by x.
+ * {@link CellPartitioner} and {@link GroupingComparator} only look at the cell, so a reducer gets one group per
+ * cell and sees the records through the key, which the framework refills as the group's values are iterated.
+ * This lets the reducer hold the rectangles of a cell and stream its points instead of buffering the whole cell.
+ *
+ * The cell of a key may carry a salt in its high bits (see {@link HotCells}): the points of a hot cell are spread
+ * over several salts, each its own reduce group, and its rectangles are copied to every salt.
+ */
+public class CellKey implements WritableComparable<CellKey> {
+    private static final int SALT_SHIFT = 20;
+    private static final int CELL_MASK = (1 << SALT_SHIFT) - 1;
+
+    /** Number of salts a cell can be split into; the cell index itself must be below 2^20. */
+    public static final int MAX_SALTS = 1 << (31 - SALT_SHIFT);
+
+    private int cell;
+    private final SpatialRecord record = new SpatialRecord();
+
+    public void setCell(int cell) {
+        this.cell = cell;
+    }
+
+    public int getCell() {
+        return cell;
+    }
+
+    public SpatialRecord getRecord() {
+        return record;
+    }
+
+    /**
+     * @return The key cell of the given salt of a grid cell.
+     */
+    public static int salted(int cell, int salt) {
+        return (salt << SALT_SHIFT) | cell;
+    }
+
+    /**
+     * @return The grid cell of a key cell, without its salt.
+     */
+    public static int gridCell(int cell) {
+        return cell & CELL_MASK;
+    }
+
+    /**
+     * @return The salt of a key cell, 0 for a cell that is not split.
+     */
+    public static int salt(int cell) {
+        return cell >>> SALT_SHIFT;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(cell);
+        record.write(out);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        cell = in.readInt();
+        record.readFields(in);
+    }
+
+    @Override
+    public int compareTo(CellKey other) {
+        int c = Integer.compare(cell, other.cell);
+        return c != 0 ? c : record.compareTo(other.record);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof CellKey && compareTo((CellKey) o) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return cell * 31 + record.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return cell + ":" + record;
+    }
+
+    /**
+     * Compares serialized keys in the same order as {@link #compareTo(CellKey)}.
+     */
+    public static class Comparator extends WritableComparator {
+        private final SpatialRecord.Comparator records = new SpatialRecord.Comparator();
+
+        public Comparator() {
+            super(CellKey.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            int c = Integer.compare(readInt(b1, s1), readInt(b2, s2));
+            return c != 0 ? c : records.compare(b1, s1 + 4, l1 - 4, b2, s2 + 4, l2 - 4);
+        }
+    }
+
+    /**
+     * Groups the serialized keys of a reducer by cell only.
+     */
+    public static class GroupingComparator extends WritableComparator {
+        public GroupingComparator() {
+            super(CellKey.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            return Integer.compare(readInt(b1, s1), readInt(b2, s2));
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        public int compare(WritableComparable a, WritableComparable b) {
+            return Integer.compare(((CellKey) a).cell, ((CellKey) b).cell);
+        }
+    }
+
+    /**
+     * Sends all the records of a cell to the same reducer, like the hash partitioning of an IntWritable cell index.
+     * The salts of a split cell go to consecutive reducers.
+     */
+    public static class CellPartitioner extends Partitioner<CellKey, NullWritable> {
+        @Override
+        public int getPartition(CellKey key, NullWritable value, int numPartitions) {
+            return (gridCell(key.cell) + salt(key.cell)) % numPartitions;
+        }
+    }
+
+    static {
+        WritableComparator.define(CellKey.class, new Comparator());
+    }
+}
@@ -0,0 +1,215 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Writable;
+
+/**
+ * Block of points or rectangles of a columnar dataset (see {@link ColumnarLayout}), decoded into primitive arrays
+ * like {@link LocalJoin.RectangleBuffer}. Points have x2 == x1 and y2 == y1, and id 0.
+ *
+ * A block is written as a header of a kind byte (0 points, 1 rectangles), the number of records, the MBR of the
+ * records as minX, minY, maxX, maxY and the length of the payload, followed by the payload: the columns one after
+ * the other, as unsigned varints of 7 bits per byte. The x column holds the difference of every x1 with the previous
+ * one, starting from minX, so a block sorted on x1 stores small gaps; the y column holds y1 - minY. Rectangles add
+ * their widths and heights and then their ids as 4-byte ints. Differences are taken modulo 2^32, so any int
+ * coordinates round trip, at up to 5 bytes each.
+ */
+public class ColumnarBlock implements Writable {
+    public static final int HEADER_BYTES = 25;
+
+    public boolean rectangles;
+    public int[] id = new int[16];
+    public int[] x1 = new int[16];
+    public int[] y1 = new int[16];
+    public int[] x2 = new int[16];
+    public int[] y2 = new int[16];
+    public int size;
+    public int minX;
+    public int minY;
+    public int maxX;
+    public int maxY;
+
+    private byte[] payload = new byte[64];
+    private int length;
+    private int position;
+
+    public ColumnarBlock() {
+        clear();
+    }
+
+    public void clear() {
+        size = 0;
+        minX = Integer.MAX_VALUE;
+        minY = Integer.MAX_VALUE;
+        maxX = Integer.MIN_VALUE;
+        maxY = Integer.MIN_VALUE;
+    }
+
+    public void add(int rid, int rx1, int ry1, int rx2, int ry2) {
+        if (size == x1.length || x2 == x1) {
+            grow(size == x1.length ? size * 2 : x1.length, true);
+        }
+        id[size] = rid;
+        x1[size] = rx1;
+        y1[size] = ry1;
+        x2[size] = rx2;
+        y2[size] = ry2;
+        minX = Math.min(minX, rx1);
+        minY = Math.min(minY, ry1);
+        maxX = Math.max(maxX, rx2);
+        maxY = Math.max(maxY, ry2);
+        size++;
+    }
+
+    /**
+     * @return true if the MBR of the block intersects the box (x1,y1)-(x2,y2).
+     */
+    public boolean intersects(int boxX1, int boxY1, int boxX2, int boxY2) {
+        return size > 0 && maxX >= boxX1 && minX <= boxX2 && maxY >= boxY1 && minY <= boxY2;
+    }
+
+    /**
+     * @return The number of bytes of the block as written, once written or read.
+     */
+    public int serializedSize() {
+        return HEADER_BYTES + length;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        length = 0;
+        int previous = minX;
+        for (int i = 0; i < size; i++) {
+            putVarint(x1[i] - previous);
+            previous = x1[i];
+        }
+        for (int i = 0; i < size; i++) {
+            putVarint(y1[i] - minY);
+        }
+        if (rectangles) {
+            for (int i = 0; i < size; i++) {
+                putVarint(x2[i] - x1[i]);
+            }
+            for (int i = 0; i < size; i++) {
+                putVarint(y2[i] - y1[i]);
+            }
+            for (int i = 0; i < size; i++) {
+                ensurePayload(length + 4);
+                payload[length++] = (byte) (id[i] >>> 24);
+                payload[length++] = (byte) (id[i] >>> 16);
+                payload[length++] = (byte) (id[i] >>> 8);
+                payload[length++] = (byte) id[i];
+            }
+        }
+        out.writeByte(rectangles ? 1 : 0);
+        out.writeInt(size);
+        out.writeInt(minX);
+        out.writeInt(minY);
+        out.writeInt(maxX);
+        out.writeInt(maxY);
+        out.writeInt(length);
+        out.write(payload, 0, length);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        rectangles = in.readByte() != 0;
+        size = in.readInt();
+        minX = in.readInt();
+        minY = in.readInt();
+        maxX = in.readInt();
+        maxY = in.readInt();
+        length = in.readInt();
+        ensurePayload(length);
+        in.readFully(payload, 0, length);
+        decode();
+    }
+
+    /**
+     * Decodes the payload into the columns. The x2 and y2 columns of points share the arrays of x1 and y1.
+     */
+    private void decode() throws IOException {
+        if (size > x1.length || (rectangles && x2 == x1)) {
+            grow(size, rectangles);
+        }
+        position = 0;
+        int x = minX;
+        for (int i = 0; i < size; i++) {
+            x += varint();
+            x1[i] = x;
+        }
+        for (int i = 0; i < size; i++) {
+            y1[i] = minY + varint();
+        }
+        if (!rectangles) {
+            x2 = x1;
+            y2 = y1;
+            Arrays.fill(id, 0, size, 0);
+        } else {
+            for (int i = 0; i < size; i++) {
+                x2[i] = x1[i] + varint();
+            }
+            for (int i = 0; i < size; i++) {
+                y2[i] = y1[i] + varint();
+            }
+            for (int i = 0; i < size; i++) {
+                id[i] = (payload[position] << 24) | ((payload[position + 1] & 0xff) << 16)
+                        | ((payload[position + 2] & 0xff) << 8) | (payload[position + 3] & 0xff);
+                position += 4;
+            }
+        }
+        if (position != length) {
+            throw new IOException("Corrupt columnar block: " + position + " of " + length + " payload bytes decoded");
+        }
+    }
+
+    private int varint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (position == length) {
+                throw new IOException("Corrupt columnar block: varint past the end of the payload");
+            }
+            byte b = payload[position++];
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt columnar block: varint longer than 5 bytes");
+    }
+
+    private void putVarint(int value) {
+        ensurePayload(length + 5);
+        while ((value & ~0x7f) != 0) {
+            payload[length++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        payload[length++] = (byte) value;
+    }
+
+    private void ensurePayload(int capacity) {
+        if (payload.length < capacity) {
+            payload = Arrays.copyOf(payload, Math.max(capacity, payload.length * 2));
+        }
+    }
+
+    /**
+     * Grows the columns to the capacity, keeping their content, with x2 and y2 in arrays of their own if asked.
+     */
+    private void grow(int capacity, boolean separateUpper) {
+        boolean shared = x2 == x1;
+        capacity = Math.max(capacity, x1.length);
+        id = Arrays.copyOf(id, capacity);
+        x1 = Arrays.copyOf(x1, capacity);
+        y1 = Arrays.copyOf(y1, capacity);
+        if (separateUpper || !shared) {
+            x2 = Arrays.copyOf(x2, capacity);
+            y2 = Arrays.copyOf(y2, capacity);
+        } else {
+            x2 = x1;
+            y2 = y1;
+        }
+    }
+}
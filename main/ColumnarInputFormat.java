@@ -0,0 +1,127 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+/**
+ * Input format of the datasets written by {@link ColumnarLayout}. Like {@link WindowInputFormat}, it only turns the
+ * blocks whose MBR intersects the window into splits, merging consecutive blocks up to the maximum split size. Each
+ * record is a whole {@link ColumnarBlock}, keyed by its offset, so the mappers loop over primitive arrays instead of
+ * parsing text; the block object is reused from one record to the next.
+ */
+public class ColumnarInputFormat extends FileInputFormat<LongWritable, ColumnarBlock> {
+
+    /**
+     * @return The input format of a dataset: this one for a columnar dataset, {@link WindowInputFormat} for CSV.
+     */
+    public static Class<? extends InputFormat<?, ?>> forPath(Configuration conf, Path path) throws IOException {
+        return ColumnarLayout.isColumnar(conf, path) ? ColumnarInputFormat.class : WindowInputFormat.class;
+    }
+
+    @Override
+    public List<InputSplit> getSplits(JobContext job) throws IOException {
+        SpatialMapper.MapRectangles.Window window = SpatialMapper.MapRectangles.Window.parseWindowString(job.getConfiguration().get("window"));
+        long maxSize = getMaxSplitSize(job);
+        if (maxSize == Long.MAX_VALUE) {
+            maxSize = 128L * 1024 * 1024;
+        }
+
+        List<InputSplit> splits = new ArrayList<>();
+        for (FileStatus file : listStatus(job)) {
+            Path data = file.getPath();
+            if (!data.getName().endsWith(ColumnarLayout.EXTENSION)) {
+                throw new IOException("Not a columnar data file: " + data);
+            }
+            FileSystem fs = data.getFileSystem(job.getConfiguration());
+            for (long[] range : WindowInputFormat.windowRanges(fs, WindowInputFormat.indexPath(data), window, maxSize)) {
+                BlockLocation[] locations = fs.getFileBlockLocations(file, range[0], range[1] - range[0]);
+                String[] hosts = locations.length > 0 ? locations[0].getHosts() : new String[0];
+                splits.add(makeSplit(data, range[0], range[1] - range[0], hosts));
+            }
+        }
+        return splits;
+    }
+
+    @Override
+    public RecordReader<LongWritable, ColumnarBlock> createRecordReader(InputSplit split, TaskAttemptContext context) {
+        return new BlockReader();
+    }
+
+    /**
+     * Reads the blocks of a split, which starts and ends on block boundaries.
+     */
+    static class BlockReader extends RecordReader<LongWritable, ColumnarBlock> {
+        private FSDataInputStream file;
+        private DataInputStream in;
+        private long start;
+        private long end;
+        private long position;
+        private final LongWritable key = new LongWritable();
+        private final ColumnarBlock value = new ColumnarBlock();
+
+        @Override
+        public void initialize(InputSplit genericSplit, TaskAttemptContext context) throws IOException {
+            FileSplit split = (FileSplit) genericSplit;
+            Path path = split.getPath();
+            file = path.getFileSystem(context.getConfiguration()).open(path);
+            int magic = file.readInt();
+            if (magic != ColumnarLayout.MAGIC) {
+                throw new IOException("Not a columnar data file: " + path);
+            }
+            start = split.getStart();
+            end = start + split.getLength();
+            position = start;
+            file.seek(start);
+            in = new DataInputStream(new BufferedInputStream(file, 64 * 1024));
+        }
+
+        @Override
+        public boolean nextKeyValue() throws IOException {
+            if (position >= end) {
+                return false;
+            }
+            key.set(position);
+            value.readFields(in);
+            position += value.serializedSize();
+            return true;
+        }
+
+        @Override
+        public LongWritable getCurrentKey() {
+            return key;
+        }
+
+        @Override
+        public ColumnarBlock getCurrentValue() {
+            return value;
+        }
+
+        @Override
+        public float getProgress() {
+            return end == start ? 1 : (position - start) / (float) (end - start);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (file != null) {
+                file.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Converts a CSV point or rectangle dataset to the compressed columnar format read by {@link ColumnarInputFormat}.
+ *
+ * The records are sorted in Hilbert order like {@link SpatialLayout} and cut into blocks of {@code recordsPerBlock}
+ * records; each block is sorted on x1 and written as a {@link ColumnarBlock}, with delta and varint coded coordinates
+ * and the MBR of its records in its header. The data file {@code <output>/part-00000.columns} starts with a magic
+ * int, and the sidecar {@code <output>/_part-00000.columns.index} lists the blocks in the format of the
+ * {@link WindowInputFormat} index, so only the blocks meeting the window are read. The coordinates of a spatially
+ * compact block are small gaps and offsets, about 2 bytes each, against 4 to 7 bytes of text.
+ *
+ * Usage: ColumnarLayout points|rectangles &lt;input&gt; &lt;output directory&gt; [records per block]
+ */
+public class ColumnarLayout {
+
+    public static final String EXTENSION = ".columns";
+    public static final String DATA_FILE = "part-00000" + EXTENSION;
+    public static final int MAGIC = 0x534a4331;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: ColumnarLayout points|rectangles <input> <output directory> [records per block]");
+            System.exit(2);
+        }
+        boolean rectangles = args[0].startsWith("rect");
+        int recordsPerBlock = args.length > 3 ? Integer.parseInt(args[3]) : SpatialLayout.DEFAULT_RECORDS_PER_BLOCK;
+        write(new Configuration(), rectangles, new Path(args[1]), new Path(args[2]), recordsPerBlock);
+    }
+
+    /**
+     * Reads the CSV dataset under {@code input} and writes its columnar copy and block index to {@code output}.
+     * @return The number of blocks written.
+     */
+    public static int write(Configuration conf, boolean rectangles, Path input, Path output, int recordsPerBlock) throws IOException {
+        int[][] columns = SpatialLayout.readColumns(conf, rectangles, input);
+        int size = columns[0].length;
+        // Rectangles with a negative height or width are stored by their lower and upper corners, as the mappers read them.
+        for (int i = 0; i < size; i++) {
+            for (int c = 1; c <= 2; c++) {
+                if (columns[c + 2][i] < columns[c][i]) {
+                    int t = columns[c][i];
+                    columns[c][i] = columns[c + 2][i];
+                    columns[c + 2][i] = t;
+                }
+            }
+        }
+        long[] order = SpatialLayout.hilbertOrder(columns[1], columns[2], columns[3], columns[4], size);
+
+        FileSystem fs = output.getFileSystem(conf);
+        fs.delete(output, true);
+        fs.mkdirs(output);
+        Path data = new Path(output, DATA_FILE);
+        ColumnarBlock block = new ColumnarBlock();
+        block.rectangles = rectangles;
+        int blocks = 0;
+        try (FSDataOutputStream out = fs.create(data);
+             BufferedWriter index = new BufferedWriter(new OutputStreamWriter(fs.create(WindowInputFormat.indexPath(data)), StandardCharsets.UTF_8))) {
+            out.writeInt(MAGIC);
+            long[] byX = new long[Math.min(recordsPerBlock, size)];
+            for (int start = 0; start < size; start += recordsPerBlock) {
+                int end = Math.min(start + recordsPerBlock, size);
+                for (int i = start; i < end; i++) {
+                    int r = (int) order[i];
+                    byX[i - start] = ((long) columns[1][r] << 32) | r;
+                }
+                Arrays.sort(byX, 0, end - start);
+                block.clear();
+                for (int i = 0; i < end - start; i++) {
+                    int r = (int) byX[i];
+                    block.add(columns[0][r], columns[1][r], columns[2][r], columns[3][r], columns[4][r]);
+                }
+                long offset = out.getPos();
+                block.write(out);
+                index.write(offset + "," + block.serializedSize() + "," + block.size + ","
+                        + block.minX + "," + block.minY + "," + block.maxX + "," + block.maxY + "\n");
+                blocks++;
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * @return true if the path is a columnar data file, or a directory holding one.
+     */
+    public static boolean isColumnar(Configuration conf, Path path) throws IOException {
+        if (path.getName().endsWith(EXTENSION)) {
+            return true;
+        }
+        FileSystem fs = path.getFileSystem(conf);
+        try {
+            return fs.getFileStatus(path).isDirectory() && fs.listStatus(path, file -> file.getName().endsWith(EXTENSION)).length > 0;
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return The number of records of a columnar data file, or of the data files of a directory, from their block index.
+     */
+    public static long countRecords(Configuration conf, Path path) throws IOException {
+        FileSystem fs = path.getFileSystem(conf);
+        long records = 0;
+        for (FileStatus file : fs.listStatus(path, file -> file.getName().endsWith(EXTENSION))) {
+            for (String line : SpatialIndex.readLines(fs, WindowInputFormat.indexPath(file.getPath()))) {
+                records += Long.parseLong(line.split(",")[2]);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Decodes about {@code target} records from blocks evenly spaced over a columnar data file, as CSV lines in the
+     * input format, for the samplers of the job planning.
+     */
+    static List<String> sampleLines(FileSystem fs, FileStatus file, int target) throws IOException {
+        List<long[]> blocks = new ArrayList<>();
+        long records = 0;
+        for (String line : SpatialIndex.readLines(fs, WindowInputFormat.indexPath(file.getPath()))) {
+            String[] fields = line.split(",");
+            blocks.add(new long[]{Long.parseLong(fields[0]), Long.parseLong(fields[2])});
+            records += Long.parseLong(fields[2]);
+        }
+        List<String> lines = new ArrayList<>();
+        if (blocks.isEmpty() || target <= 0) {
+            return lines;
+        }
+        // Every step-th record of the blocks read, from enough blocks to reach the target.
+        long perBlock = Math.max(1, records / blocks.size());
+        int read = (int) Math.min(blocks.size(), Math.max(1, (target + perBlock - 1) / perBlock));
+        ColumnarBlock block = new ColumnarBlock();
+        StringBuilder line = new StringBuilder();
+        try (FSDataInputStream in = fs.open(file.getPath())) {
+            for (int b = 0; b < read; b++) {
+                in.seek(blocks.get((int) ((long) b * blocks.size() / read))[0]);
+                block.readFields(in);
+                int step = Math.max(1, (int) ((long) block.size * read / target));
+                for (int i = 0; i < block.size; i += step) {
+                    line.setLength(0);
+                    if (block.rectangles) {
+                        line.append('r').append(block.id[i]).append(',').append(block.x1[i]).append(',').append(block.y1[i]).append(',')
+                                .append(block.y2[i] - block.y1[i]).append(',').append(block.x2[i] - block.x1[i]);
+                    } else {
+                        line.append(block.x1[i]).append(',').append(block.y1[i]);
+                    }
+                    lines.add(line.toString());
+                }
+            }
+        }
+        return lines;
+    }
+}
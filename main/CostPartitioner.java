@@ -0,0 +1,149 @@
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Partitioner of the repartition join sending the cells to reducers chosen by their estimated join cost, instead of
+ * by cell index as {@link CellKey.CellPartitioner} does.
+ *
+ * The cost of a cell is estimated from the points and rectangles of a sample of the inputs (or of the counts of a
+ * prior run, see {@link HotCells}) as points x rectangles, the work of the local join, plus points + rectangles, the
+ * work of reading them. Each salt of a hot cell holds its share of the points and all the rectangles. The cells and
+ * salts are packed greedily: in decreasing order of cost, each goes to the reducer with the least cost so far.
+ *
+ * The assignment reaches the tasks in "partition.reducer.assignment" as "cell:reducer" entries, with the reducers
+ * of the salts of a hot cell separated by "/". Cells missing from it, or assigned to a reducer the job does not
+ * have, fall back to the partitioning by cell index.
+ */
+public class CostPartitioner extends Partitioner<CellKey, NullWritable> implements Configurable {
+    private static final Logger LOG = LoggerFactory.getLogger(CostPartitioner.class);
+    private Configuration conf;
+    private int[][] reducers = new int[0][];
+
+    @Override
+    public void setConf(Configuration conf) {
+        this.conf = conf;
+        reducers = parse(conf.get("partition.reducer.assignment", ""));
+    }
+
+    @Override
+    public Configuration getConf() {
+        return conf;
+    }
+
+    @Override
+    public int getPartition(CellKey key, NullWritable value, int numPartitions) {
+        int cell = CellKey.gridCell(key.getCell());
+        int salt = CellKey.salt(key.getCell());
+        if (cell < reducers.length && reducers[cell] != null && salt < reducers[cell].length && reducers[cell][salt] < numPartitions) {
+            return reducers[cell][salt];
+        }
+        return (cell + salt) % numPartitions;
+    }
+
+    /**
+     * Sets "partition.reducer.assignment" from the counts of points and rectangles per cell, unless it is already set.
+     */
+    public static void configure(Configuration conf, long[][] counts, int[] salts, int reducers) {
+        if (conf.get("partition.reducer.assignment") != null) {
+            return;
+        }
+        int[][] assignment = assign(counts[0], counts[1], salts, reducers);
+        long[] loads = new long[reducers];
+        for (int cell = 0; cell < assignment.length; cell++) {
+            for (int salt = 0; salt < assignment[cell].length; salt++) {
+                loads[assignment[cell][salt]] += cost(counts[0][cell], counts[1][cell], salts[cell]);
+            }
+        }
+        long max = 0;
+        long total = 0;
+        for (long load : loads) {
+            max = Math.max(max, load);
+            total += load;
+        }
+        LOG.info("Estimated reducer cost: max {}, mean {}", max, total / Math.max(1, reducers));
+        conf.set("partition.reducer.assignment", format(assignment));
+    }
+
+    /**
+     * Packs the cells and their salts on the reducers, largest cost first, each on the least loaded reducer.
+     * @return The reducer of every salt of every cell.
+     */
+    public static int[][] assign(long[] points, long[] rectangles, int[] salts, int reducers) {
+        int[][] assignment = new int[points.length][];
+        int items = 0;
+        for (int cell = 0; cell < points.length; cell++) {
+            assignment[cell] = new int[salts[cell]];
+            items += salts[cell];
+        }
+        // Items are packed as (cell, salt) pairs, sorted by decreasing cost and then by cell and salt.
+        long[][] order = new long[items][];
+        int item = 0;
+        for (int cell = 0; cell < points.length; cell++) {
+            long cost = cost(points[cell], rectangles[cell], salts[cell]);
+            for (int salt = 0; salt < salts[cell]; salt++) {
+                order[item++] = new long[]{cost, cell, salt};
+            }
+        }
+        Arrays.sort(order, (a, b) -> a[0] != b[0] ? Long.compare(b[0], a[0])
+                : a[1] != b[1] ? Long.compare(a[1], b[1]) : Long.compare(a[2], b[2]));
+
+        long[] loads = new long[reducers];
+        for (long[] next : order) {
+            int least = 0;
+            for (int r = 1; r < reducers; r++) {
+                if (loads[r] < loads[least]) {
+                    least = r;
+                }
+            }
+            loads[least] += next[0];
+            assignment[(int) next[1]][(int) next[2]] = least;
+        }
+        return assignment;
+    }
+
+    /**
+     * Estimated cost of one salt of a cell split into {@code salts} salts.
+     */
+    static long cost(long points, long rectangles, int salts) {
+        long share = (points + salts - 1) / salts;
+        return share * rectangles + share + rectangles;
+    }
+
+    static String format(int[][] assignment) {
+        StringBuilder entries = new StringBuilder();
+        for (int cell = 0; cell < assignment.length; cell++) {
+            entries.append(cell == 0 ? "" : ",").append(cell).append(':');
+            for (int salt = 0; salt < assignment[cell].length; salt++) {
+                entries.append(salt == 0 ? "" : "/").append(assignment[cell][salt]);
+            }
+        }
+        return entries.toString();
+    }
+
+    static int[][] parse(String entries) {
+        int[][] assignment = new int[0][];
+        for (String entry : entries.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int colon = entry.indexOf(':');
+            int cell = Integer.parseInt(entry.substring(0, colon));
+            if (cell >= assignment.length) {
+                assignment = Arrays.copyOf(assignment, cell + 1);
+            }
+            String[] reducers = entry.substring(colon + 1).split("/");
+            assignment[cell] = new int[reducers.length];
+            for (int salt = 0; salt < reducers.length; salt++) {
+                assignment[cell][salt] = Integer.parseInt(reducers[salt]);
+            }
+        }
+        return assignment;
+    }
+}
@@ -1,54 +1,314 @@
-
 import java.io.IOException;
-import java.util.*;
-import java.lang.*;
-import java.io.FileWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.util.GenericOptionsParser;
 
+/**
+ * Generates the Point and Rectangle datasets.
+ *
+ * Options are generic -D options, e.g. {@code CreateDatabase -D generate.distribution=zipf -D generate.format=binary}:
+ * - generate.points (11000000) and generate.rectangles (5000001): number of records.
+ * - generate.seed (1): the same seed gives the same files whatever the number of threads.
+ * - generate.threads (all cores).
+ * - generate.format: "csv" (default) writes Point.txt ("x,y" lines) and Rectangle.txt ("rN,x,y,h,w" lines);
+ *   "binary" writes Point.bin and Rectangle.bin with the same fields as big-endian ints (8 and 20 bytes a record),
+ *   which SpatialLayout and ColumnarLayout read as input instead of parsing the CSV.
+ * - generate.output: directory of the files (the working directory).
+ * - generate.distribution: locations of the points and rectangle corners, "uniform" (default) over [1, 10000],
+ *   "gaussian" around generate.clusters (8) centres with standard deviation generate.cluster.sigma (300), or
+ *   "zipf" over a grid of generate.zipf.tiles x generate.zipf.tiles (64) tiles whose popularity follows a Zipf
+ *   law of exponent generate.zipf.exponent (1.1).
+ * - generate.rectangle.size: "uniform" (default) heights in [1, 20] and widths in [1, 7]; "pareto" scales both
+ *   by a Pareto factor of shape generate.rectangle.size.alpha (1.5), so a few rectangles are very large,
+ *   capped at generate.rectangle.size.cap (1000).
+ *
+ * The records are generated in chunks of CHUNK_RECORDS, each with its own SplittableRandom split from the seed
+ * in chunk order. Chunks are generated and formatted by a thread pool and written in order through a FileChannel.
+ */
 public class CreateDatabase {
+    public static final String BINARY_EXTENSION = ".bin";
+    private static final int CHUNK_RECORDS = 1 << 18;
 
-    public static void main(String [] args)
-    {
-        try {
-            int minVal = 1;
-            int maxVal = 10000;
-            int maxHeight = 20;
-            int maxWidth = 7;
+    private final Configuration conf;
+    private final int minVal = 1;
+    private final int maxVal = 10000;
+    private final int maxHeight = 20;
+    private final int maxWidth = 7;
+    private final boolean binary;
+    private final boolean paretoSizes;
+    private final double sizeAlpha;
+    private final int sizeCap;
+    private final int threads;
+    private final SplittableRandom seed;
+    private final Locations locations;
 
-            pointDataSet(minVal, maxVal);
-            rectangleDataSet(minVal, maxVal, maxHeight, maxWidth);
+    public CreateDatabase(Configuration conf) {
+        this.conf = conf;
+        String format = conf.get("generate.format", "csv");
+        if (!format.equals("csv") && !format.equals("binary")) {
+            throw new IllegalArgumentException("Unknown generate.format: " + format);
+        }
+        binary = format.equals("binary");
+        String size = conf.get("generate.rectangle.size", "uniform");
+        if (!size.equals("uniform") && !size.equals("pareto")) {
+            throw new IllegalArgumentException("Unknown generate.rectangle.size: " + size);
         }
-        catch (Exception e) {
-            e.printStackTrace();
+        paretoSizes = size.equals("pareto");
+        sizeAlpha = conf.getDouble("generate.rectangle.size.alpha", 1.5);
+        sizeCap = conf.getInt("generate.rectangle.size.cap", 1000);
+        threads = Math.max(1, conf.getInt("generate.threads", Runtime.getRuntime().availableProcessors()));
+        seed = new SplittableRandom(conf.getLong("generate.seed", 1));
+        locations = createLocations(conf.get("generate.distribution", "uniform"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        new GenericOptionsParser(conf, args);
+        CreateDatabase generator = new CreateDatabase(conf);
+        Path output = Paths.get(conf.get("generate.output", "."));
+        String extension = generator.binary ? BINARY_EXTENSION : ".txt";
+        generator.pointDataSet(output.resolve("Point" + extension), conf.getLong("generate.points", 11000000));
+        generator.rectangleDataSet(output.resolve("Rectangle" + extension), conf.getLong("generate.rectangles", 5000001));
+    }
+
+    public void pointDataSet(Path file, long count) throws IOException, InterruptedException {
+        write(file, count, false);
+    }
+
+    public void rectangleDataSet(Path file, long count) throws IOException, InterruptedException {
+        write(file, count, true);
+    }
+
+    /**
+     * Generates the records in chunks on the pool and writes the formatted chunks in order, keeping at most
+     * two chunks per thread in flight.
+     */
+    private void write(Path file, long count, boolean rectangles) throws IOException, InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Deque<Future<ByteBuffer>> pending = new ArrayDeque<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (long first = 0; first < count || !pending.isEmpty(); first += CHUNK_RECORDS) {
+                if (first < count) {
+                    final long start = first;
+                    final int records = (int) Math.min(CHUNK_RECORDS, count - first);
+                    final SplittableRandom rand = seed.split();
+                    pending.add(pool.submit(() -> rectangles ? rectangleChunk(rand, start, records) : pointChunk(rand, records)));
+                }
+                if (pending.size() >= 2 * threads || first >= count) {
+                    ByteBuffer chunk = pending.poll().get();
+                    while (chunk.hasRemaining()) {
+                        channel.write(chunk);
+                    }
+                }
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("Generating " + file + " failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
         }
     }
 
-    public static void pointDataSet(int minVal, int maxVal) throws IOException {
-        Random rand = new Random();
-        FileWriter txtWriter = new FileWriter("Point.txt");
-        for (int i = 0; i < 11000000; i++) {
-            int x = rand.nextInt(maxVal - minVal + 1) + minVal;
-            int y = rand.nextInt(maxVal - minVal + 1) + minVal;
-            String p = String.valueOf(x) + "," + String.valueOf(y);
-            txtWriter.write(String.valueOf(p)+"\n");
+    private ByteBuffer pointChunk(SplittableRandom rand, int records) {
+        Chunk chunk = new Chunk(records * (binary ? 8 : 12));
+        int[] location = new int[2];
+        for (int i = 0; i < records; i++) {
+            locations.next(rand, maxVal, maxVal, location);
+            if (binary) {
+                chunk.putInt(location[0]).putInt(location[1]);
+            } else {
+                chunk.appendInt(location[0]).append(',').appendInt(location[1]).append('\n');
+            }
         }
-        txtWriter.flush();
-        txtWriter.close();
+        return chunk.buffer();
     }
 
-    public static void rectangleDataSet(int minVal, int maxVal, int maxHeight, int maxWidth) throws IOException {
-        Random rand = new Random();
-        FileWriter txtWriter = new FileWriter("Rectangle.txt");
-        for (int i = 0; i <= 5000000; i++) {
+    private ByteBuffer rectangleChunk(SplittableRandom rand, long firstId, int records) {
+        Chunk chunk = new Chunk(records * (binary ? 20 : 32));
+        int[] location = new int[2];
+        for (int i = 0; i < records; i++) {
             int h = rand.nextInt(maxHeight - minVal + 1) + minVal;
             int w = rand.nextInt(maxWidth - minVal + 1) + minVal;
-            int x = rand.nextInt((maxVal-maxWidth) - minVal + 1) + minVal;
-            int y = rand.nextInt((maxVal-maxHeight) - minVal + 1) + minVal;
+            if (paretoSizes) {
+                double factor = Math.pow(1 - rand.nextDouble(), -1 / sizeAlpha);
+                h = (int) Math.min(sizeCap, Math.round(h * factor));
+                w = (int) Math.min(sizeCap, Math.round(w * factor));
+            }
+            locations.next(rand, Math.max(minVal, maxVal - w), Math.max(minVal, maxVal - h), location);
+            int id = (int) (firstId + i);
+            if (binary) {
+                chunk.putInt(id).putInt(location[0]).putInt(location[1]).putInt(h).putInt(w);
+            } else {
+                chunk.append('r').appendInt(id).append(',').appendInt(location[0]).append(',').appendInt(location[1])
+                        .append(',').appendInt(h).append(',').appendInt(w).append('\n');
+            }
+        }
+        return chunk.buffer();
+    }
+
+    // ---------------------------------------------------------------------------------------------------------
+    // Distributions
+
+    /**
+     * Draws record locations. Implementations hold only parameters; the randomness comes from the chunk.
+     */
+    interface Locations {
+        /**
+         * Draws a location in [1, maxX] x [1, maxY] into {@code location}.
+         */
+        void next(SplittableRandom rand, int maxX, int maxY, int[] location);
+    }
 
-            String r = "r"+String.valueOf(i)+","+String.valueOf(x) + "," + String.valueOf(y)+","+ String.valueOf(h)+","+ String.valueOf(w);
-            txtWriter.write(String.valueOf(r)+"\n");
+    private Locations createLocations(String distribution) {
+        switch (distribution) {
+            case "uniform":
+                return (rand, maxX, maxY, location) -> {
+                    location[0] = rand.nextInt(maxX - minVal + 1) + minVal;
+                    location[1] = rand.nextInt(maxY - minVal + 1) + minVal;
+                };
+            case "gaussian":
+                return gaussianClusters(conf.getInt("generate.clusters", 8), conf.getDouble("generate.cluster.sigma", 300));
+            case "zipf":
+                return zipfHotspots(conf.getInt("generate.zipf.tiles", 64), conf.getDouble("generate.zipf.exponent", 1.1));
+            default:
+                throw new IllegalArgumentException("Unknown generate.distribution: " + distribution);
         }
-        txtWriter.flush();
-        txtWriter.close();
     }
-}
 
+    /**
+     * Gaussian clusters around centres drawn from the seed. Locations falling outside the space are drawn again.
+     */
+    private Locations gaussianClusters(int clusters, final double sigma) {
+        final int[] centreX = new int[clusters];
+        final int[] centreY = new int[clusters];
+        SplittableRandom rand = seed.split();
+        for (int c = 0; c < clusters; c++) {
+            centreX[c] = rand.nextInt(maxVal - minVal + 1) + minVal;
+            centreY[c] = rand.nextInt(maxVal - minVal + 1) + minVal;
+        }
+        return (random, maxX, maxY, location) -> {
+            int c = random.nextInt(centreX.length);
+            do {
+                location[0] = (int) Math.round(centreX[c] + gaussian(random) * sigma);
+                location[1] = (int) Math.round(centreY[c] + gaussian(random) * sigma);
+            } while (location[0] < minVal || location[0] > maxX || location[1] < minVal || location[1] > maxY);
+        };
+    }
+
+    /**
+     * Zipf hotspots: the space is cut into tiles x tiles tiles, tile ranks are assigned in a random order
+     * drawn from the seed, and a location picks a tile with probability proportional to 1 / rank^exponent,
+     * then a uniform position inside it.
+     */
+    private Locations zipfHotspots(final int tiles, double exponent) {
+        final double[] cumulative = new double[tiles * tiles];
+        double total = 0;
+        for (int rank = 0; rank < cumulative.length; rank++) {
+            total += 1 / Math.pow(rank + 1, exponent);
+            cumulative[rank] = total;
+        }
+        final int[] tileOfRank = new int[cumulative.length];
+        SplittableRandom rand = seed.split();
+        for (int t = 0; t < tileOfRank.length; t++) {
+            int other = rand.nextInt(t + 1);
+            tileOfRank[t] = tileOfRank[other];
+            tileOfRank[other] = t;
+        }
+        final double sum = total;
+        final double tileSize = (maxVal - minVal + 1) / (double) tiles;
+        return (random, maxX, maxY, location) -> {
+            int rank = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+            int tile = tileOfRank[rank >= 0 ? rank : Math.min(-rank - 1, cumulative.length - 1)];
+            location[0] = Math.min(maxX, minVal + (int) (((tile % tiles) + random.nextDouble()) * tileSize));
+            location[1] = Math.min(maxY, minVal + (int) (((tile / tiles) + random.nextDouble()) * tileSize));
+        };
+    }
+
+    /**
+     * Standard normal deviate by the polar method; SplittableRandom has no nextGaussian before Java 17.
+     */
+    private static double gaussian(SplittableRandom rand) {
+        double u;
+        double v;
+        double s;
+        do {
+            u = 2 * rand.nextDouble() - 1;
+            v = 2 * rand.nextDouble() - 1;
+            s = u * u + v * v;
+        } while (s >= 1 || s == 0);
+        return u * Math.sqrt(-2 * Math.log(s) / s);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------
+    // Output
+
+    /**
+     * Growable byte array formatting records without going through Strings.
+     */
+    private static final class Chunk {
+        private byte[] bytes;
+        private int size;
+
+        Chunk(int capacity) {
+            bytes = new byte[Math.max(16, capacity)];
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+            }
+        }
+
+        Chunk append(char c) {
+            ensure(1);
+            bytes[size++] = (byte) c;
+            return this;
+        }
+
+        Chunk appendInt(int value) {
+            ensure(11);
+            long v = value;
+            if (v < 0) {
+                bytes[size++] = '-';
+                v = -v;
+            }
+            int start = size;
+            do {
+                bytes[size++] = (byte) ('0' + v % 10);
+                v /= 10;
+            } while (v > 0);
+            for (int i = start, j = size - 1; i < j; i++, j--) {
+                byte swap = bytes[i];
+                bytes[i] = bytes[j];
+                bytes[j] = swap;
+            }
+            return this;
+        }
+
+        Chunk putInt(int value) {
+            ensure(4);
+            bytes[size++] = (byte) (value >>> 24);
+            bytes[size++] = (byte) (value >>> 16);
+            bytes[size++] = (byte) (value >>> 8);
+            bytes[size++] = (byte) value;
+            return this;
+        }
+
+        ByteBuffer buffer() {
+            return ByteBuffer.wrap(bytes, 0, size);
+        }
+    }
+}
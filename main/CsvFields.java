@@ -0,0 +1,78 @@
+import org.apache.hadoop.io.Text;
+
+/**
+ * Reads the comma separated integer fields of a line straight from its bytes, without decoding the
+ * line into a String, splitting it or going through Integer.parseInt. One instance is reused for
+ * every record of a task.
+ */
+public class CsvFields {
+    private byte[] bytes;
+    private int pos;
+    private int end;
+
+    public CsvFields reset(Text line) {
+        return reset(line.getBytes(), 0, line.getLength());
+    }
+
+    public CsvFields reset(byte[] bytes, int start, int length) {
+        this.bytes = bytes;
+        this.pos = start;
+        this.end = start + length;
+        return this;
+    }
+
+    /**
+     * Returns the next field as an int. Surrounding spaces (and the '\r' of Windows line endings) are ignored.
+     * @throws NumberFormatException if the field is missing or is not an integer.
+     */
+    public int nextInt() {
+        while (pos < end && (bytes[pos] == ' ' || bytes[pos] == '\t')) {
+            pos++;
+        }
+        boolean negative = false;
+        if (pos < end && (bytes[pos] == '-' || bytes[pos] == '+')) {
+            negative = bytes[pos] == '-';
+            pos++;
+        }
+        int start = pos;
+        long value = 0;
+        while (pos < end) {
+            int digit = bytes[pos] - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            value = value * 10 + digit;
+            if (value > Integer.MAX_VALUE + 1L) {
+                throw new NumberFormatException("Integer field out of range at byte " + start);
+            }
+            pos++;
+        }
+        if (pos == start) {
+            throw new NumberFormatException("Expected an integer field at byte " + start);
+        }
+        while (pos < end && (bytes[pos] == ' ' || bytes[pos] == '\t' || bytes[pos] == '\r')) {
+            pos++;
+        }
+        if (pos < end) {
+            if (bytes[pos] != ',') {
+                throw new NumberFormatException("Unexpected character '" + (char) bytes[pos] + "' at byte " + pos);
+            }
+            pos++;
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("Integer field out of range at byte " + start);
+        }
+        return (int) value;
+    }
+
+    /**
+     * Returns the numeric part of the next field, skipping a leading letter prefix such as the 'r' of "r42".
+     */
+    public int nextId() {
+        while (pos < end && (bytes[pos] == ' ' || (bytes[pos] >= 'a' && bytes[pos] <= 'z') || (bytes[pos] >= 'A' && bytes[pos] <= 'Z'))) {
+            pos++;
+        }
+        return nextInt();
+    }
+}
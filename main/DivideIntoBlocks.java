@@ -1,6 +1,17 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
 public class DivideIntoBlocks {
     /**
      * Create a list of grid blocks.
@@ -32,4 +43,43 @@ public class DivideIntoBlocks {
         return grids;
     }
 
+    /**
+     * Load the grid blocks of a job in the driver.
+     * If the job was given a partition file (see {@link AdaptivePartitioner}) the blocks are read from it; otherwise
+     * the fixed 4x4 grid over the 10000x10000 space is used.
+     * @param conf The job configuration.
+     * @return A list of strings in the same format as {@link #createBlocks(Integer, Integer)}.
+     */
+    public static List<String> loadBlocks(Configuration conf) throws IOException {
+        return loadBlocks(conf, null);
+    }
+
+    /**
+     * Load the grid blocks used by a task, like {@link #loadBlocks(Configuration)} but reading the partition file
+     * from its distributed cache link in the task working directory when it is there.
+     * @param context The context of the map or reduce task.
+     */
+    public static List<String> loadBlocks(TaskAttemptContext context) throws IOException {
+        return loadBlocks(context.getConfiguration(), new File(AdaptivePartitioner.PARTITION_LINK));
+    }
+
+    private static List<String> loadBlocks(Configuration conf, File link) throws IOException {
+        String partitionFile = conf.get("partition.file");
+        if (partitionFile == null || partitionFile.isEmpty()) {
+            return createBlocks(10000, 2500);
+        }
+
+        Path path = new Path(partitionFile);
+        try (InputStream in = link != null && link.isFile() ? Files.newInputStream(link.toPath()) : path.getFileSystem(conf).open(path);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            List<String> grids = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    grids.add(line);
+                }
+            }
+            return grids;
+        }
+    }
 }
@@ -0,0 +1,277 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Detects the hot cells of the repartition join and spreads their points over several reducers.
+ *
+ * The mappers count the points and rectangle copies they send to each cell, and unless "partition.stats.cells" is
+ * false write them to a "_cells-m-NNNNN" side file of their task output as "cell,points,rectangles" lines. The driver
+ * adds them up after the join, removes the side files and, when "partition.stats.file" is set, writes the counts as
+ * "gX,X1,Y1,X2,Y2,points,rectangles" lines. Side files rather than counters, since Hadoop caps the counters of a job
+ * at 120 per JVM whatever the job configuration says, and two per cell would fail any partitioning of 60 cells.
+ *
+ * "partition.skew" selects how hot cells are found before the join: "none" (default), "sample" (the records of a
+ * sample of both inputs are counted per cell) or "stats" (the counts of a prior run are read from
+ * "partition.stats.file"; blocks that changed since are counted as empty). A cell is hot when its records exceed
+ * "partition.skew.factor" (4) times the mean over all cells, and is then salted into as many parts as it holds
+ * means of records, at most one per reducer: each point goes to one of the salts in turn, and every rectangle of the
+ * cell is copied to all of them. A salt is its own reduce group, on its own reducer, and since a pair is only
+ * reported by the cell owning the point (see {@link StreamingJoin}) every pair is still reported once.
+ *
+ * The salts reach the tasks in "partition.salts" as "cell:salts" entries, and the salt is carried in the high bits
+ * of the {@link CellKey} cell (see {@link CellKey#salted(int, int)}).
+ */
+public class HotCells {
+    private static final Logger LOG = LoggerFactory.getLogger(HotCells.class);
+    public static final String CELL_COUNTS = "_cells";
+
+    /**
+     * Finds the hot cells of the partitioning with the method of "partition.skew" and sets "partition.salts".
+     * @return The counts of points and rectangles per cell the salts were chosen from, or null with partition.skew=none.
+     */
+    public static long[][] configure(Configuration conf, Path points, Path rectangles, List<String> blocks, int reducers) throws IOException {
+        String mode = conf.get("partition.skew", "none");
+        long[][] counts;
+        if (mode.equals("none")) {
+            return null;
+        } else if (mode.equals("sample")) {
+            counts = sampleCounts(conf, points, rectangles, Partitioning.fromBlocks(blocks));
+        } else if (mode.equals("stats")) {
+            String stats = conf.get("partition.stats.file");
+            if (stats == null) {
+                throw new IllegalArgumentException("partition.skew=stats needs partition.stats.file");
+            }
+            counts = readStats(conf, new Path(stats), blocks);
+        } else {
+            throw new IllegalArgumentException("Unknown partition.skew: " + mode);
+        }
+
+        int[] salts = plan(counts[0], counts[1], reducers, conf.getDouble("partition.skew.factor", 4));
+        StringBuilder entries = new StringBuilder();
+        for (int cell = 0; cell < salts.length; cell++) {
+            if (salts[cell] > 1) {
+                entries.append(entries.length() == 0 ? "" : ",").append(cell).append(':').append(salts[cell]);
+            }
+        }
+        LOG.info("Hot cells (cell:salts): {}", entries.length() == 0 ? "none" : entries);
+        conf.set("partition.salts", entries.toString());
+        return counts;
+    }
+
+    /**
+     * Chooses the number of salts of every cell from its counts of points and rectangles.
+     * @return One entry per cell, 1 for a cell that is not split.
+     */
+    public static int[] plan(long[] points, long[] rectangles, int reducers, double factor) {
+        int[] salts = new int[points.length];
+        double mean = 0;
+        for (int cell = 0; cell < points.length; cell++) {
+            mean += points[cell] + rectangles[cell];
+        }
+        mean /= Math.max(1, points.length);
+        int limit = Math.min(reducers, CellKey.MAX_SALTS);
+        for (int cell = 0; cell < salts.length; cell++) {
+            long load = points[cell] + rectangles[cell];
+            salts[cell] = 1;
+            if (limit > 1 && points[cell] > 1 && load > factor * mean) {
+                salts[cell] = (int) Math.min(Math.min(limit, points[cell]), (long) Math.ceil(load / mean));
+            }
+        }
+        return salts;
+    }
+
+    /**
+     * Reads the salts of the cells from "partition.salts".
+     * @return One entry per cell, 1 for a cell that is not split.
+     */
+    public static int[] salts(Configuration conf, int cells) {
+        int[] salts = new int[cells];
+        Arrays.fill(salts, 1);
+        for (String entry : conf.getTrimmedStrings("partition.salts")) {
+            int colon = entry.indexOf(':');
+            int cell = Integer.parseInt(entry.substring(0, colon));
+            if (cell < cells) {
+                salts[cell] = Math.max(1, Math.min(CellKey.MAX_SALTS, Integer.parseInt(entry.substring(colon + 1))));
+            }
+        }
+        return salts;
+    }
+
+    /**
+     * Counts the points and rectangle copies of a sample of the inputs in each cell, in the window. With another
+     * {@link JoinPredicate} the first input is the probe side and the second the build side, whatever their records.
+     * @return {points, rectangles}, indexed by cell.
+     */
+    public static long[][] sampleCounts(Configuration conf, Path points, Path rectangles, Partitioning partitioning) throws IOException {
+        SpatialMapper.MapRectangles.Window window = SpatialMapper.MapRectangles.Window.parseWindowString(conf.get("window"));
+        int sampleSize = conf.getInt("partition.sample.size", 100000);
+        JoinPredicate predicate = JoinPredicate.of(conf);
+        long[][] counts = new long[2][partitioning.size()];
+        List<String> probes = AdaptivePartitioner.sampleLines(conf, points, sampleSize / 2);
+        List<String> builds = AdaptivePartitioner.sampleLines(conf, rectangles, sampleSize / 2);
+        if (predicate.probesPoints()) {
+            countPoints(probes, window, partitioning, -1, counts[0]);
+        } else {
+            countRectangles(probes, window, partitioning, counts[0]);
+        }
+        if (predicate.buildsRectangles()) {
+            countRectangles(builds, window, partitioning, counts[1]);
+        } else {
+            countPoints(builds, window, partitioning, predicate.expansion(conf), counts[1]);
+        }
+        return counts;
+    }
+
+    /**
+     * Counts the sampled points inside the window in their cell, or when {@code expansion} is not negative in every
+     * cell within that distance, like the build points of a distance join.
+     */
+    private static void countPoints(List<String> lines, SpatialMapper.MapRectangles.Window window, Partitioning partitioning,
+                                    int expansion, long[] counts) {
+        CsvFields fields = new CsvFields();
+        int[] cells = new int[partitioning.size()];
+        for (String line : lines) {
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            fields.reset(bytes, 0, bytes.length);
+            int x = fields.nextInt();
+            int y = fields.nextInt();
+            if (x < window.getX1() || x > window.getX2() || y < window.getY1() || y > window.getY2()) {
+                continue;
+            }
+            if (expansion < 0) {
+                counts[partitioning.cellOf(x, y)]++;
+                continue;
+            }
+            int count = partitioning.overlapping((int) Math.max((long) x - expansion, window.getX1()), (int) Math.max((long) y - expansion, window.getY1()),
+                    (int) Math.min((long) x + expansion, window.getX2()), (int) Math.min((long) y + expansion, window.getY2()), cells);
+            for (int i = 0; i < count; i++) {
+                counts[cells[i]]++;
+            }
+        }
+    }
+
+    /**
+     * Counts a copy of each sampled rectangle in every cell covering its part inside the window.
+     */
+    private static void countRectangles(List<String> lines, SpatialMapper.MapRectangles.Window window, Partitioning partitioning, long[] counts) {
+        CsvFields fields = new CsvFields();
+        SpatialRecord record = new SpatialRecord();
+        int[] cells = new int[partitioning.size()];
+        for (String line : lines) {
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            if (SpatialMapper.MapRectangles.readRectangle(fields.reset(bytes, 0, bytes.length), window, record)) {
+                int count = partitioning.overlapping(Math.max(record.getX1(), window.getX1()), Math.max(record.getY1(), window.getY1()),
+                        Math.min(record.getX2(), window.getX2()), Math.min(record.getY2(), window.getY2()), cells);
+                for (int i = 0; i < count; i++) {
+                    counts[cells[i]]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the records a map task sent to each cell to its side file, as points for the probe side and as
+     * rectangles for the build side, unless "partition.stats.cells" is false. Only the cells that got records are listed.
+     */
+    public static void writeCounts(TaskInputOutputContext<?, ?, ?, ?> context, boolean probeSide, long[] counts) throws IOException, InterruptedException {
+        Configuration conf = context.getConfiguration();
+        if (!conf.getBoolean("partition.stats.cells", true)) {
+            return;
+        }
+        Path file = new Path(FileOutputFormat.getWorkOutputPath(context),
+                String.format("%s-m-%05d", CELL_COUNTS, context.getTaskAttemptID().getTaskID().getId()));
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(file.getFileSystem(conf).create(file, true), StandardCharsets.UTF_8))) {
+            for (int cell = 0; cell < counts.length; cell++) {
+                if (counts[cell] > 0) {
+                    writer.write(cell + "," + (probeSide ? counts[cell] : 0) + "," + (probeSide ? 0 : counts[cell]));
+                    writer.write('\n');
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds up the side files of the map tasks of a finished join in its output directory, and deletes them.
+     * @return {points, rectangles}, indexed by cell, or null if the mappers did not count the cells.
+     */
+    public static long[][] readCounts(Configuration conf, Path output, int cells) throws IOException {
+        FileSystem fs = output.getFileSystem(conf);
+        FileStatus[] files = fs.globStatus(new Path(output, CELL_COUNTS + "-*"));
+        if (files == null || files.length == 0) {
+            return null;
+        }
+        long[][] counts = new long[2][cells];
+        for (FileStatus file : files) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(file.getPath()), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split(",");
+                    int cell = Integer.parseInt(fields[0]);
+                    counts[0][cell] += Long.parseLong(fields[1]);
+                    counts[1][cell] += Long.parseLong(fields[2]);
+                }
+            }
+            fs.delete(file.getPath(), false);
+        }
+        return counts;
+    }
+
+    /**
+     * Writes the per-cell counts of a finished join to the stats file.
+     */
+    public static void writeStats(Configuration conf, Path file, List<String> blocks, long[][] counts) throws IOException {
+        FileSystem fs = file.getFileSystem(conf);
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(fs.create(file, true), StandardCharsets.UTF_8))) {
+            for (int cell = 0; cell < blocks.size(); cell++) {
+                writer.write(blocks.get(cell) + "," + counts[0][cell] + "," + counts[1][cell]);
+                writer.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Reads the counts of a prior run for the current blocks. A block is matched on its id and bounds.
+     * @return {points, rectangles}, indexed by cell.
+     */
+    public static long[][] readStats(Configuration conf, Path file, List<String> blocks) throws IOException {
+        Map<String, long[]> stats = new HashMap<>();
+        FileSystem fs = file.getFileSystem(conf);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int rectanglesAt = line.lastIndexOf(',');
+                int pointsAt = line.lastIndexOf(',', rectanglesAt - 1);
+                if (pointsAt > 0) {
+                    stats.put(line.substring(0, pointsAt), new long[]{
+                            Long.parseLong(line.substring(pointsAt + 1, rectanglesAt)), Long.parseLong(line.substring(rectanglesAt + 1))});
+                }
+            }
+        }
+        long[][] counts = new long[2][blocks.size()];
+        for (int cell = 0; cell < blocks.size(); cell++) {
+            long[] block = stats.get(blocks.get(cell));
+            if (block != null) {
+                counts[0][cell] = block[0];
+                counts[1][cell] = block[1];
+            }
+        }
+        return counts;
+    }
+}
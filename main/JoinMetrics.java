@@ -0,0 +1,194 @@
+import java.io.PrintStream;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+/**
+ * Counters and phase timing of the repartition join tasks, and the summary report printed by the driver.
+ *
+ * Tasks count in plain fields and add them to the Hadoop counters once, in cleanup, so the hot paths only
+ * increment longs. Phases are timed with System.nanoTime on one record in "join.timing.sample" (64), and the
+ * sampled times are scaled by the sampling interval; 0 disables the timing. Work done once per cell, such as
+ * building the R-tree, is timed exactly. The reducers also count the cells they join by join time in a histogram of
+ * power-of-two milliseconds, in the "Cell join time (ms)" group.
+ */
+public class JoinMetrics {
+
+    public enum Join {
+        POINTS_READ, POINTS_OUTSIDE_WINDOW, RECTANGLES_READ, RECTANGLES_OUTSIDE_WINDOW, RECTANGLE_COPIES,
+        CELLS, CELL_RECTANGLES, CELL_POINTS, CANDIDATE_PAIRS, MATCHES
+    }
+
+    /**
+     * Phases of the join, counted in estimated nanoseconds.
+     */
+    public enum Phase {
+        PARSE, PARTITION, BUILD, PROBE, WRITE
+    }
+
+    public static final String CELL_TIME_GROUP = "Cell join time (ms)";
+    private static final int BUCKETS = 16;
+
+    private final long[] counts = new long[Join.values().length];
+    private final long[] sampled = new long[Phase.values().length];
+    private final long[] exact = new long[Phase.values().length];
+    private final long[] histogram = new long[BUCKETS];
+    private final int interval;
+    private int countdown = 1;
+    private boolean timed;
+    private long last;
+
+    public JoinMetrics(Configuration conf) {
+        interval = Math.max(0, conf.getInt("join.timing.sample", 64));
+    }
+
+    public void increment(Join counter) {
+        counts[counter.ordinal()]++;
+    }
+
+    public void add(Join counter, long value) {
+        counts[counter.ordinal()] += value;
+    }
+
+    /**
+     * Starts a record, which is timed if it is the first of its sampling interval.
+     */
+    public void startRecord() {
+        if (interval > 0 && --countdown == 0) {
+            countdown = interval;
+            timed = true;
+            last = System.nanoTime();
+        } else {
+            timed = false;
+        }
+    }
+
+    /**
+     * Ends a phase of the current record; the next phase starts now.
+     */
+    public void lap(Phase phase) {
+        if (timed) {
+            long now = System.nanoTime();
+            sampled[phase.ordinal()] += now - last;
+            last = now;
+        }
+    }
+
+    /**
+     * Adds the exact time of work done outside the records, measured by the caller.
+     */
+    public void addTime(Phase phase, long nanos) {
+        exact[phase.ordinal()] += nanos;
+    }
+
+    /**
+     * Counts a cell in the join time histogram.
+     */
+    public void cellTime(long nanos) {
+        long millis = nanos / 1000000;
+        int bucket = millis == 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis));
+        histogram[bucket]++;
+    }
+
+    /**
+     * Adds the counts and times of the task to its counters.
+     */
+    public void flush(TaskInputOutputContext<?, ?, ?, ?> context) {
+        for (Join counter : Join.values()) {
+            if (counts[counter.ordinal()] > 0) {
+                context.getCounter(counter).increment(counts[counter.ordinal()]);
+            }
+        }
+        for (Phase phase : Phase.values()) {
+            long nanos = sampled[phase.ordinal()] * interval + exact[phase.ordinal()];
+            if (nanos > 0) {
+                context.getCounter(phase).increment(nanos);
+            }
+        }
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            if (histogram[bucket] > 0) {
+                context.getCounter(CELL_TIME_GROUP, bucketName(bucket)).increment(histogram[bucket]);
+            }
+        }
+    }
+
+    /**
+     * Name of a histogram bucket: "<1" for the first one, then "1-2", "2-4", ... and ">=16384" for the last one.
+     */
+    static String bucketName(int bucket) {
+        if (bucket == 0) {
+            return "<1";
+        }
+        long low = 1L << (bucket - 1);
+        return bucket == BUCKETS - 1 ? ">=" + low : low + "-" + (low << 1);
+    }
+
+    /**
+     * Prints the summary of a finished join from its counters and the per-cell counts of {@link HotCells}, which
+     * may be null.
+     */
+    public static void report(Counters counters, List<String> blocks, long[][] cellCounts, PrintStream out) {
+        long pointsRead = value(counters, Join.POINTS_READ);
+        long rectanglesRead = value(counters, Join.RECTANGLES_READ);
+        long rectanglesKept = rectanglesRead - value(counters, Join.RECTANGLES_OUTSIDE_WINDOW);
+        long cells = value(counters, Join.CELLS);
+        long candidates = value(counters, Join.CANDIDATE_PAIRS);
+        long matches = value(counters, Join.MATCHES);
+
+        out.println("Spatial join summary");
+        out.println("  points read:        " + pointsRead + " (" + value(counters, Join.POINTS_OUTSIDE_WINDOW) + " outside the window)");
+        out.println("  rectangles read:    " + rectanglesRead + " (" + value(counters, Join.RECTANGLES_OUTSIDE_WINDOW)
+                + " outside the window), " + String.format("%.3f", value(counters, Join.RECTANGLE_COPIES) / (double) Math.max(1, rectanglesKept))
+                + " copies per rectangle");
+        String largest = cellCounts == null ? null : largestCell(blocks, cellCounts);
+        out.println("  cells joined:       " + cells + ", " + value(counters, Join.CELL_RECTANGLES) / Math.max(1, cells)
+                + " rectangles and " + value(counters, Join.CELL_POINTS) / Math.max(1, cells) + " points on average"
+                + (largest == null ? "" : ", largest " + largest));
+        out.println("  candidate pairs:    " + candidates + ", " + matches + " matches ("
+                + String.format("%.2f", 100.0 * matches / Math.max(1, candidates)) + "% of the candidates)");
+
+        StringBuilder phases = new StringBuilder();
+        long total = 0;
+        for (Phase phase : Phase.values()) {
+            total += value(counters, phase);
+        }
+        for (Phase phase : Phase.values()) {
+            long nanos = value(counters, phase);
+            phases.append(phases.length() == 0 ? "" : ", ").append(phase.name().toLowerCase()).append(' ')
+                    .append(nanos / 1000000).append(String.format(" (%.0f%%)", 100.0 * nanos / Math.max(1, total)));
+        }
+        out.println("  phase time (ms):    " + phases);
+
+        StringBuilder buckets = new StringBuilder();
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            Counter counter = counters.getGroup(CELL_TIME_GROUP).findCounter(bucketName(bucket), false);
+            if (counter != null && counter.getValue() > 0) {
+                buckets.append(buckets.length() == 0 ? "" : ", ").append(bucketName(bucket)).append(": ").append(counter.getValue());
+            }
+        }
+        out.println("  cell join time (ms): " + (buckets.length() == 0 ? "-" : buckets));
+    }
+
+    private static long value(Counters counters, Enum<?> counter) {
+        return counters.findCounter(counter).getValue();
+    }
+
+    /**
+     * @return The cell with the most records in the per-cell counts of {@link HotCells}, as "gX (records)".
+     */
+    private static String largestCell(List<String> blocks, long[][] cellCounts) {
+        String largest = null;
+        long most = 0;
+        for (int cell = 0; cell < blocks.size(); cell++) {
+            long records = cellCounts[0][cell] + cellCounts[1][cell];
+            if (records > most) {
+                most = records;
+                largest = blocks.get(cell).substring(0, blocks.get(cell).indexOf(',')) + " (" + records + " records)";
+            }
+        }
+        return largest;
+    }
+}
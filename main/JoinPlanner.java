@@ -0,0 +1,80 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chooses between the repartition join (both inputs shuffled to SpatialJoinReduce by grid cell) and the
+ * broadcast join (window-filtered rectangles loaded in memory by every point map task, no reducers).
+ *
+ * The choice is driven by "join.mode": "repartition", "broadcast" or "auto" (default). In auto mode the
+ * size of the rectangle input is scaled by the fraction of sampled rectangles that intersect the window,
+ * and the broadcast join is used when the estimate is below "join.broadcast.threshold.bytes" (64 MB). The varint
+ * coded blocks of a columnar input are several times smaller than the rectangles they load, so its size is taken
+ * as the number of records in its block index times {@link #HEAP_BYTES_PER_RECTANGLE}, and scaled by the fraction
+ * of sampled records in the window.
+ */
+public class JoinPlanner {
+    private static final Logger LOG = LoggerFactory.getLogger(JoinPlanner.class);
+
+    public static final long DEFAULT_BROADCAST_THRESHOLD = 64L * 1024 * 1024;
+
+    /**
+     * Heap taken by a rectangle in a broadcast map task: five ints in the rectangle buffer, the four coordinates and
+     * the order entry of its R-tree leaf, and a share of the upper levels and of the slack of the growing arrays.
+     */
+    public static final long HEAP_BYTES_PER_RECTANGLE = 48;
+
+    /**
+     * @return true if the join should run as a broadcast join.
+     */
+    public static boolean useBroadcast(Configuration conf, Path rectangles) throws IOException {
+        String mode = conf.get("join.mode", "auto");
+        if (mode.equals("broadcast")) {
+            return true;
+        }
+        if (mode.equals("repartition")) {
+            return false;
+        }
+        if (!mode.equals("auto")) {
+            throw new IllegalArgumentException("Unknown join.mode: " + mode);
+        }
+        long threshold = conf.getLong("join.broadcast.threshold.bytes", DEFAULT_BROADCAST_THRESHOLD);
+        long estimate = estimateFilteredBytes(conf, rectangles);
+        LOG.info("Estimated window-filtered rectangle input: {} bytes, broadcast threshold: {} bytes", estimate, threshold);
+        return estimate <= threshold;
+    }
+
+    /**
+     * Estimates the number of bytes of the rectangle input that intersect the window.
+     */
+    public static long estimateFilteredBytes(Configuration conf, Path rectangles) throws IOException {
+        boolean columnar = ColumnarLayout.isColumnar(conf, rectangles);
+        long total = columnar ? ColumnarLayout.countRecords(conf, rectangles) * HEAP_BYTES_PER_RECTANGLE
+                : rectangles.getFileSystem(conf).getContentSummary(rectangles).getLength();
+        SpatialMapper.MapRectangles.Window window = SpatialMapper.MapRectangles.Window.parseWindowString(conf.get("window"));
+        List<String> sample = AdaptivePartitioner.sampleLines(conf, rectangles, conf.getInt("join.broadcast.sample.size", 10000));
+        if (sample.isEmpty()) {
+            return total;
+        }
+
+        CsvFields fields = new CsvFields();
+        SpatialRecord record = new SpatialRecord();
+        long sampledWeight = 0;
+        long selectedWeight = 0;
+        for (String line : sample) {
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            // The sample of a columnar input is decoded text, so its records are weighed equally.
+            int weight = columnar ? 1 : bytes.length + 1;
+            sampledWeight += weight;
+            if (SpatialMapper.MapRectangles.readRectangle(fields.reset(bytes, 0, bytes.length), window, record)) {
+                selectedWeight += weight;
+            }
+        }
+        return (long) (total * (selectedWeight / (double) sampledWeight));
+    }
+}
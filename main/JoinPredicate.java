@@ -0,0 +1,55 @@
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Predicate of the repartition join, chosen with "join.predicate". The first input is the probe side, streamed by
+ * the reducers, and the second input the build side, held per cell (see {@link StreamingJoin}).
+ *
+ * "contains" (default) joins points with the rectangles containing them. "overlaps" joins two rectangle datasets,
+ * reporting the pairs of rectangles that intersect inside the window. "distance" joins two point datasets, reporting
+ * the pairs at Euclidean distance at most "join.distance" (0) with both points inside the window.
+ *
+ * The expansion radius of a predicate is how far a build record reaches beyond its own box: a build point of a
+ * distance join is copied to every cell within "join.distance" of it, so every probe point finds all its neighbours
+ * in its own cell.
+ */
+public enum JoinPredicate {
+    CONTAINS, OVERLAPS, DISTANCE;
+
+    public static JoinPredicate of(Configuration conf) {
+        String name = conf.get("join.predicate", "contains");
+        for (JoinPredicate predicate : values()) {
+            if (predicate.name().equalsIgnoreCase(name)) {
+                return predicate;
+            }
+        }
+        throw new IllegalArgumentException("Unknown join.predicate: " + name);
+    }
+
+    /**
+     * @return The expansion radius of the build records, "join.distance" for a distance join and 0 otherwise.
+     */
+    public int expansion(Configuration conf) {
+        if (this != DISTANCE) {
+            return 0;
+        }
+        int distance = conf.getInt("join.distance", 0);
+        if (distance < 0) {
+            throw new IllegalArgumentException("join.distance must not be negative: " + distance);
+        }
+        return distance;
+    }
+
+    /**
+     * @return true if the probe side of the join is a point dataset, false for rectangles.
+     */
+    public boolean probesPoints() {
+        return this != OVERLAPS;
+    }
+
+    /**
+     * @return true if the build side of the join is a rectangle dataset, false for points.
+     */
+    public boolean buildsRectangles() {
+        return this != DISTANCE;
+    }
+}
@@ -0,0 +1,87 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Names, collector and primitive buffers shared by the local joins of a cell. The engines themselves, "sweep",
+ * "rtree" and "nested", are the modes of {@link StreamingJoin}, run by the reducers and the local mode.
+ */
+public class LocalJoin {
+
+    /**
+     * Name of the engine used when the job does not ask for a specific one.
+     */
+    public static final String DEFAULT_ENGINE = "sweep";
+
+    /**
+     * Number of entries per node of the R-tree engine.
+     */
+    public static final int DEFAULT_RTREE_CAPACITY = 16;
+
+    /**
+     * Receives the matches found by a local join as the number of the probe record and the index of the rectangle.
+     */
+    public interface Collector {
+        void collect(int point, int rectangle) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Growable buffer of point coordinates stored in primitive arrays.
+     */
+    public static class PointBuffer {
+        public int[] x = new int[16];
+        public int[] y = new int[16];
+        public int size;
+
+        public void add(int px, int py) {
+            if (size == x.length) {
+                x = Arrays.copyOf(x, size * 2);
+                y = Arrays.copyOf(y, size * 2);
+            }
+            x[size] = px;
+            y[size] = py;
+            size++;
+        }
+
+        public void clear() {
+            size = 0;
+        }
+    }
+
+    /**
+     * Growable buffer of rectangles stored in primitive arrays, with (x1,y1) the lower corner
+     * and (x2,y2) the upper corner of each rectangle.
+     */
+    public static class RectangleBuffer {
+        public int[] id = new int[16];
+        public int[] x1 = new int[16];
+        public int[] y1 = new int[16];
+        public int[] x2 = new int[16];
+        public int[] y2 = new int[16];
+        public int size;
+
+        public void add(int rid, int rx1, int ry1, int rx2, int ry2) {
+            if (size == x1.length) {
+                int capacity = size * 2;
+                id = Arrays.copyOf(id, capacity);
+                x1 = Arrays.copyOf(x1, capacity);
+                y1 = Arrays.copyOf(y1, capacity);
+                x2 = Arrays.copyOf(x2, capacity);
+                y2 = Arrays.copyOf(y2, capacity);
+            }
+            id[size] = rid;
+            x1[size] = rx1;
+            y1[size] = ry1;
+            x2[size] = rx2;
+            y2[size] = ry2;
+            size++;
+        }
+
+        public boolean contains(int r, int px, int py) {
+            return (px >= x1[r]) && (px <= x2[r]) && (py >= y1[r]) && (py <= y2[r]);
+        }
+
+        public void clear() {
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,598 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.MRJobConfig;
+
+/**
+ * Runs the repartition join inside one JVM, without MapReduce, for inputs that fit on a single machine.
+ * Selected with "join.mode" set to "local".
+ *
+ * The cells are the ones the MapReduce job would use: the fixed grid of {@link DivideIntoBlocks} with
+ * "partition.mode" set to "grid", otherwise the adaptive STR tiles sampled by {@link AdaptivePartitioner} for
+ * "mapreduce.job.reduces" reducers. The input files are memory-mapped and cut into chunks at line boundaries;
+ * the chunks are parsed in parallel into per-cell primitive buffers, which are then merged and sorted in the
+ * order of the shuffle. The cells are joined on a fork-join pool of "local.threads" workers (all cores): a cell
+ * with more than "local.split.points" points (65536) is split into ranges of points joined by separate tasks, so
+ * idle workers steal the pieces of skewed cells. The rectangles of a split cell are stored and indexed once, before
+ * the split, and its pieces probe them with their own sweep state.
+ *
+ * Every piece is joined by the same {@link StreamingJoin} as the reducers and the pieces are written in cell
+ * and point order, so the output file "part-r-00000" is byte-identical to the one of the repartition job run
+ * with a single reducer. The aggregated output modes write the rectangles in id order, like the aggregation job.
+ */
+public class LocalSpatialJoin {
+    public static final int DEFAULT_SPLIT_POINTS = 1 << 16;
+    private static final int CHUNK_BYTES = 16 << 20;
+
+    private final Configuration conf;
+    private final Partitioning partitioning;
+    private final SpatialMapper.MapRectangles.Window window;
+    private final String engine;
+    private final boolean aggregate;
+    private final int splitPoints;
+    private final ForkJoinPool pool;
+    private final List<StreamingJoin> joins = Collections.synchronizedList(new ArrayList<StreamingJoin>());
+    private final Deque<StreamingJoin> idleJoins = new ConcurrentLinkedDeque<>();
+
+    private LocalJoin.PointBuffer[] cellPoints;
+    private LocalJoin.RectangleBuffer[] cellRectangles;
+    private int[] cellBuilds;
+
+    LocalSpatialJoin(Configuration conf, Partitioning partitioning) {
+        this.conf = conf;
+        this.partitioning = partitioning;
+        this.window = SpatialMapper.MapRectangles.Window.parseWindowString(conf.get("window"));
+        this.engine = conf.get("join.engine", LocalJoin.DEFAULT_ENGINE);
+        this.aggregate = !"pairs".equals(conf.get("output.mode", "pairs"));
+        this.splitPoints = Math.max(1, conf.getInt("local.split.points", DEFAULT_SPLIT_POINTS));
+        this.pool = new ForkJoinPool(conf.getInt("local.threads", Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Joins the points and rectangles under the given local paths and writes the result to the output directory.
+     */
+    public static void run(Configuration conf, String points, String rectangles, String output) throws IOException {
+        List<String> blocks = "grid".equals(conf.get("partition.mode", "adaptive"))
+                ? DivideIntoBlocks.createBlocks(10000, 2500)
+                : AdaptivePartitioner.sampleTiles(conf, new Path(points), new Path(rectangles), conf.getInt(MRJobConfig.NUM_REDUCES, 1));
+        LocalSpatialJoin join = new LocalSpatialJoin(conf, Partitioning.fromBlocks(blocks));
+        try {
+            join.read(localPath(points), localPath(rectangles));
+            java.nio.file.Path directory = localPath(output);
+            Files.createDirectories(directory);
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(directory.resolve("part-r-00000")), 1 << 16)) {
+                join.write(out);
+            }
+            Files.createFile(directory.resolve("_SUCCESS"));
+        } finally {
+            join.close();
+        }
+    }
+
+    private static java.nio.file.Path localPath(String path) {
+        Path hadoopPath = new Path(path);
+        String scheme = hadoopPath.toUri().getScheme();
+        if (scheme != null && !scheme.equals("file")) {
+            throw new IllegalArgumentException("The local join only reads and writes local files: " + path);
+        }
+        return Paths.get(hadoopPath.toUri().getPath());
+    }
+
+    // ---------------------------------------------------------------------------------------------------------
+    // Reading
+
+    /**
+     * Parses both inputs into per-cell buffers, then sorts every cell in shuffle order: rectangles by
+     * (x1, y1, x2, y2, id), points by (x, y).
+     */
+    void read(java.nio.file.Path points, java.nio.file.Path rectangles) throws IOException {
+        List<ReadChunk> chunks = new ArrayList<>();
+        for (java.nio.file.Path file : inputFiles(points)) {
+            addChunks(file, false, chunks);
+        }
+        for (java.nio.file.Path file : inputFiles(rectangles)) {
+            addChunks(file, true, chunks);
+        }
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(chunks);
+            }
+        });
+
+        int cells = partitioning.size();
+        cellPoints = new LocalJoin.PointBuffer[cells];
+        cellRectangles = new LocalJoin.RectangleBuffer[cells];
+        parallel(IntStream.range(0, cells), c -> {
+            cellPoints[c] = new LocalJoin.PointBuffer();
+            cellRectangles[c] = new LocalJoin.RectangleBuffer();
+            for (ReadChunk chunk : chunks) {
+                if (chunk.points != null && chunk.points[c] != null) {
+                    LocalJoin.PointBuffer part = chunk.points[c];
+                    for (int i = 0; i < part.size; i++) {
+                        cellPoints[c].add(part.x[i], part.y[i]);
+                    }
+                }
+                if (chunk.rectangles != null && chunk.rectangles[c] != null) {
+                    LocalJoin.RectangleBuffer part = chunk.rectangles[c];
+                    for (int i = 0; i < part.size; i++) {
+                        cellRectangles[c].add(part.id[i], part.x1[i], part.y1[i], part.x2[i], part.y2[i]);
+                    }
+                }
+            }
+            sortPoints(cellPoints[c]);
+            sortRectangles(cellRectangles[c]);
+        });
+    }
+
+    /**
+     * Lists the data files of an input: the file itself, or the files of a directory that MapReduce would read,
+     * skipping names starting with "_" or "." such as the block indexes of {@link SpatialLayout}.
+     */
+    private static List<java.nio.file.Path> inputFiles(java.nio.file.Path input) throws IOException {
+        if (!Files.isDirectory(input)) {
+            return Collections.singletonList(input);
+        }
+        try (Stream<java.nio.file.Path> children = Files.list(input)) {
+            List<java.nio.file.Path> files = new ArrayList<>();
+            children.filter(file -> Files.isRegularFile(file)
+                    && !file.getFileName().toString().startsWith("_") && !file.getFileName().toString().startsWith("."))
+                    .sorted()
+                    .forEach(files::add);
+            return files;
+        }
+    }
+
+    /**
+     * Cuts a file into chunks of about CHUNK_BYTES that start and end on line boundaries.
+     */
+    private void addChunks(java.nio.file.Path file, boolean rectangles, List<ReadChunk> chunks) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long length = channel.size();
+            long start = 0;
+            while (start < length) {
+                long end = Math.min(length, start + CHUNK_BYTES);
+                while (end < length) {
+                    // Extend the chunk to the end of the line it stops in.
+                    MappedByteBuffer tail = channel.map(FileChannel.MapMode.READ_ONLY, end, Math.min(length - end, 1 << 16));
+                    int newline = -1;
+                    for (int i = 0; i < tail.limit() && newline < 0; i++) {
+                        if (tail.get(i) == '\n') {
+                            newline = i;
+                        }
+                    }
+                    if (newline >= 0) {
+                        end += newline + 1;
+                        break;
+                    }
+                    end += tail.limit();
+                }
+                chunks.add(new ReadChunk(file, start, end, rectangles));
+                start = end;
+            }
+        }
+    }
+
+    /**
+     * Parses the lines of one chunk like MapPoints or MapRectangles, into buffers of its own indexed by cell.
+     */
+    private final class ReadChunk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final java.nio.file.Path file;
+        private final long start;
+        private final long end;
+        private final boolean rectangleInput;
+        private LocalJoin.PointBuffer[] points;
+        private LocalJoin.RectangleBuffer[] rectangles;
+
+        ReadChunk(java.nio.file.Path file, long start, long end, boolean rectangleInput) {
+            this.file = file;
+            this.start = start;
+            this.end = end;
+            this.rectangleInput = rectangleInput;
+        }
+
+        @Override
+        protected void compute() {
+            byte[] bytes = new byte[(int) (end - start)];
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                channel.map(FileChannel.MapMode.READ_ONLY, start, bytes.length).get(bytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot read " + file, e);
+            }
+
+            CsvFields fields = new CsvFields();
+            SpatialRecord record = new SpatialRecord();
+            int[] cells = new int[partitioning.size()];
+            if (rectangleInput) {
+                rectangles = new LocalJoin.RectangleBuffer[partitioning.size()];
+            } else {
+                points = new LocalJoin.PointBuffer[partitioning.size()];
+            }
+            int lineStart = 0;
+            while (lineStart < bytes.length) {
+                int lineEnd = lineStart;
+                while (lineEnd < bytes.length && bytes[lineEnd] != '\n') {
+                    lineEnd++;
+                }
+                int length = lineEnd - lineStart;
+                if (length > 0 && !(length == 1 && bytes[lineStart] == '\r')) {
+                    fields.reset(bytes, lineStart, length);
+                    if (rectangleInput) {
+                        readRectangle(fields, record, cells);
+                    } else {
+                        readPoint(fields);
+                    }
+                }
+                lineStart = lineEnd + 1;
+            }
+        }
+
+        private void readPoint(CsvFields fields) {
+            int x = fields.nextInt();
+            int y = fields.nextInt();
+            if (x >= window.getX1() && x <= window.getX2() && y >= window.getY1() && y <= window.getY2()) {
+                int cell = partitioning.cellOf(x, y);
+                if (points[cell] == null) {
+                    points[cell] = new LocalJoin.PointBuffer();
+                }
+                points[cell].add(x, y);
+            }
+        }
+
+        private void readRectangle(CsvFields fields, SpatialRecord record, int[] cells) {
+            if (!SpatialMapper.MapRectangles.readRectangle(fields, window, record)) {
+                return;
+            }
+            int count = partitioning.overlapping(Math.max(record.getX1(), window.getX1()), Math.max(record.getY1(), window.getY1()),
+                    Math.min(record.getX2(), window.getX2()), Math.min(record.getY2(), window.getY2()), cells);
+            for (int i = 0; i < count; i++) {
+                if (rectangles[cells[i]] == null) {
+                    rectangles[cells[i]] = new LocalJoin.RectangleBuffer();
+                }
+                rectangles[cells[i]].add(record.getId(), record.getX1(), record.getY1(), record.getX2(), record.getY2());
+            }
+        }
+    }
+
+    /**
+     * Sorts points by x, then y, on packed keys whose order is the signed order of both coordinates.
+     */
+    static void sortPoints(LocalJoin.PointBuffer points) {
+        long[] keys = new long[points.size];
+        for (int i = 0; i < points.size; i++) {
+            keys[i] = ((long) points.x[i] << 32) | (points.y[i] ^ 0x80000000L) & 0xffffffffL;
+        }
+        Arrays.sort(keys);
+        for (int i = 0; i < points.size; i++) {
+            points.x[i] = (int) (keys[i] >> 32);
+            points.y[i] = (int) keys[i] ^ 0x80000000;
+        }
+    }
+
+    /**
+     * Sorts rectangles like {@link SpatialRecord#compareTo(SpatialRecord)}: on x1 through packed keys, then
+     * runs of equal x1 on the remaining fields.
+     */
+    static void sortRectangles(LocalJoin.RectangleBuffer rectangles) {
+        int size = rectangles.size;
+        long[] keys = new long[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = ((long) rectangles.x1[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = (int) keys[i];
+        }
+        for (int first = 0; first < size; ) {
+            int last = first + 1;
+            while (last < size && rectangles.x1[order[last]] == rectangles.x1[order[first]]) {
+                last++;
+            }
+            // Insertion sort of the tie run.
+            for (int i = first + 1; i < last; i++) {
+                int r = order[i];
+                int j = i - 1;
+                while (j >= first && compareTail(rectangles, order[j], r) > 0) {
+                    order[j + 1] = order[j];
+                    j--;
+                }
+                order[j + 1] = r;
+            }
+            first = last;
+        }
+
+        int[][] fields = {rectangles.id, rectangles.x1, rectangles.y1, rectangles.x2, rectangles.y2};
+        for (int[] field : fields) {
+            int[] copy = Arrays.copyOf(field, size);
+            for (int i = 0; i < size; i++) {
+                field[i] = copy[order[i]];
+            }
+        }
+    }
+
+    private static int compareTail(LocalJoin.RectangleBuffer rectangles, int a, int b) {
+        int c = Integer.compare(rectangles.y1[a], rectangles.y1[b]);
+        if (c == 0) c = Integer.compare(rectangles.x2[a], rectangles.x2[b]);
+        if (c == 0) c = Integer.compare(rectangles.y2[a], rectangles.y2[b]);
+        if (c == 0) c = Integer.compare(rectangles.id[a], rectangles.id[b]);
+        return c;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------
+    // Joining
+
+    /**
+     * Joins the cells in batches of a few cells per worker, writing the pairs of each batch in cell order
+     * before the next batch starts so that only one batch of output is held in memory. Aggregates are
+     * collected for all cells and merged by rectangle id at the end.
+     */
+    void write(OutputStream out) throws IOException {
+        cellBuilds = new int[partitioning.size()];
+        int batch = 4 * pool.getParallelism();
+        Aggregates partials = new Aggregates();
+        for (int first = 0; first < partitioning.size(); first += batch) {
+            CellTask[] tasks = new CellTask[Math.min(batch, partitioning.size() - first)];
+            for (int i = 0; i < tasks.length; i++) {
+                tasks[i] = new CellTask(first + i, 0, cellPoints[first + i].size);
+            }
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+            for (CellTask task : tasks) {
+                if (aggregate) {
+                    task.collect(partials);
+                } else {
+                    task.writeTo(out);
+                }
+            }
+        }
+        if (aggregate) {
+            partials.writeMerged(out, "count-mbr".equals(conf.get("output.mode")));
+        }
+    }
+
+    /**
+     * @return The number of times the rectangles of the cell were stored and indexed by {@link #write(OutputStream)}.
+     */
+    int builds(int cell) {
+        return cellBuilds[cell];
+    }
+
+    /**
+     * Joins the rectangles of a cell with the points [from, to) of the cell, splitting the range in two
+     * while it holds more than splitPoints points. The task of the whole cell stores and indexes its rectangles
+     * once, in a join taken from the idle ones, and the pieces probe that join with their own sweep state.
+     */
+    private final class CellTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int cell;
+        private final int from;
+        private final int to;
+        private CellTask left;
+        private CellTask right;
+        private ByteArrayOutputStream pairs;
+        private Aggregates aggregates;
+        private final StreamingJoin built;
+
+        CellTask(int cell, int from, int to) {
+            this(cell, from, to, null);
+        }
+
+        private CellTask(int cell, int from, int to, StreamingJoin built) {
+            this.cell = cell;
+            this.from = from;
+            this.to = to;
+            this.built = built;
+        }
+
+        @Override
+        protected void compute() {
+            if (built != null) {
+                joinPoints(built);
+                return;
+            }
+            if (from == to) {
+                return;
+            }
+            StreamingJoin cellJoin = idleJoins.poll();
+            if (cellJoin == null) {
+                cellJoin = new StreamingJoin(engine, partitioning,
+                        new RectangleStore(conf.getLong("reduce.rectangle.heap.bytes", SpatialReducer.DEFAULT_RECTANGLE_HEAP_BYTES), null));
+                joins.add(cellJoin);
+            }
+            try {
+                LocalJoin.RectangleBuffer rectangles = cellRectangles[cell];
+                cellJoin.startCell(cell);
+                for (int r = 0; r < rectangles.size; r++) {
+                    cellJoin.addRectangle(rectangles.id[r], rectangles.x1[r], rectangles.y1[r], rectangles.x2[r], rectangles.y2[r]);
+                }
+                cellJoin.prepare();
+                cellBuilds[cell]++;
+                joinPoints(cellJoin);
+            } catch (IOException e) {
+                throw new RuntimeException("Join of cell " + cell + " failed", e);
+            } finally {
+                idleJoins.push(cellJoin);
+            }
+        }
+
+        private void joinPoints(StreamingJoin cellJoin) {
+            if (to - from > splitPoints) {
+                int middle = (from + to) >>> 1;
+                left = new CellTask(cell, from, middle, cellJoin);
+                right = new CellTask(cell, middle, to, cellJoin);
+                ForkJoinTask.invokeAll(left, right);
+                return;
+            }
+            try {
+                joinRange(cellJoin.newProbe());
+            } catch (IOException | InterruptedException e) {
+                throw new RuntimeException("Join of cell " + cell + " failed", e);
+            }
+        }
+
+        private void joinRange(final StreamingJoin streamingJoin) throws IOException, InterruptedException {
+            final LocalJoin.PointBuffer points = cellPoints[cell];
+            final RectangleStore store = streamingJoin.getRectangles();
+            final int[] current = new int[1];
+            if (aggregate) {
+                final MatchAggregate.Accumulator accumulator = new MatchAggregate.Accumulator();
+                accumulator.reset(store.size());
+                LocalJoin.Collector collector = (point, rectangle) -> accumulator.add(rectangle, points.x[current[0]], points.y[current[0]]);
+                for (int p = from; p < to; p++) {
+                    current[0] = p;
+                    streamingJoin.probe(points.x[p], points.y[p], collector);
+                }
+                aggregates = new Aggregates();
+                for (int r = 0; r < store.size(); r++) {
+                    if (accumulator.count[r] > 0) {
+                        aggregates.add(store.id(r), accumulator.count[r], accumulator.minX[r], accumulator.minY[r],
+                                accumulator.maxX[r], accumulator.maxY[r]);
+                    }
+                }
+                return;
+            }
+            pairs = new ByteArrayOutputStream();
+            final MatchText line = new MatchText();
+            LocalJoin.Collector collector = (point, rectangle) -> {
+                // Same bytes as TextOutputFormat writing the "rN" and "(x,y)" Texts of SpatialJoinReduce.
+                line.clear().id('r', store.id(rectangle)).append('\t').point(points.x[current[0]], points.y[current[0]]).append('\n')
+                        .writeTo(pairs);
+            };
+            for (int p = from; p < to; p++) {
+                current[0] = p;
+                streamingJoin.probe(points.x[p], points.y[p], collector);
+            }
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            if (left != null) {
+                left.writeTo(out);
+                right.writeTo(out);
+            } else if (pairs != null) {
+                pairs.writeTo(out);
+            }
+        }
+
+        void collect(Aggregates all) {
+            if (left != null) {
+                left.collect(all);
+                right.collect(all);
+            } else if (aggregates != null) {
+                all.addAll(aggregates);
+            }
+        }
+    }
+
+    /**
+     * Partial per-rectangle aggregates in primitive arrays, merged by rectangle id for the output.
+     */
+    private static final class Aggregates {
+        private int size;
+        private int[] id = new int[16];
+        private long[] count = new long[16];
+        private int[] minX = new int[16];
+        private int[] minY = new int[16];
+        private int[] maxX = new int[16];
+        private int[] maxY = new int[16];
+
+        void add(int rid, long matches, int x1, int y1, int x2, int y2) {
+            if (size == id.length) {
+                int capacity = size * 2;
+                id = Arrays.copyOf(id, capacity);
+                count = Arrays.copyOf(count, capacity);
+                minX = Arrays.copyOf(minX, capacity);
+                minY = Arrays.copyOf(minY, capacity);
+                maxX = Arrays.copyOf(maxX, capacity);
+                maxY = Arrays.copyOf(maxY, capacity);
+            }
+            id[size] = rid;
+            count[size] = matches;
+            minX[size] = x1;
+            minY[size] = y1;
+            maxX[size] = x2;
+            maxY[size] = y2;
+            size++;
+        }
+
+        void addAll(Aggregates other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.id[i], other.count[i], other.minX[i], other.minY[i], other.maxX[i], other.maxY[i]);
+            }
+        }
+
+        /**
+         * Writes "rN\tcount" lines, with the bounding box if requested, in increasing id like AggregateReduce.
+         */
+        void writeMerged(OutputStream out, boolean withBoundingBox) throws IOException {
+            long[] keys = new long[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = ((long) id[i] << 32) | i;
+            }
+            Arrays.sort(keys);
+            MatchAggregate total = new MatchAggregate();
+            MatchAggregate partial = new MatchAggregate();
+            for (int first = 0; first < size; ) {
+                int rid = (int) (keys[first] >> 32);
+                total.clear();
+                int last = first;
+                for (; last < size && (int) (keys[last] >> 32) == rid; last++) {
+                    int i = (int) keys[last];
+                    partial.set(count[i], minX[i], minY[i], maxX[i], maxY[i]);
+                    total.merge(partial);
+                }
+                out.write(("r" + rid + "\t" + total.format(withBoundingBox) + "\n").getBytes(StandardCharsets.UTF_8));
+                first = last;
+            }
+        }
+    }
+
+    private void parallel(IntStream range, IntConsumer action) throws IOException {
+        try {
+            pool.submit(() -> range.parallel().forEach(action)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    void close() throws IOException {
+        pool.shutdown();
+        for (StreamingJoin streamingJoin : joins) {
+            streamingJoin.close();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Partial aggregate of the points matched by one rectangle: their number and bounding box.
+ * Aggregates of the same rectangle coming from different cells or tasks are combined with {@link #merge(MatchAggregate)}.
+ */
+public class MatchAggregate implements Writable {
+    private long count;
+    private int minX;
+    private int minY;
+    private int maxX;
+    private int maxY;
+
+    public MatchAggregate() {
+        clear();
+    }
+
+    public void clear() {
+        count = 0;
+        minX = Integer.MAX_VALUE;
+        minY = Integer.MAX_VALUE;
+        maxX = Integer.MIN_VALUE;
+        maxY = Integer.MIN_VALUE;
+    }
+
+    public void set(long count, int minX, int minY, int maxX, int maxY) {
+        this.count = count;
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+    }
+
+    public void merge(MatchAggregate other) {
+        count += other.count;
+        minX = Math.min(minX, other.minX);
+        minY = Math.min(minY, other.minY);
+        maxX = Math.max(maxX, other.maxX);
+        maxY = Math.max(maxY, other.maxY);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Formats the aggregate for the job output: "count", or "count,(minX,minY),(maxX,maxY)" with the bounding box.
+     */
+    public String format(boolean withBoundingBox) {
+        if (!withBoundingBox) {
+            return Long.toString(count);
+        }
+        return count + ",(" + minX + "," + minY + "),(" + maxX + "," + maxY + ")";
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        WritableUtils.writeVLong(out, count);
+        out.writeInt(minX);
+        out.writeInt(minY);
+        out.writeInt(maxX);
+        out.writeInt(maxY);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        count = WritableUtils.readVLong(in);
+        minX = in.readInt();
+        minY = in.readInt();
+        maxX = in.readInt();
+        maxY = in.readInt();
+    }
+
+    @Override
+    public String toString() {
+        return format(true);
+    }
+
+    /**
+     * Per-rectangle aggregates of one cell or task, indexed like a {@link LocalJoin.RectangleBuffer}.
+     */
+    public static class Accumulator {
+        public int[] count = new int[16];
+        public int[] minX = new int[16];
+        public int[] minY = new int[16];
+        public int[] maxX = new int[16];
+        public int[] maxY = new int[16];
+
+        /**
+         * Resets the aggregates of the first {@code size} rectangles.
+         */
+        public void reset(int size) {
+            if (count.length < size) {
+                count = new int[size];
+                minX = new int[size];
+                minY = new int[size];
+                maxX = new int[size];
+                maxY = new int[size];
+            }
+            for (int r = 0; r < size; r++) {
+                count[r] = 0;
+                minX[r] = Integer.MAX_VALUE;
+                minY[r] = Integer.MAX_VALUE;
+                maxX[r] = Integer.MIN_VALUE;
+                maxY[r] = Integer.MIN_VALUE;
+            }
+        }
+
+        public void add(int rectangle, int x, int y) {
+            count[rectangle]++;
+            minX[rectangle] = Math.min(minX[rectangle], x);
+            minY[rectangle] = Math.min(minY[rectangle], y);
+            maxX[rectangle] = Math.max(maxX[rectangle], x);
+            maxY[rectangle] = Math.max(maxY[rectangle], y);
+        }
+
+        public void get(int rectangle, MatchAggregate aggregate) {
+            aggregate.set(count[rectangle], minX[rectangle], minY[rectangle], maxX[rectangle], maxY[rectangle]);
+        }
+    }
+}
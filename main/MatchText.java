@@ -0,0 +1,90 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * Formats the fields of an output line of the join as ASCII bytes in a reused buffer, without building Strings:
+ * ids such as "r12" or "w3", points "(x,y)" like {@link SpatialReducer.Point#toString()}, and separators.
+ * The reducers and mappers copy the bytes into their output Texts; the local join writes them to its output
+ * stream, so both produce the same lines.
+ */
+public class MatchText {
+    private byte[] bytes = new byte[64];
+    private int length;
+
+    /**
+     * Empties the buffer and returns it for chaining.
+     */
+    public MatchText clear() {
+        length = 0;
+        return this;
+    }
+
+    /**
+     * Appends an id with its one-letter prefix, such as "r12".
+     */
+    public MatchText id(char prefix, int id) {
+        return append(prefix).number(id);
+    }
+
+    /**
+     * Appends a point as "(x,y)".
+     */
+    public MatchText point(int x, int y) {
+        return append('(').number(x).append(',').number(y).append(')');
+    }
+
+    public MatchText append(char c) {
+        ensure(1);
+        bytes[length++] = (byte) c;
+        return this;
+    }
+
+    /**
+     * Appends the decimal digits of the number, with a minus sign if it is negative.
+     */
+    public MatchText number(int number) {
+        long value = number;
+        ensure(11);
+        if (value < 0) {
+            bytes[length++] = '-';
+            value = -value;
+        }
+        int start = length;
+        do {
+            bytes[length++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        for (int i = start, j = length - 1; i < j; i++, j--) {
+            byte digit = bytes[i];
+            bytes[i] = bytes[j];
+            bytes[j] = digit;
+        }
+        return this;
+    }
+
+    /**
+     * Copies the buffer into the text.
+     */
+    public void set(Text text) {
+        text.set(bytes, 0, length);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, 0, length);
+    }
+
+    private void ensure(int extra) {
+        if (length + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, 0, length, StandardCharsets.US_ASCII);
+    }
+}
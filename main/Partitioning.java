@@ -0,0 +1,201 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Primitive-array view of the grid blocks created by {@link DivideIntoBlocks} or {@link AdaptivePartitioner}.
+ *
+ * Both produce slab tilings: consecutive blocks sharing the same x range form a vertical slab and
+ * are stacked on y inside it. This lets a point be located with two binary searches instead of a
+ * scan over every block. Cells are numbered 0..size-1 in block order.
+ *
+ * A point on the border between two cells belongs to the first of them in block order, the same
+ * rule the mappers use when they route each point to a single cell. That rule is what decides which
+ * cell reports a (rectangle, point) pair when a pair shows up in more than one cell.
+ *
+ * When the blocks form a regular grid, such as the one from {@link DivideIntoBlocks#createBlocks(Integer, Integer)},
+ * cells are located with a division instead of a binary search.
+ */
+public class Partitioning {
+    private final String[] names;
+    private final int[] xBounds;
+    private final int[][] yBounds;
+    private final int[] slabFirstCell;
+    private final Map<String, Integer> cellIndex = new HashMap<>();
+
+    // Regular grid shortcut: step sizes and counts, or 0 when the tiling is not regular.
+    private final int xStep;
+    private final int yStep;
+    private final int rows;
+
+    private Partitioning(String[] names, int[] xBounds, int[][] yBounds, int[] slabFirstCell) {
+        this.names = names;
+        this.xBounds = xBounds;
+        this.yBounds = yBounds;
+        this.slabFirstCell = slabFirstCell;
+        for (int i = 0; i < names.length; i++) {
+            cellIndex.put(names[i], i);
+        }
+
+        int[] firstRows = yBounds[0];
+        boolean regular = isEvenlySpaced(xBounds) && isEvenlySpaced(firstRows);
+        for (int slab = 0; slab < yBounds.length && regular; slab++) {
+            regular = Arrays.equals(yBounds[slab], firstRows) && slabFirstCell[slab] == slab * (firstRows.length - 1);
+        }
+        this.xStep = regular ? xBounds[1] - xBounds[0] : 0;
+        this.yStep = regular ? firstRows[1] - firstRows[0] : 0;
+        this.rows = firstRows.length - 1;
+    }
+
+    private static boolean isEvenlySpaced(int[] bounds) {
+        int step = bounds[1] - bounds[0];
+        if (step <= 0) {
+            return false;
+        }
+        for (int i = 2; i < bounds.length; i++) {
+            if (bounds[i] - bounds[i - 1] != step) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds the partitioning from blocks in the format "gX,X1,Y1,X2,Y2".
+     * @throws IllegalArgumentException if the blocks are not a slab tiling.
+     */
+    public static Partitioning fromBlocks(List<String> blocks) {
+        int size = blocks.size();
+        String[] names = new String[size];
+        int[] xBounds = new int[size + 1];
+        int[][] yBounds = new int[size][];
+        int[] slabFirstCell = new int[size];
+        int[] slabY = new int[size + 1];
+        int slabs = 0;
+        int tiles = 0;
+
+        for (int i = 0; i < size; i++) {
+            String[] gridDef = blocks.get(i).split(",");
+            names[i] = gridDef[0];
+            int x1 = Integer.parseInt(gridDef[1]);
+            int y1 = Integer.parseInt(gridDef[2]);
+            int x2 = Integer.parseInt(gridDef[3]);
+            int y2 = Integer.parseInt(gridDef[4]);
+
+            if (slabs > 0 && x1 == xBounds[slabs - 1] && x2 == xBounds[slabs]) {
+                // Next tile of the current slab.
+                if (y1 != slabY[tiles]) {
+                    throw new IllegalArgumentException("Block " + blocks.get(i) + " does not continue its slab");
+                }
+                slabY[++tiles] = y2;
+                continue;
+            }
+            if (slabs > 0) {
+                yBounds[slabs - 1] = Arrays.copyOf(slabY, tiles + 1);
+                if (x1 != xBounds[slabs]) {
+                    throw new IllegalArgumentException("Block " + blocks.get(i) + " does not start where the previous slab ends");
+                }
+            } else {
+                xBounds[0] = x1;
+            }
+            slabFirstCell[slabs] = i;
+            xBounds[++slabs] = x2;
+            tiles = 0;
+            slabY[0] = y1;
+            slabY[++tiles] = y2;
+        }
+        if (slabs == 0) {
+            throw new IllegalArgumentException("No grid blocks");
+        }
+        yBounds[slabs - 1] = Arrays.copyOf(slabY, tiles + 1);
+
+        return new Partitioning(names, Arrays.copyOf(xBounds, slabs + 1), Arrays.copyOf(yBounds, slabs), Arrays.copyOf(slabFirstCell, slabs));
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Returns the block id ("gX") of a cell.
+     */
+    public String name(int cell) {
+        return names[cell];
+    }
+
+    /**
+     * Returns the cell with the given block id, or -1 if there is none.
+     */
+    public int cellIndex(String name) {
+        Integer cell = cellIndex.get(name);
+        return cell == null ? -1 : cell;
+    }
+
+    /**
+     * Returns the cell owning the point. Points outside the partitioned space are clamped to the
+     * nearest cell.
+     */
+    public int cellOf(int x, int y) {
+        if (xStep > 0) {
+            return step(xBounds, xStep, x) * rows + step(yBounds[0], yStep, y);
+        }
+        int slab = locate(xBounds, x);
+        return slabFirstCell[slab] + locate(yBounds[slab], y);
+    }
+
+    /**
+     * Writes to {@code cells} every cell that may own a point of the rectangle (minX,minY)-(maxX,maxY),
+     * in block order.
+     * @param cells Output array, at least {@link #size()} long.
+     * @return The number of cells written.
+     */
+    public int overlapping(int minX, int minY, int maxX, int maxY, int[] cells) {
+        int count = 0;
+        if (xStep > 0) {
+            int firstRow = step(yBounds[0], yStep, minY);
+            int lastRow = step(yBounds[0], yStep, maxY);
+            for (int slab = step(xBounds, xStep, minX), lastSlab = step(xBounds, xStep, maxX); slab <= lastSlab; slab++) {
+                for (int row = firstRow; row <= lastRow; row++) {
+                    cells[count++] = slab * rows + row;
+                }
+            }
+            return count;
+        }
+        for (int slab = locate(xBounds, minX), lastSlab = locate(xBounds, maxX); slab <= lastSlab; slab++) {
+            int[] slabRows = yBounds[slab];
+            for (int row = locate(slabRows, minY), lastRow = locate(slabRows, maxY); row <= lastRow; row++) {
+                cells[count++] = slabFirstCell[slab] + row;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Same as {@link #locate(int[], int)} for evenly spaced bounds.
+     */
+    private static int step(int[] bounds, int step, int value) {
+        if (value <= bounds[0]) {
+            return 0;
+        }
+        return Math.min((int) (((long) value - bounds[0] - 1) / step), bounds.length - 2);
+    }
+
+    /**
+     * Returns the range k of bounds[k..k+1] holding the value, ranges being closed on the right so
+     * that a value on a boundary belongs to the range before it: [b0,b1], (b1,b2], ... (bn-1,bn].
+     */
+    private static int locate(int[] bounds, int value) {
+        int low = 0;
+        int high = bounds.length - 2;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (bounds[mid] < value) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,184 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Append-only store of the rectangles of one grid cell, kept in primitive arrays until it outgrows a heap budget
+ * and then moved to a memory-mapped temporary file.
+ *
+ * Each rectangle takes 20 bytes: id, x1, y1, x2, y2. Past the budget the records are copied to the file in
+ * fixed-size mapped segments and the arrays are released, so the page cache rather than the task heap holds
+ * the rectangles of oversized cells. The file is reused by the following cells and deleted on {@link #close()}.
+ */
+public class RectangleStore implements Closeable {
+    private static final int RECORD_BYTES = 20;
+    private static final int SEGMENT_SHIFT = 22;
+    private static final int SEGMENT_RECORDS = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_RECORDS - 1;
+
+    private final long heapBudget;
+    private final File spillDir;
+
+    private int[] id = new int[16];
+    private int[] x1 = new int[16];
+    private int[] y1 = new int[16];
+    private int[] x2 = new int[16];
+    private int[] y2 = new int[16];
+    private int size;
+
+    private File spillFile;
+    private FileChannel channel;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private boolean spilled;
+
+    /**
+     * @param heapBudget Maximum number of bytes of rectangle data kept on the heap.
+     * @param spillDir   Directory of the temporary file, or null for the default temporary directory.
+     */
+    public RectangleStore(long heapBudget, File spillDir) {
+        this.heapBudget = heapBudget;
+        this.spillDir = spillDir;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if the rectangles of the current cell live in the mapped file instead of the arrays.
+     */
+    public boolean isSpilled() {
+        return spilled;
+    }
+
+    /**
+     * Empties the store for the next cell. The arrays come back to the heap; the file is kept for reuse.
+     */
+    public void clear() {
+        size = 0;
+        if (spilled) {
+            spilled = false;
+            id = new int[16];
+            x1 = new int[16];
+            y1 = new int[16];
+            x2 = new int[16];
+            y2 = new int[16];
+        }
+    }
+
+    public void add(int rid, int rx1, int ry1, int rx2, int ry2) throws IOException {
+        if (!spilled && size == id.length) {
+            if ((long) size * 2 * RECORD_BYTES > heapBudget) {
+                spill();
+            } else {
+                int capacity = size * 2;
+                id = Arrays.copyOf(id, capacity);
+                x1 = Arrays.copyOf(x1, capacity);
+                y1 = Arrays.copyOf(y1, capacity);
+                x2 = Arrays.copyOf(x2, capacity);
+                y2 = Arrays.copyOf(y2, capacity);
+            }
+        }
+        if (spilled) {
+            MappedByteBuffer segment = segment(size);
+            int offset = (size & SEGMENT_MASK) * RECORD_BYTES;
+            segment.putInt(offset, rid);
+            segment.putInt(offset + 4, rx1);
+            segment.putInt(offset + 8, ry1);
+            segment.putInt(offset + 12, rx2);
+            segment.putInt(offset + 16, ry2);
+        } else {
+            id[size] = rid;
+            x1[size] = rx1;
+            y1[size] = ry1;
+            x2[size] = rx2;
+            y2[size] = ry2;
+        }
+        size++;
+    }
+
+    public int id(int r) {
+        return spilled ? field(r, 0) : id[r];
+    }
+
+    public int x1(int r) {
+        return spilled ? field(r, 4) : x1[r];
+    }
+
+    public int y1(int r) {
+        return spilled ? field(r, 8) : y1[r];
+    }
+
+    public int x2(int r) {
+        return spilled ? field(r, 12) : x2[r];
+    }
+
+    public int y2(int r) {
+        return spilled ? field(r, 16) : y2[r];
+    }
+
+    /**
+     * Returns the coordinate arrays {x1, y1, x2, y2} of an in-heap store, for engines that index them directly.
+     * @throws IllegalStateException if the store has spilled.
+     */
+    public int[][] arrays() {
+        if (spilled) {
+            throw new IllegalStateException("Rectangle store has spilled to disk");
+        }
+        return new int[][]{x1, y1, x2, y2};
+    }
+
+    private int field(int r, int offset) {
+        return segments.get(r >>> SEGMENT_SHIFT).getInt((r & SEGMENT_MASK) * RECORD_BYTES + offset);
+    }
+
+    /**
+     * Moves the records held in the arrays to the mapped file.
+     */
+    private void spill() throws IOException {
+        if (channel == null) {
+            spillFile = File.createTempFile("rectangles", ".spill", spillDir);
+            spillFile.deleteOnExit();
+            channel = new RandomAccessFile(spillFile, "rw").getChannel();
+        }
+        for (int r = 0; r < size; r++) {
+            MappedByteBuffer segment = segment(r);
+            int offset = (r & SEGMENT_MASK) * RECORD_BYTES;
+            segment.putInt(offset, id[r]);
+            segment.putInt(offset + 4, x1[r]);
+            segment.putInt(offset + 8, y1[r]);
+            segment.putInt(offset + 12, x2[r]);
+            segment.putInt(offset + 16, y2[r]);
+        }
+        spilled = true;
+        id = x1 = y1 = x2 = y2 = null;
+    }
+
+    private MappedByteBuffer segment(int r) throws IOException {
+        int index = r >>> SEGMENT_SHIFT;
+        while (segments.size() <= index) {
+            long position = (long) segments.size() * SEGMENT_RECORDS * RECORD_BYTES;
+            segments.add(channel.map(FileChannel.MapMode.READ_WRITE, position, (long) SEGMENT_RECORDS * RECORD_BYTES));
+        }
+        return segments.get(index);
+    }
+
+    @Override
+    public void close() throws IOException {
+        segments.clear();
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        if (spillFile != null) {
+            spillFile.delete();
+            spillFile = null;
+        }
+    }
+}
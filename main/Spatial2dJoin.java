@@ -1,14 +1,25 @@
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.MultipleInputs;
-import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
 
 public class Spatial2dJoin {
 
@@ -20,33 +31,252 @@ public class Spatial2dJoin {
     public void debugSpatial2dJoin (String[] args) throws IOException, InterruptedException, ClassNotFoundException {
         Configuration conf = new Configuration();
 
-        // Set the window configuration parameter
-        conf.set("window",args[3]);
+        // Pick up generic options such as -D join.engine=rtree before the positional arguments
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
 
-        // Instantiate a new MapReduce job object
-        Job job = Job.getInstance(conf, "Spatial2dJoin");
+        // Set the window configuration parameter. A batch of windows, separated by ';' or one per line of windows.file,
+        // is joined in one repartition job over their bounding box, each result keyed by its window id.
+        String windows = conf.get("windows.file") != null ? readWindows(conf, new Path(conf.get("windows.file"))) : args[3];
+        if (windows.contains(";") || conf.get("windows.file") != null) {
+            if (!"pairs".equals(conf.get("output.mode", "pairs")) || !conf.get("join.mode", "auto").matches("auto|repartition")) {
+                throw new IllegalArgumentException("A batch of windows needs join.mode=repartition and output.mode=pairs");
+            }
+            conf.set("windows", windows);
+            conf.set("window", WindowIndex.parse(windows).boundingBox());
+            conf.set("join.mode", "repartition");
+        } else {
+            conf.set("window", windows);
+        }
+
+        // Set the local join engine used by the reducers: sweep (default), rtree or nested
+        conf.set("join.engine", conf.get("join.engine", LocalJoin.DEFAULT_ENGINE));
+
+        // Set the output mode: every (rectangle, point) pair (default), or per-rectangle match counts, optionally with the MBR of the matched points
+        conf.set("output.mode", conf.get("output.mode", "pairs"));
+        if (!conf.get("output.mode").matches("pairs|count|count-mbr")) {
+            throw new IllegalArgumentException("Unknown output.mode: " + conf.get("output.mode"));
+        }
+
+        // Set the join predicate: points in rectangles (default), overlapping rectangles, or points within join.distance of each other
+        JoinPredicate predicate = JoinPredicate.of(conf);
+        predicate.expansion(conf);
+        if (predicate != JoinPredicate.CONTAINS) {
+            if (!"pairs".equals(conf.get("output.mode")) || conf.get("windows") != null
+                    || !conf.get("join.mode", "auto").matches("auto|repartition")) {
+                throw new IllegalArgumentException("join.predicate=" + conf.get("join.predicate")
+                        + " needs join.mode=repartition, output.mode=pairs and a single window");
+            }
+            // MultipleInputs keeps one mapper per path, so a self-join needs a copy of the input
+            if (new Path(args[0]).equals(new Path(args[1]))) {
+                throw new IllegalArgumentException("join.predicate=" + conf.get("join.predicate") + " needs two different input paths");
+            }
+            conf.set("join.mode", "repartition");
+        }
 
         // Delete output directory if it already exists
         FileSystem.get(conf).delete(new Path(args[2]), true);
 
+        // Run the repartition join in this JVM without MapReduce when the inputs fit on one machine
+        if ("local".equals(conf.get("join.mode"))) {
+            if (ColumnarLayout.isColumnar(conf, new Path(args[0])) || ColumnarLayout.isColumnar(conf, new Path(args[1]))) {
+                throw new IllegalArgumentException("join.mode=local reads CSV inputs only");
+            }
+            LocalSpatialJoin.run(conf, args[0], args[1], args[2]);
+            return;
+        }
+
+        // Broadcast the rectangles to the point mappers when few of them fall in the window, otherwise repartition both inputs
+        if (JoinPlanner.useBroadcast(conf, new Path(args[1]))) {
+            runBroadcastJoin(conf, args);
+        } else {
+            runRepartitionJoin(conf, args);
+        }
+    }
+
+    /**
+     * Reads the windows of a batch, one "x1,y1,x2,y2" per line, and returns them separated by ';'.
+     */
+    private static String readWindows(Configuration conf, Path file) throws IOException {
+        StringBuilder windows = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(file.getFileSystem(conf).open(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    windows.append(windows.length() == 0 ? "" : ";").append(line.trim());
+                }
+            }
+        }
+        return windows.toString();
+    }
+
+    /**
+     * Joins the inputs by sending points and rectangles to SpatialJoinReduce grouped by grid cell, the rectangles
+     * of a cell ahead of its points so the reducer only holds the rectangles.
+     */
+    private void runRepartitionJoin(Configuration conf, String[] args) throws IOException, InterruptedException, ClassNotFoundException {
+        // Instantiate a new MapReduce job object
+        Job job = Job.getInstance(conf, "Spatial2dJoin");
+        job.setNumReduceTasks(conf.getInt("join.reducers", job.getNumReduceTasks()));
+
+        // Partition the window into STR tiles sampled from both inputs (default), or use the fixed 4x4 grid
+        if (!"grid".equals(conf.get("partition.mode", "adaptive"))) {
+            AdaptivePartitioner.createPartitionFile(job, new Path(args[0]), new Path(args[1]), new Path(args[2]).suffix(".partitions"));
+        }
+
+        // Split the hot cells found by partition.skew over several reducers
+        List<String> blocks = DivideIntoBlocks.loadBlocks(job.getConfiguration());
+        long[][] counts = HotCells.configure(job.getConfiguration(), new Path(args[0]), new Path(args[1]), blocks, job.getNumReduceTasks());
+
+        // Pack the cells on the reducers by estimated join cost (default), or send them by cell index
+        String assignment = conf.get("partition.assignment", "cost");
+        if (!assignment.matches("cost|hash")) {
+            throw new IllegalArgumentException("Unknown partition.assignment: " + assignment);
+        }
+        if (assignment.equals("cost") && job.getNumReduceTasks() > 1) {
+            // An assignment given in partition.reducer.assignment is used as is, without counting the cells.
+            if (job.getConfiguration().get("partition.reducer.assignment") == null) {
+                if (counts == null) {
+                    counts = HotCells.sampleCounts(conf, new Path(args[0]), new Path(args[1]), Partitioning.fromBlocks(blocks));
+                }
+                CostPartitioner.configure(job.getConfiguration(), counts, HotCells.salts(job.getConfiguration(), blocks.size()), job.getNumReduceTasks());
+            }
+            job.setPartitionerClass(CostPartitioner.class);
+        } else {
+            job.setPartitionerClass(CellKey.CellPartitioner.class);
+        }
+
         // job attributes
         job.setJarByClass(Spatial2dJoin.class);
         job.setJobName("Spatial2dJoin");
-        job.setMapOutputKeyClass(Text.class);
-        job.setMapOutputValueClass(Text.class);
-        job.setOutputKeyClass(Text.class);
-        job.setOutputValueClass(Text.class);
-        job.setInputFormatClass(TextInputFormat.class);
-        job.setOutputFormatClass(TextOutputFormat.class);
-        job.setReducerClass(SpatialReducer.SpatialJoinReduce.class);
+        job.setMapOutputKeyClass(CellKey.class);
+        job.setMapOutputValueClass(NullWritable.class);
+        job.setInputFormatClass(WindowInputFormat.class);
+
+        // Secondary sort: one reduce group per cell, build records (rectangles) first sorted by x1, then probe records (points) sorted by x
+        job.setGroupingComparatorClass(CellKey.GroupingComparator.class);
+        if (isAggregate(conf)) {
+            // Partial per-rectangle aggregates of every cell, merged by a second job
+            job.setOutputKeyClass(IntWritable.class);
+            job.setOutputValueClass(MatchAggregate.class);
+            job.setOutputFormatClass(SequenceFileOutputFormat.class);
+            job.setReducerClass(SpatialReducer.SpatialAggregateReduce.class);
+        } else {
+            job.setOutputKeyClass(Text.class);
+            job.setOutputValueClass(Text.class);
+            job.setOutputFormatClass(TextOutputFormat.class);
+            job.setReducerClass(SpatialReducer.SpatialJoinReduce.class);
+        }
 
-        // input paths for points and rectangles files
-        MultipleInputs.addInputPath(job, new Path(args[0]), TextInputFormat.class, SpatialMapper.MapPoints.class);
-        MultipleInputs.addInputPath(job, new Path(args[1]), TextInputFormat.class, SpatialMapper.MapRectangles.class);
+        // input paths for points and rectangles files; datasets written by SpatialLayout or ColumnarLayout only get splits for the blocks inside the window
+        JoinPredicate predicate = JoinPredicate.of(conf);
+        MultipleInputs.addInputPath(job, new Path(args[0]), ColumnarInputFormat.forPath(conf, new Path(args[0])),
+                predicate.probesPoints() ? SpatialMapper.MapPoints.class : SpatialMapper.MapProbeRectangles.class);
+        MultipleInputs.addInputPath(job, new Path(args[1]), ColumnarInputFormat.forPath(conf, new Path(args[1])),
+                predicate.buildsRectangles() ? SpatialMapper.MapRectangles.class : SpatialMapper.MapBuildPoints.class);
 
         // Set output path
-        FileOutputFormat.setOutputPath(job, new Path(args[2]));
+        if (!isAggregate(conf)) {
+            FileOutputFormat.setOutputPath(job, new Path(args[2]));
+            if (job.waitForCompletion(true)) {
+                long[][] cellCounts = writeCellStats(job, new Path(args[2]), blocks);
+                JoinMetrics.report(job.getCounters(), blocks, cellCounts, System.out);
+            }
+            return;
+        }
 
+        Path partials = new Path(args[2]).suffix(".matches");
+        partials.getFileSystem(conf).delete(partials, true);
+        FileOutputFormat.setOutputPath(job, partials);
+        if (!job.waitForCompletion(true)) {
+            throw new IOException("Spatial join job failed");
+        }
+        long[][] cellCounts = writeCellStats(job, partials, blocks);
+        JoinMetrics.report(job.getCounters(), blocks, cellCounts, System.out);
+
+        // Second stage: merge the partial aggregates of each rectangle, with a combiner on the map side
+        Job aggregate = Job.getInstance(conf, "Spatial2dJoin-Aggregate");
+        aggregate.setJarByClass(Spatial2dJoin.class);
+        aggregate.setInputFormatClass(SequenceFileInputFormat.class);
+        aggregate.setMapOutputKeyClass(IntWritable.class);
+        aggregate.setMapOutputValueClass(MatchAggregate.class);
+        aggregate.setCombinerClass(SpatialReducer.AggregateCombine.class);
+        aggregate.setReducerClass(SpatialReducer.AggregateReduce.class);
+        aggregate.setOutputKeyClass(Text.class);
+        aggregate.setOutputValueClass(Text.class);
+        aggregate.setOutputFormatClass(TextOutputFormat.class);
+        FileInputFormat.addInputPath(aggregate, partials);
+        FileOutputFormat.setOutputPath(aggregate, new Path(args[2]));
+        if (aggregate.waitForCompletion(true)) {
+            partials.getFileSystem(conf).delete(partials, true);
+        }
+    }
+
+    /**
+     * Collects the per-cell record counts the mappers left in the output directory, and writes them to
+     * "partition.stats.file" when it is set, for a later run with partition.skew=stats.
+     * @return The counts, or null if the mappers did not count the cells.
+     */
+    private static long[][] writeCellStats(Job job, Path output, List<String> blocks) throws IOException {
+        long[][] counts = HotCells.readCounts(job.getConfiguration(), output, blocks.size());
+        String stats = job.getConfiguration().get("partition.stats.file");
+        if (stats != null && counts != null) {
+            HotCells.writeStats(job.getConfiguration(), new Path(stats), blocks, counts);
+        }
+        return counts;
+    }
+
+    private static boolean isAggregate(Configuration conf) {
+        return !"pairs".equals(conf.get("output.mode", "pairs"));
+    }
+
+    /**
+     * Joins the inputs without a shuffle of the points: a map-only job writes the rectangles intersecting the
+     * window to a side directory, and a second job loads them in every point mapper from the distributed cache.
+     * The second job is map-only unless the output is aggregated.
+     */
+    private void runBroadcastJoin(Configuration conf, String[] args) throws IOException, InterruptedException, ClassNotFoundException {
+        Path filtered = new Path(args[2]).suffix(".broadcast");
+        FileSystem fs = filtered.getFileSystem(conf);
+        fs.delete(filtered, true);
+
+        Job filter = Job.getInstance(conf, "Spatial2dJoin-FilterRectangles");
+        filter.setJarByClass(Spatial2dJoin.class);
+        filter.setMapperClass(SpatialMapper.FilterRectangles.class);
+        filter.setNumReduceTasks(0);
+        filter.setInputFormatClass(ColumnarInputFormat.forPath(conf, new Path(args[1])));
+        filter.setOutputKeyClass(NullWritable.class);
+        filter.setOutputValueClass(SpatialRecord.class);
+        filter.setOutputFormatClass(SequenceFileOutputFormat.class);
+        FileInputFormat.addInputPath(filter, new Path(args[1]));
+        FileOutputFormat.setOutputPath(filter, filtered);
+        if (!filter.waitForCompletion(true)) {
+            throw new IOException("Rectangle filter job failed");
+        }
+
+        Job job = Job.getInstance(conf, "Spatial2dJoin-Broadcast");
+        job.setJarByClass(Spatial2dJoin.class);
+        job.setInputFormatClass(ColumnarInputFormat.forPath(conf, new Path(args[0])));
+        if (isAggregate(conf)) {
+            // Each mapper aggregates the matches of its split, the combiner and reducer merge them per rectangle
+            job.setMapperClass(SpatialMapper.BroadcastAggregatePoints.class);
+            job.setMapOutputKeyClass(IntWritable.class);
+            job.setMapOutputValueClass(MatchAggregate.class);
+            job.setCombinerClass(SpatialReducer.AggregateCombine.class);
+            job.setReducerClass(SpatialReducer.AggregateReduce.class);
+        } else {
+            job.setMapperClass(SpatialMapper.BroadcastJoinPoints.class);
+            job.setNumReduceTasks(0);
+        }
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(Text.class);
+        job.setOutputFormatClass(TextOutputFormat.class);
+        int part = 0;
+        for (FileStatus file : fs.listStatus(filtered, path -> path.getName().startsWith("part-"))) {
+            URI uri = fs.makeQualified(file.getPath()).toUri();
+            job.addCacheFile(URI.create(uri + "#" + SpatialMapper.BROADCAST_LINK_PREFIX + part++));
+        }
+        FileInputFormat.addInputPath(job, new Path(args[0]));
+        FileOutputFormat.setOutputPath(job, new Path(args[2]));
         job.waitForCompletion(true);
     }
 
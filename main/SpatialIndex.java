@@ -0,0 +1,733 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.MultipleInputs;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+/**
+ * Persistent spatial index of a point and a rectangle dataset, so that repeated window queries read only the cells
+ * they need and skip the shuffle, and appended data is joined without rereading the datasets.
+ *
+ * The build job runs the repartition join's mappers over the whole space, sending the records to the cells of
+ * {@link DivideIntoBlocks} (or of "partition.file", copied to "_blocks"), and its reducers write every cell to
+ * "cell-gX" in the index directory. A cell file is a sequence of big-endian ints, so it can be memory-mapped and read
+ * as an IntBuffer: the magic number, the number of rectangles and the number of points, the STR packed R-tree of the
+ * rectangles (see {@link StrRTree#write}), the rectangle ids, and the x then y columns of the points sorted by x.
+ * Points are stored in the one cell owning them and rectangles in every cell they overlap, so a pair is found in
+ * exactly one cell. The global index "_index" has one line per cell file: "gX,X1,Y1,X2,Y2,rectangles,points,minX,
+ * minY,maxX,maxY", the block, its record counts and the bounding box of its points.
+ *
+ * The query job is map-only: {@link CellInputFormat} makes one split per cell whose points' bounding box meets the
+ * window, and {@link QueryMapper} maps the cell file, scans the range of its points inside the window and probes
+ * each one in the R-tree, writing the pairs in the format of SpatialJoinReduce.
+ *
+ * The update job shuffles only appended point and rectangle files to the cells of the index. {@link UpdateReduce}
+ * joins the new points with the old and new rectangles of their cell and the new rectangles with the old points, in
+ * the window of the existing output, and rewrites the cells it touched with the new records. The pairs are added to
+ * the output as new part files; with "output.mode" count or count-mbr, the partial aggregates are merged with the
+ * existing output lines by a second job. The cost grows with the appended records and the cells they fall in, and
+ * for aggregates with the size of the output, rather than with the datasets.
+ *
+ * Usage: SpatialIndex build &lt;points&gt; &lt;rectangles&gt; &lt;index directory&gt;
+ *        SpatialIndex query &lt;index directory&gt; &lt;output&gt; &lt;window&gt;
+ *        SpatialIndex update &lt;index directory&gt; &lt;output&gt; &lt;window&gt; &lt;new points|-&gt; &lt;new rectangles|-&gt;
+ */
+public class SpatialIndex {
+
+    public static final String GLOBAL_INDEX = "_index";
+    public static final String BLOCKS = "_blocks";
+    public static final String CELL_PREFIX = "cell-";
+    private static final String INDEX_OUTPUT = "index";
+    private static final int MAGIC = 0x534a4931; // "SJI1"
+    private static final String WHOLE_SPACE = Integer.MIN_VALUE + "," + Integer.MIN_VALUE + "," + Integer.MAX_VALUE + "," + Integer.MAX_VALUE;
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        if (args.length == 4 && args[0].equals("build")) {
+            build(conf, new Path(args[1]), new Path(args[2]), new Path(args[3]));
+        } else if (args.length == 4 && args[0].equals("query")) {
+            query(conf, new Path(args[1]), new Path(args[2]), args[3]);
+        } else if (args.length == 6 && args[0].equals("update")) {
+            update(conf, new Path(args[1]), new Path(args[2]), args[3],
+                    args[4].equals("-") ? null : new Path(args[4]), args[5].equals("-") ? null : new Path(args[5]));
+        } else {
+            System.err.println("Usage: SpatialIndex build <points> <rectangles> <index directory>");
+            System.err.println("       SpatialIndex query <index directory> <output> <window>");
+            System.err.println("       SpatialIndex update <index directory> <output> <window> <new points|-> <new rectangles|->");
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Builds the index of the datasets into the index directory, replacing it.
+     */
+    public static void build(Configuration conf, Path points, Path rectangles, Path index) throws IOException, InterruptedException, ClassNotFoundException {
+        conf = new Configuration(conf);
+        conf.set("window", WHOLE_SPACE);
+        // The index lines hold the counts of every cell, so the mappers need not count them.
+        conf.setBoolean("partition.stats.cells", false);
+        FileSystem fs = index.getFileSystem(conf);
+        fs.delete(index, true);
+
+        Job job = Job.getInstance(conf, "SpatialIndex-Build");
+        job.setJarByClass(SpatialIndex.class);
+        job.setNumReduceTasks(conf.getInt("join.reducers", job.getNumReduceTasks()));
+        job.setMapOutputKeyClass(CellKey.class);
+        job.setMapOutputValueClass(NullWritable.class);
+        job.setPartitionerClass(CellKey.CellPartitioner.class);
+        job.setGroupingComparatorClass(CellKey.GroupingComparator.class);
+        job.setReducerClass(BuildReduce.class);
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(NullWritable.class);
+        job.setOutputFormatClass(TextOutputFormat.class);
+        MultipleInputs.addInputPath(job, points, ColumnarInputFormat.forPath(conf, points), SpatialMapper.MapPoints.class);
+        MultipleInputs.addInputPath(job, rectangles, ColumnarInputFormat.forPath(conf, rectangles), SpatialMapper.MapRectangles.class);
+        FileOutputFormat.setOutputPath(job, index);
+        if (!job.waitForCompletion(true)) {
+            throw new IOException("Index build job failed");
+        }
+
+        // Later updates must send the records to the same cells
+        writeLines(fs, new Path(index, BLOCKS), DivideIntoBlocks.loadBlocks(conf));
+        mergeIndexLines(fs, index, index, "part-");
+    }
+
+    /**
+     * Joins the cells of the index that meet the window, writing the pairs to the output directory.
+     */
+    public static boolean query(Configuration conf, Path index, Path output, String window) throws IOException, InterruptedException, ClassNotFoundException {
+        conf = new Configuration(conf);
+        conf.set("window", window);
+        output.getFileSystem(conf).delete(output, true);
+
+        Job job = Job.getInstance(conf, "SpatialIndex-Query");
+        job.setJarByClass(SpatialIndex.class);
+        job.setInputFormatClass(CellInputFormat.class);
+        job.setMapperClass(QueryMapper.class);
+        job.setNumReduceTasks(0);
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(Text.class);
+        job.setOutputFormatClass(TextOutputFormat.class);
+        FileInputFormat.addInputPath(job, index);
+        FileOutputFormat.setOutputPath(job, output);
+        return job.waitForCompletion(true);
+    }
+
+    /**
+     * Adds appended points and rectangles to the index and merges their matches in the window into the output of a
+     * join of the indexed datasets over the same window, in the "output.mode" of that output.
+     * @param points New points, or null if there are none.
+     * @param rectangles New rectangles, or null if there are none.
+     */
+    public static void update(Configuration conf, Path index, Path output, String window, Path points, Path rectangles)
+            throws IOException, InterruptedException, ClassNotFoundException {
+        if (points == null && rectangles == null) {
+            throw new IllegalArgumentException("Nothing to update: no new points or rectangles");
+        }
+        conf = new Configuration(conf);
+        conf.set("output.mode", conf.get("output.mode", "pairs"));
+        if (!conf.get("output.mode").matches("pairs|count|count-mbr")) {
+            throw new IllegalArgumentException("Unknown output.mode: " + conf.get("output.mode"));
+        }
+        boolean aggregate = !"pairs".equals(conf.get("output.mode"));
+        conf.set("window", WHOLE_SPACE);
+        conf.set("update.window", window);
+        conf.set("index.dir", index.toString());
+        conf.set("partition.file", new Path(index, BLOCKS).toString());
+        conf.setBoolean("partition.stats.cells", false);
+        FileSystem fs = index.getFileSystem(conf);
+        Path delta = index.suffix(".update");
+        fs.delete(delta, true);
+
+        Job job = Job.getInstance(conf, "SpatialIndex-Update");
+        job.setJarByClass(SpatialIndex.class);
+        job.setNumReduceTasks(conf.getInt("join.reducers", job.getNumReduceTasks()));
+        job.setMapOutputKeyClass(CellKey.class);
+        job.setMapOutputValueClass(NullWritable.class);
+        job.setPartitionerClass(CellKey.CellPartitioner.class);
+        job.setGroupingComparatorClass(CellKey.GroupingComparator.class);
+        job.setReducerClass(UpdateReduce.class);
+        if (aggregate) {
+            job.setOutputKeyClass(IntWritable.class);
+            job.setOutputValueClass(MatchAggregate.class);
+            job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        } else {
+            job.setOutputKeyClass(Text.class);
+            job.setOutputValueClass(Text.class);
+            job.setOutputFormatClass(TextOutputFormat.class);
+        }
+        MultipleOutputs.addNamedOutput(job, INDEX_OUTPUT, TextOutputFormat.class, Text.class, NullWritable.class);
+        if (points != null) {
+            MultipleInputs.addInputPath(job, points, ColumnarInputFormat.forPath(conf, points), SpatialMapper.MapPoints.class);
+        }
+        if (rectangles != null) {
+            MultipleInputs.addInputPath(job, rectangles, ColumnarInputFormat.forPath(conf, rectangles), SpatialMapper.MapRectangles.class);
+        }
+        FileOutputFormat.setOutputPath(job, delta);
+        if (!job.waitForCompletion(true)) {
+            throw new IOException("Index update job failed");
+        }
+
+        // Replace the cells the update touched, then their lines in the global index
+        for (FileStatus cell : fs.listStatus(delta, path -> path.getName().startsWith(CELL_PREFIX))) {
+            Path target = new Path(index, cell.getPath().getName());
+            fs.delete(target, false);
+            fs.rename(cell.getPath(), target);
+        }
+        mergeIndexLines(fs, delta, index, INDEX_OUTPUT + "-");
+
+        FileSystem outputFs = output.getFileSystem(conf);
+        if (!aggregate) {
+            // Every new pair is new to the output, which takes the delta as more part files
+            outputFs.mkdirs(output);
+            String batch = "part-u" + System.currentTimeMillis();
+            for (FileStatus part : fs.listStatus(delta, path -> path.getName().startsWith("part-"))) {
+                outputFs.rename(part.getPath(), new Path(output, batch + part.getPath().getName().substring("part".length())));
+            }
+            fs.delete(delta, true);
+            return;
+        }
+
+        Path merged = output.suffix(".merged");
+        outputFs.delete(merged, true);
+        Job merge = Job.getInstance(conf, "SpatialIndex-MergeAggregates");
+        merge.setJarByClass(SpatialIndex.class);
+        merge.setMapOutputKeyClass(IntWritable.class);
+        merge.setMapOutputValueClass(MatchAggregate.class);
+        merge.setCombinerClass(SpatialReducer.AggregateCombine.class);
+        merge.setReducerClass(SpatialReducer.AggregateReduce.class);
+        merge.setOutputKeyClass(Text.class);
+        merge.setOutputValueClass(Text.class);
+        merge.setOutputFormatClass(TextOutputFormat.class);
+        if (outputFs.exists(output)) {
+            MultipleInputs.addInputPath(merge, output, TextInputFormat.class, ParseAggregates.class);
+        }
+        MultipleInputs.addInputPath(merge, delta, SequenceFileInputFormat.class, Mapper.class);
+        FileOutputFormat.setOutputPath(merge, merged);
+        if (!merge.waitForCompletion(true)) {
+            throw new IOException("Aggregate merge job failed");
+        }
+        outputFs.delete(output, true);
+        outputFs.rename(merged, output);
+        fs.delete(delta, true);
+    }
+
+    /**
+     * Reads the global index of an index directory.
+     * @return One "gX,X1,Y1,X2,Y2,rectangles,points,minX,minY,maxX,maxY" line per cell file.
+     */
+    public static List<String> readGlobalIndex(Configuration conf, Path index) throws IOException {
+        Path path = new Path(index, GLOBAL_INDEX);
+        return readLines(path.getFileSystem(conf), path);
+    }
+
+    /**
+     * Merges the index lines of the files of {@code dir} starting with {@code prefix} into the global index, replacing
+     * the lines of the same cells, and deletes the files.
+     */
+    private static void mergeIndexLines(FileSystem fs, Path dir, Path index, String prefix) throws IOException {
+        Path global = new Path(index, GLOBAL_INDEX);
+        Map<Integer, String> lines = new TreeMap<>();
+        for (String line : fs.exists(global) ? readLines(fs, global) : new ArrayList<String>()) {
+            lines.put(blockNumber(line), line);
+        }
+        for (FileStatus part : fs.listStatus(dir, path -> path.getName().startsWith(prefix))) {
+            for (String line : readLines(fs, part.getPath())) {
+                lines.put(blockNumber(line), line);
+            }
+            fs.delete(part.getPath(), false);
+        }
+        writeLines(fs, global, new ArrayList<>(lines.values()));
+    }
+
+    private static int blockNumber(String line) {
+        return Integer.parseInt(line.substring(1, line.indexOf(',')));
+    }
+
+    static List<String> readLines(FileSystem fs, Path path) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(path), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    lines.add(line);
+                }
+            }
+        }
+        return lines;
+    }
+
+    private static void writeLines(FileSystem fs, Path path, List<String> lines) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(fs.create(path, true), StandardCharsets.UTF_8))) {
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        }
+    }
+
+    /**
+     * @return The index of the first of the sorted values at least {@code key}, or the length if there is none.
+     */
+    static int lowerBound(IntBuffer values, int key) {
+        int low = 0;
+        int high = values.limit();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values.get(middle) < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------
+    // Cell files
+
+    /**
+     * The records of one cell, read from or to be written to a cell file. The columns of a cell read from a local
+     * file are views of the memory-mapped file, probed in place rather than copied to the heap.
+     */
+    public static class Cell {
+        public final StrRTree tree = new StrRTree(LocalJoin.DEFAULT_RTREE_CAPACITY);
+        public IntBuffer rectangleIds = IntBuffer.allocate(0);
+        public IntBuffer pointX = IntBuffer.allocate(0);
+        public IntBuffer pointY = IntBuffer.allocate(0);
+
+        /**
+         * Builds the cell from its rectangles and points; the points are sorted by x then y.
+         */
+        public static Cell of(LocalJoin.RectangleBuffer rectangles, LocalJoin.PointBuffer points) {
+            Cell cell = new Cell();
+            cell.tree.build(rectangles.x1, rectangles.y1, rectangles.x2, rectangles.y2, rectangles.size);
+            cell.rectangleIds = IntBuffer.wrap(Arrays.copyOf(rectangles.id, rectangles.size));
+            long[] sorted = new long[points.size];
+            for (int i = 0; i < points.size; i++) {
+                sorted[i] = ((long) points.x[i] << 32) | (points.y[i] & 0xffffffffL);
+            }
+            Arrays.sort(sorted);
+            cell.pointX = IntBuffer.allocate(points.size);
+            cell.pointY = IntBuffer.allocate(points.size);
+            for (int i = 0; i < points.size; i++) {
+                cell.pointX.put(i, (int) (sorted[i] >> 32));
+                cell.pointY.put(i, (int) sorted[i]);
+            }
+            return cell;
+        }
+
+        public void write(DataOutputStream out) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeInt(rectangleIds.limit());
+            out.writeInt(pointX.limit());
+            tree.write(out);
+            for (IntBuffer column : new IntBuffer[]{rectangleIds, pointX, pointY}) {
+                for (int i = 0; i < column.limit(); i++) {
+                    out.writeInt(column.get(i));
+                }
+            }
+        }
+
+        /**
+         * Writes the cell file of a block to the task's work output directory, committed with the job output.
+         */
+        public void write(TaskInputOutputContext<?, ?, ?, ?> context, String name) throws IOException, InterruptedException {
+            Path file = new Path(FileOutputFormat.getWorkOutputPath(context), CELL_PREFIX + name);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file.getFileSystem(context.getConfiguration()).create(file, true)))) {
+                write(out);
+            }
+        }
+
+        /**
+         * @return The line of the cell in the global index, for the given block.
+         */
+        public String indexLine(String block) {
+            int points = pointX.limit();
+            String bounds = "0,0,-1,-1";
+            if (points > 0) {
+                int minY = Integer.MAX_VALUE;
+                int maxY = Integer.MIN_VALUE;
+                for (int i = 0; i < points; i++) {
+                    minY = Math.min(minY, pointY.get(i));
+                    maxY = Math.max(maxY, pointY.get(i));
+                }
+                bounds = pointX.get(0) + "," + minY + "," + pointX.get(points - 1) + "," + maxY;
+            }
+            return block + "," + rectangleIds.limit() + "," + points + "," + bounds;
+        }
+
+        /**
+         * Reads a cell file, memory-mapping it when it is on the local file system. The tree and the columns of the
+         * cell are views of the file.
+         */
+        public static Cell read(Configuration conf, Path path) throws IOException {
+            FileSystem fs = path.getFileSystem(conf);
+            ByteBuffer bytes;
+            if (fs instanceof LocalFileSystem) {
+                File file = ((LocalFileSystem) fs).pathToFile(path);
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+            } else {
+                bytes = ByteBuffer.allocate((int) fs.getFileStatus(path).getLen());
+                try (FSDataInputStream in = fs.open(path)) {
+                    in.readFully(0, bytes.array());
+                }
+            }
+            IntBuffer in = bytes.asIntBuffer();
+            if (in.get() != MAGIC) {
+                throw new IOException("Not a cell file: " + path);
+            }
+            Cell cell = new Cell();
+            int rectangles = in.get();
+            int points = in.get();
+            cell.tree.read(in);
+            cell.rectangleIds = StrRTree.slice(in, rectangles);
+            cell.pointX = StrRTree.slice(in, points);
+            cell.pointY = StrRTree.slice(in, points);
+            return cell;
+        }
+    }
+
+    /**
+     * Collects the rectangles and points of a cell group into the buffers.
+     */
+    private static void collect(SpatialRecord record, Iterable<NullWritable> values, LocalJoin.RectangleBuffer rectangles, LocalJoin.PointBuffer points) {
+        rectangles.clear();
+        points.clear();
+        for (NullWritable ignored : values) {
+            if (record.isPoint()) {
+                points.add(record.getX1(), record.getY1());
+            } else {
+                rectangles.add(record.getId(), record.getX1(), record.getY1(), record.getX2(), record.getY2());
+            }
+        }
+    }
+
+    /**
+     * Build reducer: collects the rectangles and points of a cell and writes its cell file next to the job output,
+     * and its global index line as output.
+     */
+    public static class BuildReduce extends Reducer<CellKey, NullWritable, Text, NullWritable> {
+        private Partitioning partitioning;
+        private List<String> blocks;
+        private final LocalJoin.RectangleBuffer rectangles = new LocalJoin.RectangleBuffer();
+        private final LocalJoin.PointBuffer points = new LocalJoin.PointBuffer();
+        private final Text line = new Text();
+
+        @Override
+        protected void setup(Context context) throws IOException {
+            blocks = DivideIntoBlocks.loadBlocks(context);
+            partitioning = Partitioning.fromBlocks(blocks);
+        }
+
+        @Override
+        protected void reduce(CellKey key, Iterable<NullWritable> values, Context context) throws IOException, InterruptedException {
+            int cellIndex = CellKey.gridCell(key.getCell());
+            collect(key.getRecord(), values, rectangles, points);
+            Cell cell = Cell.of(rectangles, points);
+            cell.write(context, partitioning.name(cellIndex));
+            line.set(cell.indexLine(blocks.get(cellIndex)));
+            context.write(line, NullWritable.get());
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------
+    // Update
+
+    /**
+     * Update reducer: joins the new records of a cell with each other and with the records of its cell file, in
+     * "update.window", and writes the cell file holding both with its line of the global index. Pairs are written as
+     * "rN (x,y)" lines, or as partial aggregates per rectangle when "output.mode" is an aggregate.
+     */
+    public static class UpdateReduce extends Reducer<CellKey, NullWritable, Writable, Writable> {
+        private Partitioning partitioning;
+        private List<String> blocks;
+        private Path index;
+        private SpatialMapper.MapRectangles.Window window;
+        private boolean aggregate;
+        private MultipleOutputs<Writable, Writable> outputs;
+        private final LocalJoin.RectangleBuffer rectangles = new LocalJoin.RectangleBuffer();
+        private final LocalJoin.PointBuffer points = new LocalJoin.PointBuffer();
+        private final StrRTree tree = new StrRTree(LocalJoin.DEFAULT_RTREE_CAPACITY);
+        private final MatchAggregate.Accumulator oldCounts = new MatchAggregate.Accumulator();
+        private final MatchAggregate.Accumulator newCounts = new MatchAggregate.Accumulator();
+        private final MatchAggregate matchAggregate = new MatchAggregate();
+        private final IntWritable rectangleNumber = new IntWritable();
+        private final Text rectangleId = new Text();
+        private final Text pointText = new Text();
+        private final MatchText text = new MatchText();
+        private final Text line = new Text();
+        private int pointX;
+        private int pointY;
+
+        @Override
+        protected void setup(Context context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            blocks = DivideIntoBlocks.loadBlocks(context);
+            partitioning = Partitioning.fromBlocks(blocks);
+            index = new Path(conf.get("index.dir"));
+            window = SpatialMapper.MapRectangles.Window.parseWindowString(conf.get("update.window"));
+            aggregate = !"pairs".equals(conf.get("output.mode", "pairs"));
+            outputs = new MultipleOutputs<>(context);
+        }
+
+        @Override
+        protected void reduce(CellKey key, Iterable<NullWritable> values, final Context context) throws IOException, InterruptedException {
+            int cellIndex = CellKey.gridCell(key.getCell());
+            String name = partitioning.name(cellIndex);
+            collect(key.getRecord(), values, rectangles, points);
+            Path file = new Path(index, CELL_PREFIX + name);
+            final Cell old = file.getFileSystem(context.getConfiguration()).exists(file) ? Cell.read(context.getConfiguration(), file) : new Cell();
+            tree.build(rectangles.x1, rectangles.y1, rectangles.x2, rectangles.y2, rectangles.size);
+            if (aggregate) {
+                oldCounts.reset(old.rectangleIds.limit());
+                newCounts.reset(rectangles.size);
+            }
+            LocalJoin.Collector oldMatches = (point, rectangle) -> match(old.rectangleIds.get(rectangle), oldCounts, rectangle, context);
+            LocalJoin.Collector newMatches = (point, rectangle) -> match(rectangles.id[rectangle], newCounts, rectangle, context);
+
+            // New points against the old and the new rectangles
+            for (int i = 0; i < points.size; i++) {
+                pointX = points.x[i];
+                pointY = points.y[i];
+                if (pointX >= window.getX1() && pointX <= window.getX2() && pointY >= window.getY1() && pointY <= window.getY2()) {
+                    old.tree.probe(pointX, pointY, i, oldMatches);
+                    tree.probe(pointX, pointY, i, newMatches);
+                }
+            }
+            // Old points against the new rectangles, by a range of the x-sorted points per rectangle
+            for (int r = 0; r < rectangles.size; r++) {
+                int minX = Math.max(rectangles.x1[r], window.getX1());
+                int maxX = Math.min(rectangles.x2[r], window.getX2());
+                int minY = Math.max(rectangles.y1[r], window.getY1());
+                int maxY = Math.min(rectangles.y2[r], window.getY2());
+                for (int i = lowerBound(old.pointX, minX); i < old.pointX.limit() && old.pointX.get(i) <= maxX; i++) {
+                    if (old.pointY.get(i) >= minY && old.pointY.get(i) <= maxY) {
+                        pointX = old.pointX.get(i);
+                        pointY = old.pointY.get(i);
+                        newMatches.collect(i, r);
+                    }
+                }
+            }
+            if (aggregate) {
+                writeAggregates(old.rectangleIds, oldCounts, old.rectangleIds.limit(), context);
+                writeAggregates(IntBuffer.wrap(rectangles.id), newCounts, rectangles.size, context);
+            }
+
+            // The cell file now holds the old and the new records
+            old.tree.addRectangles(old.rectangleIds, rectangles);
+            for (int i = 0; i < old.pointX.limit(); i++) {
+                points.add(old.pointX.get(i), old.pointY.get(i));
+            }
+            Cell cell = Cell.of(rectangles, points);
+            cell.write(context, name);
+            line.set(cell.indexLine(blocks.get(cellIndex)));
+            outputs.write(INDEX_OUTPUT, line, NullWritable.get());
+        }
+
+        private void match(int id, MatchAggregate.Accumulator counts, int rectangle, Context context) throws IOException, InterruptedException {
+            if (aggregate) {
+                counts.add(rectangle, pointX, pointY);
+                return;
+            }
+            text.clear().id('r', id).set(rectangleId);
+            text.clear().point(pointX, pointY).set(pointText);
+            context.write(rectangleId, pointText);
+        }
+
+        private void writeAggregates(IntBuffer ids, MatchAggregate.Accumulator counts, int size, Context context) throws IOException, InterruptedException {
+            for (int r = 0; r < size; r++) {
+                if (counts.count[r] > 0) {
+                    rectangleNumber.set(ids.get(r));
+                    counts.get(r, matchAggregate);
+                    context.write(rectangleNumber, matchAggregate);
+                }
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            outputs.close();
+        }
+    }
+
+    /**
+     * Reads the "rN count" or "rN count,(minX,minY),(maxX,maxY)" lines of an aggregated join output back into
+     * partial aggregates.
+     */
+    public static class ParseAggregates extends Mapper<LongWritable, Text, IntWritable, MatchAggregate> {
+        private final IntWritable rectangleId = new IntWritable();
+        private final MatchAggregate aggregate = new MatchAggregate();
+
+        @Override
+        protected void map(LongWritable offset, Text value, Context context) throws IOException, InterruptedException {
+            String line = value.toString();
+            int tab = line.indexOf('\t');
+            if (tab < 0) {
+                return;
+            }
+            rectangleId.set(SpatialRecord.parseRectangleId(line.substring(0, tab)));
+            String[] fields = line.substring(tab + 1).replace("(", "").replace(")", "").split(",");
+            aggregate.clear();
+            if (fields.length == 5) {
+                aggregate.set(Long.parseLong(fields[0]), Integer.parseInt(fields[1]), Integer.parseInt(fields[2]),
+                        Integer.parseInt(fields[3]), Integer.parseInt(fields[4]));
+            } else {
+                aggregate.set(Long.parseLong(fields[0]), Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE);
+            }
+            context.write(rectangleId, aggregate);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------
+    // Query
+
+    /**
+     * One unsplittable split per cell file of the index directory whose points' bounding box meets the window, read
+     * as a single record: the name of the cell.
+     */
+    public static class CellInputFormat extends FileInputFormat<Text, NullWritable> {
+        @Override
+        public List<InputSplit> getSplits(JobContext job) throws IOException {
+            Configuration conf = job.getConfiguration();
+            SpatialMapper.MapRectangles.Window window = SpatialMapper.MapRectangles.Window.parseWindowString(conf.get("window"));
+            List<InputSplit> splits = new ArrayList<>();
+            for (Path index : getInputPaths(job)) {
+                FileSystem fs = index.getFileSystem(conf);
+                for (String line : readGlobalIndex(conf, index)) {
+                    String[] fields = line.split(",");
+                    int minX = Integer.parseInt(fields[7]);
+                    int minY = Integer.parseInt(fields[8]);
+                    int maxX = Integer.parseInt(fields[9]);
+                    int maxY = Integer.parseInt(fields[10]);
+                    if (Integer.parseInt(fields[5]) == 0 || Integer.parseInt(fields[6]) == 0
+                            || maxX < window.getX1() || minX > window.getX2() || maxY < window.getY1() || minY > window.getY2()) {
+                        continue;
+                    }
+                    FileStatus file = fs.getFileStatus(new Path(index, CELL_PREFIX + fields[0]));
+                    BlockLocation[] locations = fs.getFileBlockLocations(file, 0, file.getLen());
+                    splits.add(new FileSplit(file.getPath(), 0, file.getLen(), locations.length > 0 ? locations[0].getHosts() : new String[0]));
+                }
+            }
+            return splits;
+        }
+
+        @Override
+        public RecordReader<Text, NullWritable> createRecordReader(InputSplit split, TaskAttemptContext context) {
+            return new RecordReader<Text, NullWritable>() {
+                private final Text name = new Text();
+                private boolean read;
+
+                @Override
+                public void initialize(InputSplit split, TaskAttemptContext context) {
+                    name.set(((FileSplit) split).getPath().getName().substring(CELL_PREFIX.length()));
+                }
+
+                @Override
+                public boolean nextKeyValue() {
+                    read = !read;
+                    return read;
+                }
+
+                @Override
+                public Text getCurrentKey() {
+                    return name;
+                }
+
+                @Override
+                public NullWritable getCurrentValue() {
+                    return NullWritable.get();
+                }
+
+                @Override
+                public float getProgress() {
+                    return read ? 1 : 0;
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+    }
+
+    /**
+     * Joins one cell of the index: the points inside the window are found by a binary search on x and probed in the
+     * R-tree of the cell's rectangles.
+     */
+    public static class QueryMapper extends Mapper<Text, NullWritable, Text, Text> {
+        private final Text rectangleId = new Text();
+        private final Text pointText = new Text();
+        private final MatchText text = new MatchText();
+
+        @Override
+        protected void map(Text name, NullWritable value, final Context context) throws IOException, InterruptedException {
+            SpatialMapper.MapRectangles.Window window = SpatialMapper.MapRectangles.Window.parseWindowString(context.getConfiguration().get("window"));
+            final Cell cell = Cell.read(context.getConfiguration(), ((FileSplit) context.getInputSplit()).getPath());
+            final int[] point = new int[2];
+            LocalJoin.Collector emit = new LocalJoin.Collector() {
+                @Override
+                public void collect(int p, int rectangle) throws IOException, InterruptedException {
+                    text.clear().id('r', cell.rectangleIds.get(rectangle)).set(rectangleId);
+                    text.clear().point(point[0], point[1]).set(pointText);
+                    context.write(rectangleId, pointText);
+                }
+            };
+
+            for (int i = lowerBound(cell.pointX, window.getX1()); i < cell.pointX.limit() && cell.pointX.get(i) <= window.getX2(); i++) {
+                if (cell.pointY.get(i) >= window.getY1() && cell.pointY.get(i) <= window.getY2()) {
+                    point[0] = cell.pointX.get(i);
+                    point[1] = cell.pointY.get(i);
+                    cell.tree.probe(point[0], point[1], i, emit);
+                }
+            }
+        }
+    }
+}
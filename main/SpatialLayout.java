@@ -0,0 +1,230 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Rewrites a point or rectangle dataset in Hilbert order with a block index, so that jobs reading it
+ * through {@link WindowInputFormat} only read the blocks that intersect the query window.
+ *
+ * The records are sorted on the Hilbert curve value of their center and written as CSV, in the same
+ * format as the input, to {@code <output>/part-00000}. Every {@code recordsPerBlock} records form a
+ * block, and the sidecar file {@code <output>/_part-00000.index} holds one line per block:
+ * "offset,length,records,minX,minY,maxX,maxY", the byte range of the block and the MBR of its records.
+ * Neighbouring records on the curve are close in space, so block MBRs are small. The input may also be the
+ * binary output of CreateDatabase, whose ".bin" files are read as big-endian ints.
+ *
+ * Usage: SpatialLayout points|rectangles &lt;input&gt; &lt;output directory&gt; [records per block]
+ */
+public class SpatialLayout {
+
+    public static final String DATA_FILE = "part-00000";
+    public static final int DEFAULT_RECORDS_PER_BLOCK = 65536;
+
+    // Order of the Hilbert curve: 2^15 x 2^15 cells over the bounding box of the dataset.
+    private static final int HILBERT_ORDER = 15;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: SpatialLayout points|rectangles <input> <output directory> [records per block]");
+            System.exit(2);
+        }
+        boolean rectangles = args[0].startsWith("rect");
+        int recordsPerBlock = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_RECORDS_PER_BLOCK;
+        write(new Configuration(), rectangles, new Path(args[1]), new Path(args[2]), recordsPerBlock);
+    }
+
+    /**
+     * Reads the dataset under {@code input} and writes its Hilbert ordered copy and block index to {@code output}.
+     * @return The number of blocks written.
+     */
+    public static int write(Configuration conf, boolean rectangles, Path input, Path output, int recordsPerBlock) throws IOException {
+        int[][] columns = readColumns(conf, rectangles, input);
+        int size = columns[0].length;
+        long[] order = hilbertOrder(columns[1], columns[2], columns[3], columns[4], size);
+
+        FileSystem outFs = output.getFileSystem(conf);
+        outFs.delete(output, true);
+        outFs.mkdirs(output);
+        Path data = new Path(output, DATA_FILE);
+        int blocks = 0;
+        try (OutputStream dataOut = outFs.create(data);
+             BufferedWriter index = new BufferedWriter(new OutputStreamWriter(outFs.create(WindowInputFormat.indexPath(data)), StandardCharsets.UTF_8))) {
+            StringBuilder line = new StringBuilder();
+            long offset = 0;
+            for (int start = 0; start < size; start += recordsPerBlock) {
+                int end = Math.min(start + recordsPerBlock, size);
+                long length = 0;
+                int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+                for (int i = start; i < end; i++) {
+                    int r = (int) order[i];
+                    minX = Math.min(minX, columns[1][r]);
+                    minY = Math.min(minY, columns[2][r]);
+                    maxX = Math.max(maxX, columns[3][r]);
+                    maxY = Math.max(maxY, columns[4][r]);
+
+                    line.setLength(0);
+                    if (rectangles) {
+                        line.append('r').append(columns[0][r]).append(',')
+                                .append(columns[1][r]).append(',').append(columns[2][r]).append(',')
+                                .append(columns[4][r] - columns[2][r]).append(',').append(columns[3][r] - columns[1][r]);
+                    } else {
+                        line.append(columns[1][r]).append(',').append(columns[2][r]);
+                    }
+                    line.append('\n');
+                    byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+                    dataOut.write(bytes);
+                    length += bytes.length;
+                }
+                index.write(offset + "," + length + "," + (end - start) + "," + minX + "," + minY + "," + maxX + "," + maxY + "\n");
+                offset += length;
+                blocks++;
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Reads the records of the dataset under {@code input}: CSV, or the big-endian ints of a file written by
+     * CreateDatabase with generate.format=binary, recognized by its {@link CreateDatabase#BINARY_EXTENSION}.
+     * @return The columns (id, x1, y1, x2, y2), with x2/y2 the upper corner, one entry per record; points have
+     * x2 == x1 and y2 == y1.
+     */
+    static int[][] readColumns(Configuration conf, boolean rectangles, Path input) throws IOException {
+        int[][] columns = new int[5][1024];
+        int size = 0;
+
+        FileSystem inFs = input.getFileSystem(conf);
+        for (FileStatus file : dataFiles(inFs, input)) {
+            if (file.getPath().getName().endsWith(CreateDatabase.BINARY_EXTENSION)) {
+                long records = file.getLen() / (rectangles ? 20 : 8);
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(inFs.open(file.getPath()), 64 * 1024))) {
+                    for (long i = 0; i < records; i++) {
+                        columns = ensureCapacity(columns, size);
+                        if (rectangles) {
+                            columns[0][size] = in.readInt();
+                            columns[1][size] = in.readInt();
+                            columns[2][size] = in.readInt();
+                            int h = in.readInt();
+                            int w = in.readInt();
+                            columns[3][size] = columns[1][size] + w;
+                            columns[4][size] = columns[2][size] + h;
+                        } else {
+                            columns[1][size] = columns[3][size] = in.readInt();
+                            columns[2][size] = columns[4][size] = in.readInt();
+                        }
+                        size++;
+                    }
+                }
+                continue;
+            }
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(inFs.open(file.getPath()), StandardCharsets.UTF_8))) {
+                CsvFields fields = new CsvFields();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+                    fields.reset(bytes, 0, bytes.length);
+                    columns = ensureCapacity(columns, size);
+                    if (rectangles) {
+                        columns[0][size] = fields.nextId();
+                        columns[1][size] = fields.nextInt();
+                        columns[2][size] = fields.nextInt();
+                        int h = fields.nextInt();
+                        int w = fields.nextInt();
+                        columns[3][size] = columns[1][size] + w;
+                        columns[4][size] = columns[2][size] + h;
+                    } else {
+                        columns[1][size] = columns[3][size] = fields.nextInt();
+                        columns[2][size] = columns[4][size] = fields.nextInt();
+                    }
+                    size++;
+                }
+            }
+        }
+        for (int c = 0; c < columns.length; c++) {
+            columns[c] = Arrays.copyOf(columns[c], size);
+        }
+        return columns;
+    }
+
+    private static int[][] ensureCapacity(int[][] columns, int size) {
+        if (size == columns[0].length) {
+            for (int c = 0; c < columns.length; c++) {
+                columns[c] = Arrays.copyOf(columns[c], size * 2);
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Sorts the records on the Hilbert value of their center over the bounding box of all records.
+     * @return The record indexes in curve order, in the low 32 bits of each entry.
+     */
+    static long[] hilbertOrder(int[] x1, int[] y1, int[] x2, int[] y2, int size) {
+        long minX = Long.MAX_VALUE, minY = Long.MAX_VALUE, maxX = Long.MIN_VALUE, maxY = Long.MIN_VALUE;
+        for (int i = 0; i < size; i++) {
+            minX = Math.min(minX, (long) x1[i] + x2[i]);
+            minY = Math.min(minY, (long) y1[i] + y2[i]);
+            maxX = Math.max(maxX, (long) x1[i] + x2[i]);
+            maxY = Math.max(maxY, (long) y1[i] + y2[i]);
+        }
+        long side = 1L << HILBERT_ORDER;
+        double scaleX = (side - 1) / (double) Math.max(1, maxX - minX);
+        double scaleY = (side - 1) / (double) Math.max(1, maxY - minY);
+
+        long[] order = new long[size];
+        for (int i = 0; i < size; i++) {
+            // Centers are compared doubled to stay on integers.
+            int hx = (int) (((long) x1[i] + x2[i] - minX) * scaleX);
+            int hy = (int) (((long) y1[i] + y2[i] - minY) * scaleY);
+            order[i] = (hilbert(HILBERT_ORDER, hx, hy) << 32) | i;
+        }
+        Arrays.sort(order);
+        return order;
+    }
+
+    /**
+     * Returns the distance along the Hilbert curve of the given order of the cell (x, y).
+     */
+    public static long hilbert(int order, int x, int y) {
+        long d = 0;
+        for (int s = 1 << (order - 1); s > 0; s >>= 1) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            // Rotate the quadrant so the curve stays continuous.
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = s - 1 - x;
+                    y = s - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    private static FileStatus[] dataFiles(FileSystem fs, Path input) throws IOException {
+        FileStatus status = fs.getFileStatus(input);
+        if (!status.isDirectory()) {
+            return new FileStatus[]{status};
+        }
+        return fs.listStatus(input, path -> !path.getName().startsWith("_") && !path.getName().startsWith("."));
+    }
+}
@@ -1,13 +1,22 @@
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Mapper;
 
 import java.io.IOException;
+import java.net.URI;
 import java.util.Arrays;
-import java.util.List;
 
 public class SpatialMapper {
 
+    /** Prefix of the distributed cache links of the filtered rectangle files read by BroadcastJoinPoints. */
+    public static final String BROADCAST_LINK_PREFIX = "broadcast-rectangles-";
+
     /**
      This Mapper class is responsible for mapping points to their respective grids.
      It uses a window to filter out points that are outside the specified bounds.
@@ -15,12 +24,20 @@ public class SpatialMapper {
             the x and y coordinates of the top-left corner, followed by the x and y coordinates
             of the bottom-right corner.
      */
-    public static class MapPoints extends Mapper<Object, Text, Text, Text> {
-        private List<Grid> grids;
+    public static class MapPoints extends Mapper<Object, Writable, CellKey, NullWritable> {
+        private Partitioning partitioning;
         private int windowTopLeftX;
         private int windowTopLeftY;
         private int windowBottomRightX;
         private int windowBottomRightY;
+        private final CsvFields fields = new CsvFields();
+        private final CellKey cell = new CellKey();
+        private int[] salts;
+        private long[] counts;
+        private int pointNumber;
+        private JoinMetrics metrics;
+        private WindowIndex windows;
+        private int[] windowIds;
 
         /**
          This method parses the window string and sets the values of the window attributes.
@@ -40,7 +57,7 @@ public class SpatialMapper {
 
         /**
          This method is called once at the beginning of the map task.
-         It sets up the list of Grid objects based on the partitions created by the DivideIntoBlocks class.
+         It sets up the partitioning of the grid blocks loaded by the DivideIntoBlocks class.
          It also sets the window attributes using the window string passed in the job configuration.
          */
         public void setup(Context context) throws IOException, InterruptedException {
@@ -51,106 +68,86 @@ public class SpatialMapper {
             windowTopLeftY = windowAtt[1];
             windowBottomRightX = windowAtt[2];
             windowBottomRightY = windowAtt[3];
-            List<String> gridPartitions = DivideIntoBlocks.createBlocks(10000, 2500);
-            grids = Arrays.asList(new Grid[gridPartitions.size()]);
-            for (int i = 0; i < gridPartitions.size(); i++) {
-                String[] gridDef = gridPartitions.get(i).split(",");
-                int x1 = Integer.parseInt(gridDef[1]);
-                int y1 = Integer.parseInt(gridDef[2]);
-                int x2 = Integer.parseInt(gridDef[3]);
-                int y2 = Integer.parseInt(gridDef[4]);
-                grids.set(i, new Grid(gridDef[0], x1, y1, x2, y2));
-            }
-
+            partitioning = Partitioning.fromBlocks(DivideIntoBlocks.loadBlocks(context));
+            salts = HotCells.salts(conf, partitioning.size());
+            counts = new long[partitioning.size()];
+            metrics = new JoinMetrics(conf);
+            windows = WindowIndex.load(conf);
+            windowIds = new int[windows == null ? 0 : windows.size()];
         }
 
         /**
          The method below maps each point to its corresponding grid.
-         It checks whether the point is contained in each grid and whether it is inside the specified window.
-         If the point satisfies these conditions, it is written to the output context with the grid id as the key.
+         It parses the coordinates straight from the line bytes, drops the point if it is outside the specified window
+         and otherwise writes it to the output context in a key made of the index of the grid owning it and the point.
+         The points of a hot cell go to its salts in turn (see HotCells). In a batch of windows the window is their
+         bounding box, and a point is also dropped if it is in none of them.
+         The key object is reused for every record. A block of a columnar dataset is mapped point by point.
          */
-        public void map(Object key, Text value, Context context) throws IOException, InterruptedException {
-            Point point = Point.fromString(value.toString());
-            for (Grid grid : grids) {
-                if (grid.contains(point) && point.x >= windowTopLeftX && point.x <= windowBottomRightX && point.y >= windowTopLeftY && point.y <= windowBottomRightY) {
-                    context.write(new Text(grid.getId()), value);
-                    break;
+        public void map(Object key, Writable value, Context context) throws IOException, InterruptedException {
+            if (value instanceof ColumnarBlock) {
+                ColumnarBlock block = (ColumnarBlock) value;
+                for (int i = 0; i < block.size; i++) {
+                    metrics.startRecord();
+                    metrics.increment(JoinMetrics.Join.POINTS_READ);
+                    mapPoint(block.x1[i], block.y1[i], context);
                 }
+                return;
             }
+            metrics.startRecord();
+            metrics.increment(JoinMetrics.Join.POINTS_READ);
+            fields.reset((Text) value);
+            int x = fields.nextInt();
+            int y = fields.nextInt();
+            metrics.lap(JoinMetrics.Phase.PARSE);
+            mapPoint(x, y, context);
         }
 
-        /**
-         * Point class is used to represent the x and y coordinates of the data points being processed in the MapPoints class.
-         * These coordinates are used to determine which grid the point belongs to and whether it is inside the specified window.
-          */
-        public static class Point {
-            private final int x;
-            private final int y;
-
-            public Point(int x, int y) {
-                this.x = x;
-                this.y = y;
-            }
-
-            public int getX() {
-                return x;
-            }
-
-            public int getY() {
-                return y;
-            }
-
-            public static Point fromString(String str) {
-                String[] parts = str.split(",");
-                int x = Integer.parseInt(parts[0]);
-                int y = Integer.parseInt(parts[1]);
-                return new Point(x, y);
+        private void mapPoint(int x, int y, Context context) throws IOException, InterruptedException {
+            if (x >= windowTopLeftX && x <= windowBottomRightX && y >= windowTopLeftY && y <= windowBottomRightY
+                    && (windows == null || windows.containing(x, y, windowIds) > 0)) {
+                int owner = partitioning.cellOf(x, y);
+                counts[owner]++;
+                cell.setCell(salts[owner] > 1 ? CellKey.salted(owner, pointNumber++ % salts[owner]) : owner);
+                cell.getRecord().setPoint(x, y);
+                metrics.lap(JoinMetrics.Phase.PARTITION);
+                context.write(cell, NullWritable.get());
+                metrics.lap(JoinMetrics.Phase.WRITE);
+            } else {
+                metrics.increment(JoinMetrics.Join.POINTS_OUTSIDE_WINDOW);
             }
         }
 
-        /**
-         * This class represents a rectangular grid in a two-dimensional coordinate system.
-         * Each grid is identified by a unique ID string and defined by the coordinates of its
-         * top-left and bottom-right corners.
-         * It provides a method to check whether a given point is contained within the grid.
-         */
-        public static class Grid {
-            private final String id;
-            private final int x1;
-            private final int y1;
-            private final int x2;
-            private final int y2;
-
-            public Grid(String id, int x1, int y1, int x2, int y2) {
-                this.id = id;
-                this.x1 = x1;
-                this.y1 = y1;
-                this.x2 = x2;
-                this.y2 = y2;
-            }
-
-            public String getId() {
-                return id;
-            }
-
-            public boolean contains(Point point) {
-                int x = point.getX();
-                int y = point.getY();
-                return (x >= x1 && x <= x2 && y >= y1 && y <= y2);
-            }
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            HotCells.writeCounts(context, true, counts);
+            metrics.flush(context);
         }
-
-
     }
 //-------------------------------------------------------------------------------------------------------------------
     /**
      * MapRectangles class extends the Mapper class and is responsible for mapping input key/value pairs
      * to intermediate key/value pairs
      */
-    public static class MapRectangles extends Mapper<Object, Text, Text, Text> {
+    public static class MapRectangles extends Mapper<Object, Writable, CellKey, NullWritable> {
 
+        /** True when the rectangles are the probe side of a rectangle overlap join (see {@link MapProbeRectangles}). */
+        protected boolean probeSide;
         private Window window;
-        private List<String> gridPartitions;
+        private Partitioning partitioning;
+        private int[] cells;
+        private int[] salts;
+        private long[] counts;
+        private JoinMetrics metrics;
+        private WindowIndex windows;
+        private int[] windowIds;
+        private int[] windowCells;
+        private int[] cellMarks;
+        private int mark;
+        private int rectangleNumber;
+        private final int[] box = new int[4];
+        private final CsvFields fields = new CsvFields();
+        private final CellKey cell = new CellKey();
 
         @Override
         protected void setup(Context context) throws IOException, InterruptedException {
@@ -160,26 +157,133 @@ public class SpatialMapper {
             window = Window.parseWindowString(windowString);
 
             // Divide input space into grid partitions
-            gridPartitions = DivideIntoBlocks.createBlocks(10000, 2500);
+            partitioning = Partitioning.fromBlocks(DivideIntoBlocks.loadBlocks(context));
+            cells = new int[partitioning.size()];
+            salts = HotCells.salts(conf, partitioning.size());
+            counts = new long[partitioning.size()];
+            metrics = new JoinMetrics(conf);
+            windows = WindowIndex.load(conf);
+            windowIds = new int[windows == null ? 0 : windows.size()];
+            windowCells = new int[partitioning.size()];
+            cellMarks = new int[partitioning.size()];
         }
 
         /**
          * Processes a single input record representing a rectangle, and outputs the rectangle
-         * to all grid partitions that intersect it. The grid partitions are determined in advance
-         * by dividing the input space into fixed-size blocks. If a non-null window is specified in
-         * the configuration, only rectangles that fall within the window are emitted.
+         * to all grid partitions that intersect it. Only rectangles that intersect the window are
+         * emitted, and only to the grid partitions covering the part of the rectangle inside the
+         * window since no point outside the window reaches the reducers. The range of grid
+         * partitions is computed from the partition boundaries instead of testing every partition.
+         * A hot cell gets a copy of the rectangle for each of its salts. In a batch of windows the rectangle must
+         * intersect one of them, and only goes to the cells covering its parts inside the windows it intersects.
+         * On the probe side of an overlap join the rectangle is clipped to the window, so the lower corner of its
+         * intersection with any build rectangle lies in a cell that got both, and each copy goes to a single salt
+         * of a hot cell, in turn, like a point.
          *
          * @param key     the input record key (unused)
-         * @param value   the input record value, in the format "id,x,y,h,w"
+         * @param value   the input record value, in the format "id,x,y,h,w", or a block of a columnar dataset
          * @param context the Hadoop context object for emitting output
          */
         @Override
-        protected void map(Object key, Text value, Context context) throws IOException, InterruptedException {
-            String[] fields = value.toString().split(",");
-            int x1 = Integer.parseInt(fields[1]);
-            int y1 = Integer.parseInt(fields[2]);
-            int h = Integer.parseInt(fields[3]);
-            int w = Integer.parseInt(fields[4]);
+        protected void map(Object key, Writable value, Context context) throws IOException, InterruptedException {
+            SpatialRecord record = cell.getRecord();
+            if (value instanceof ColumnarBlock) {
+                ColumnarBlock block = (ColumnarBlock) value;
+                for (int i = 0; i < block.size; i++) {
+                    metrics.startRecord();
+                    metrics.increment(JoinMetrics.Join.RECTANGLES_READ);
+                    mapRectangle(readRectangle(block, i, window, record), context);
+                }
+                return;
+            }
+            metrics.startRecord();
+            metrics.increment(JoinMetrics.Join.RECTANGLES_READ);
+            mapRectangle(readRectangle(fields.reset((Text) value), window, record), context);
+        }
+
+        /**
+         * Sends the rectangle read into the record of the key, if it is inside the window, to its cells.
+         */
+        private void mapRectangle(boolean inside, Context context) throws IOException, InterruptedException {
+            SpatialRecord record = cell.getRecord();
+            int windowCount = inside && windows != null
+                    ? windows.intersecting(record.getX1(), record.getY1(), record.getX2(), record.getY2(), windowIds) : 0;
+            if (!inside || (windows != null && windowCount == 0)) {
+                metrics.increment(JoinMetrics.Join.RECTANGLES_OUTSIDE_WINDOW);
+                metrics.lap(JoinMetrics.Phase.PARSE);
+                return;
+            }
+            metrics.lap(JoinMetrics.Phase.PARSE);
+            if (probeSide) {
+                record.setProbeRectangle(record.getId(), Math.max(record.getX1(), window.x1), Math.max(record.getY1(), window.y1),
+                        Math.min(record.getX2(), window.x2), Math.min(record.getY2(), window.y2));
+            }
+
+            int count = windows == null
+                    ? partitioning.overlapping(Math.max(record.getX1(), window.x1), Math.max(record.getY1(), window.y1),
+                            Math.min(record.getX2(), window.x2), Math.min(record.getY2(), window.y2), cells)
+                    : batchCells(record, windowCount);
+            metrics.lap(JoinMetrics.Phase.PARTITION);
+            for (int i = 0; i < count; i++) {
+                counts[cells[i]]++;
+                if (probeSide) {
+                    metrics.increment(JoinMetrics.Join.RECTANGLE_COPIES);
+                    int cellSalts = salts[cells[i]];
+                    cell.setCell(cellSalts > 1 ? CellKey.salted(cells[i], rectangleNumber++ % cellSalts) : cells[i]);
+                    context.write(cell, NullWritable.get());
+                    continue;
+                }
+                metrics.add(JoinMetrics.Join.RECTANGLE_COPIES, salts[cells[i]]);
+                for (int salt = 0; salt < salts[cells[i]]; salt++) {
+                    cell.setCell(CellKey.salted(cells[i], salt));
+                    context.write(cell, NullWritable.get());
+                }
+            }
+            metrics.lap(JoinMetrics.Phase.WRITE);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            HotCells.writeCounts(context, probeSide, counts);
+            metrics.flush(context);
+        }
+
+        /**
+         * Writes to {@code cells}, in block order, the cells covering the parts of the rectangle inside the windows
+         * it intersects, the first {@code windowCount} of {@code windowIds}.
+         * @return The number of cells written.
+         */
+        private int batchCells(SpatialRecord record, int windowCount) {
+            if (++mark == 0) {
+                Arrays.fill(cellMarks, 0);
+                mark = 1;
+            }
+            int count = 0;
+            for (int i = 0; i < windowCount; i++) {
+                windows.window(windowIds[i], box);
+                int overlapping = partitioning.overlapping(Math.max(record.getX1(), box[0]), Math.max(record.getY1(), box[1]),
+                        Math.min(record.getX2(), box[2]), Math.min(record.getY2(), box[3]), windowCells);
+                for (int j = 0; j < overlapping; j++) {
+                    if (cellMarks[windowCells[j]] != mark) {
+                        cellMarks[windowCells[j]] = mark;
+                        cells[count++] = windowCells[j];
+                    }
+                }
+            }
+            Arrays.sort(cells, 0, count);
+            return count;
+        }
+
+        /**
+         * Reads a rectangle line "id,x,y,h,w" into the record as its lower and upper corners.
+         * @return false if the rectangle does not intersect the window.
+         */
+        static boolean readRectangle(CsvFields fields, Window window, SpatialRecord record) {
+            int rectangleId = fields.nextId();
+            int x1 = fields.nextInt();
+            int y1 = fields.nextInt();
+            int h = fields.nextInt();
+            int w = fields.nextInt();
             int x2 = x1 + w;
             int y3 = y1 + h;
 
@@ -188,27 +292,23 @@ public class SpatialMapper {
             int minY = Math.min(y1, y3);
             int maxY = Math.max(y1, y3);
 
-            for (String gridPartition : gridPartitions) {
-                String[] gridDef = gridPartition.split(",");
-                String gridNum = gridDef[0];
-                int gridX1 = Integer.parseInt(gridDef[1]);
-                int gridY1 = Integer.parseInt(gridDef[2]);
-                int gridX2 = Integer.parseInt(gridDef[3]);
-                int gridY2 = Integer.parseInt(gridDef[4]);
-
-                if ((maxX >= gridX1) && (minX <= gridX2) && (maxY >= gridY1) && (minY <= gridY2)) {
-                    if (window != null) {
-                        if ((maxX >= window.x1) && (minX <= window.x2) && (maxY >= window.y1) && (minY <= window.y2)) {
-                            String rectangleCoordinatess = fields[0] + "," + x1 + "," + y1 + "," + x2 + "," + y3;
-                            context.write(new Text(gridNum), new Text(rectangleCoordinatess));
-                        }
-                    } else {
-                        String rectangleCoords = fields[0] + "," + x1 + "," + y1 + "," + x2 + "," + y3;
-                        context.write(new Text(gridNum), new Text(rectangleCoords));
-                    }
-                }
+            if ((maxX < window.x1) || (minX > window.x2) || (maxY < window.y1) || (minY > window.y2)) {
+                return false;
             }
+            record.setRectangle(rectangleId, minX, minY, maxX, maxY);
+            return true;
+        }
 
+        /**
+         * Reads rectangle i of a columnar block into the record.
+         * @return false if the rectangle does not intersect the window.
+         */
+        static boolean readRectangle(ColumnarBlock block, int i, Window window, SpatialRecord record) {
+            if (block.x2[i] < window.x1 || block.x1[i] > window.x2 || block.y2[i] < window.y1 || block.y1[i] > window.y2) {
+                return false;
+            }
+            record.setRectangle(block.id[i], block.x1[i], block.y1[i], block.x2[i], block.y2[i]);
+            return true;
         }
 
         /**
@@ -229,6 +329,22 @@ public class SpatialMapper {
                 this.y2 = y2;
             }
 
+            public int getX1() {
+                return x1;
+            }
+
+            public int getY1() {
+                return y1;
+            }
+
+            public int getX2() {
+                return x2;
+            }
+
+            public int getY2() {
+                return y2;
+            }
+
             /**
              *
              parses a string representation of the window coordinates passed as a configuration parameter.
@@ -252,4 +368,240 @@ public class SpatialMapper {
         }
 
     }
+//-------------------------------------------------------------------------------------------------------------------
+    /**
+     * Maps the first rectangle dataset of a rectangle overlap join, the probe side streamed by the reducers.
+     */
+    public static class MapProbeRectangles extends MapRectangles {
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            super.setup(context);
+            probeSide = true;
+        }
+    }
+
+    /**
+     * Maps the second point dataset of a distance join, the build side held by the reducers. A point inside the
+     * window is sent to every cell its square of side twice "join.distance" overlaps inside the window, and to all
+     * the salts of a hot cell, so every probe point finds the build points within the distance in its own cell.
+     */
+    public static class MapBuildPoints extends Mapper<Object, Writable, CellKey, NullWritable> {
+        private MapRectangles.Window window;
+        private Partitioning partitioning;
+        private int distance;
+        private int[] cells;
+        private int[] salts;
+        private long[] counts;
+        private JoinMetrics metrics;
+        private final CsvFields fields = new CsvFields();
+        private final CellKey cell = new CellKey();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            Configuration conf = context.getConfiguration();
+            window = MapRectangles.Window.parseWindowString(conf.get("window"));
+            distance = JoinPredicate.DISTANCE.expansion(conf);
+            partitioning = Partitioning.fromBlocks(DivideIntoBlocks.loadBlocks(context));
+            cells = new int[partitioning.size()];
+            salts = HotCells.salts(conf, partitioning.size());
+            counts = new long[partitioning.size()];
+            metrics = new JoinMetrics(conf);
+        }
+
+        @Override
+        protected void map(Object key, Writable value, Context context) throws IOException, InterruptedException {
+            if (value instanceof ColumnarBlock) {
+                ColumnarBlock block = (ColumnarBlock) value;
+                for (int i = 0; i < block.size; i++) {
+                    metrics.startRecord();
+                    metrics.increment(JoinMetrics.Join.POINTS_READ);
+                    mapPoint(block.x1[i], block.y1[i], context);
+                }
+                return;
+            }
+            metrics.startRecord();
+            metrics.increment(JoinMetrics.Join.POINTS_READ);
+            fields.reset((Text) value);
+            int x = fields.nextInt();
+            int y = fields.nextInt();
+            metrics.lap(JoinMetrics.Phase.PARSE);
+            mapPoint(x, y, context);
+        }
+
+        private void mapPoint(int x, int y, Context context) throws IOException, InterruptedException {
+            if (x < window.x1 || x > window.x2 || y < window.y1 || y > window.y2) {
+                metrics.increment(JoinMetrics.Join.POINTS_OUTSIDE_WINDOW);
+                return;
+            }
+            cell.getRecord().setBuildPoint(x, y);
+            int count = partitioning.overlapping((int) Math.max((long) x - distance, window.x1), (int) Math.max((long) y - distance, window.y1),
+                    (int) Math.min((long) x + distance, window.x2), (int) Math.min((long) y + distance, window.y2), cells);
+            metrics.lap(JoinMetrics.Phase.PARTITION);
+            for (int i = 0; i < count; i++) {
+                counts[cells[i]]++;
+                for (int salt = 0; salt < salts[cells[i]]; salt++) {
+                    cell.setCell(CellKey.salted(cells[i], salt));
+                    context.write(cell, NullWritable.get());
+                }
+            }
+            metrics.lap(JoinMetrics.Phase.WRITE);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            HotCells.writeCounts(context, false, counts);
+            metrics.flush(context);
+        }
+    }
+
+//-------------------------------------------------------------------------------------------------------------------
+    /**
+     * Map-only first step of the broadcast join: keeps the rectangles that intersect the window and writes them as
+     * binary SpatialRecords, to be shipped to every BroadcastJoinPoints task through the distributed cache.
+     */
+    public static class FilterRectangles extends Mapper<Object, Writable, NullWritable, SpatialRecord> {
+        private MapRectangles.Window window;
+        private final CsvFields fields = new CsvFields();
+        private final SpatialRecord record = new SpatialRecord();
+
+        @Override
+        protected void setup(Context context) {
+            window = MapRectangles.Window.parseWindowString(context.getConfiguration().get("window"));
+        }
+
+        @Override
+        protected void map(Object key, Writable value, Context context) throws IOException, InterruptedException {
+            if (value instanceof ColumnarBlock) {
+                ColumnarBlock block = (ColumnarBlock) value;
+                for (int i = 0; i < block.size; i++) {
+                    if (MapRectangles.readRectangle(block, i, window, record)) {
+                        context.write(NullWritable.get(), record);
+                    }
+                }
+            } else if (MapRectangles.readRectangle(fields.reset((Text) value), window, record)) {
+                context.write(NullWritable.get(), record);
+            }
+        }
+    }
+
+    /**
+     * Map side of the broadcast join, used when the window-filtered rectangles fit in memory. Every task loads all of
+     * them from the distributed cache into an STR packed R-tree and probes it with each point of its split, so the
+     * points are never shuffled. Subclasses decide what to do with each match.
+     */
+    public abstract static class BroadcastProbe<K, V> extends Mapper<Object, Writable, K, V> {
+        private MapRectangles.Window window;
+        protected final LocalJoin.RectangleBuffer rectangles = new LocalJoin.RectangleBuffer();
+        private final StrRTree tree = new StrRTree(LocalJoin.DEFAULT_RTREE_CAPACITY);
+        private final CsvFields fields = new CsvFields();
+        private Context context;
+        private int pointX;
+        private int pointY;
+
+        private final LocalJoin.Collector emit = new LocalJoin.Collector() {
+            @Override
+            public void collect(int point, int rectangle) throws IOException, InterruptedException {
+                match(rectangle, pointX, pointY, context);
+            }
+        };
+
+        /**
+         * Called for every rectangle, by index in {@link #rectangles}, that contains the point (x, y).
+         */
+        protected abstract void match(int rectangle, int x, int y, Context context) throws IOException, InterruptedException;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            Configuration conf = context.getConfiguration();
+            window = MapRectangles.Window.parseWindowString(conf.get("window"));
+            this.context = context;
+
+            SpatialRecord record = new SpatialRecord();
+            FileSystem local = FileSystem.getLocal(conf);
+            URI[] cacheFiles = context.getCacheFiles();
+            for (URI uri : cacheFiles == null ? new URI[0] : cacheFiles) {
+                if (uri.getFragment() == null || !uri.getFragment().startsWith(BROADCAST_LINK_PREFIX)) {
+                    continue;
+                }
+                // Read the localized copy through its link in the working directory when there is one.
+                Path link = local.makeQualified(new Path(uri.getFragment()));
+                Path path = local.exists(link) ? link : new Path(uri.getScheme(), uri.getAuthority(), uri.getPath());
+                try (SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(path))) {
+                    while (reader.next(NullWritable.get(), record)) {
+                        rectangles.add(record.getId(), record.getX1(), record.getY1(), record.getX2(), record.getY2());
+                    }
+                }
+            }
+            tree.build(rectangles.x1, rectangles.y1, rectangles.x2, rectangles.y2, rectangles.size);
+        }
+
+        @Override
+        protected void map(Object key, Writable value, Context context) throws IOException, InterruptedException {
+            if (value instanceof ColumnarBlock) {
+                ColumnarBlock block = (ColumnarBlock) value;
+                for (int i = 0; i < block.size; i++) {
+                    probe(block.x1[i], block.y1[i]);
+                }
+                return;
+            }
+            fields.reset((Text) value);
+            probe(fields.nextInt(), fields.nextInt());
+        }
+
+        private void probe(int x, int y) throws IOException, InterruptedException {
+            pointX = x;
+            pointY = y;
+            if (pointX >= window.x1 && pointX <= window.x2 && pointY >= window.y1 && pointY <= window.y2) {
+                tree.probe(pointX, pointY, 0, emit);
+            }
+        }
+    }
+
+    /**
+     * Broadcast join writing every (rectangle, point) pair, in the same format as SpatialJoinReduce.
+     */
+    public static class BroadcastJoinPoints extends BroadcastProbe<Text, Text> {
+        private final Text rectangleId = new Text();
+        private final Text pointText = new Text();
+        private final MatchText text = new MatchText();
+
+        @Override
+        protected void match(int rectangle, int x, int y, Context context) throws IOException, InterruptedException {
+            text.clear().id('r', rectangles.id[rectangle]).set(rectangleId);
+            text.clear().point(x, y).set(pointText);
+            context.write(rectangleId, pointText);
+        }
+    }
+
+    /**
+     * Broadcast join in the aggregation output mode: aggregates the matches of each rectangle over the whole split
+     * and writes one partial MatchAggregate per matched rectangle when the task ends.
+     */
+    public static class BroadcastAggregatePoints extends BroadcastProbe<IntWritable, MatchAggregate> {
+        private final MatchAggregate.Accumulator accumulator = new MatchAggregate.Accumulator();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            super.setup(context);
+            accumulator.reset(rectangles.size);
+        }
+
+        @Override
+        protected void match(int rectangle, int x, int y, Context context) {
+            accumulator.add(rectangle, x, y);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            IntWritable rectangleId = new IntWritable();
+            MatchAggregate aggregate = new MatchAggregate();
+            for (int r = 0; r < rectangles.size; r++) {
+                if (accumulator.count[r] > 0) {
+                    rectangleId.set(rectangles.id[r]);
+                    accumulator.get(r, aggregate);
+                    context.write(rectangleId, aggregate);
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,201 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+
+/**
+ * Map output value holding either a point or a rectangle of the join, in a compact binary form.
+ *
+ * The record starts with a one byte tag followed by fixed-width ints: x and y for a point (9 bytes),
+ * the numeric rectangle id and the lower and upper corners for a rectangle (21 bytes). The low bit of the
+ * tag is the side of the join (see {@link JoinPredicate}): build records, the rectangles of a point-in-rectangle
+ * join, have even tags and probe records odd tags. Records sort build records before probe records, then by
+ * tag and coordinates, and the registered {@link Comparator} compares the serialized bytes directly without
+ * deserializing them.
+ */
+public class SpatialRecord implements WritableComparable<SpatialRecord> {
+    public static final byte RECTANGLE = 0;
+    public static final byte POINT = 1;
+    public static final byte BUILD_POINT = 2;
+    public static final byte PROBE_RECTANGLE = 3;
+
+    private byte type;
+    private int id;
+    private int x1;
+    private int y1;
+    private int x2;
+    private int y2;
+
+    public void setPoint(int x, int y) {
+        this.type = POINT;
+        this.id = 0;
+        this.x1 = x;
+        this.y1 = y;
+        this.x2 = x;
+        this.y2 = y;
+    }
+
+    /**
+     * Sets a point of the build side of a distance join.
+     */
+    public void setBuildPoint(int x, int y) {
+        setPoint(x, y);
+        this.type = BUILD_POINT;
+    }
+
+    public void setRectangle(int id, int x1, int y1, int x2, int y2) {
+        this.type = RECTANGLE;
+        this.id = id;
+        this.x1 = x1;
+        this.y1 = y1;
+        this.x2 = x2;
+        this.y2 = y2;
+    }
+
+    /**
+     * Sets a rectangle of the probe side of a rectangle overlap join.
+     */
+    public void setProbeRectangle(int id, int x1, int y1, int x2, int y2) {
+        setRectangle(id, x1, y1, x2, y2);
+        this.type = PROBE_RECTANGLE;
+    }
+
+    /**
+     * @return true for a point of either side.
+     */
+    public boolean isPoint() {
+        return isPoint(type);
+    }
+
+    /**
+     * @return true for a record of the build side, held by the reducers while the probe side streams by.
+     */
+    public boolean isBuild() {
+        return (type & 1) == 0;
+    }
+
+    private static boolean isPoint(byte tag) {
+        return tag == POINT || tag == BUILD_POINT;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getX1() {
+        return x1;
+    }
+
+    public int getY1() {
+        return y1;
+    }
+
+    public int getX2() {
+        return x2;
+    }
+
+    public int getY2() {
+        return y2;
+    }
+
+    /**
+     * Parses the numeric part of a rectangle id such as "r42".
+     */
+    public static int parseRectangleId(String id) {
+        return Integer.parseInt(id.charAt(0) == 'r' ? id.substring(1) : id);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeByte(type);
+        if (isPoint(type)) {
+            out.writeInt(x1);
+            out.writeInt(y1);
+        } else {
+            out.writeInt(id);
+            out.writeInt(x1);
+            out.writeInt(y1);
+            out.writeInt(x2);
+            out.writeInt(y2);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        byte tag = in.readByte();
+        if (isPoint(tag)) {
+            setPoint(in.readInt(), in.readInt());
+        } else {
+            setRectangle(in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt());
+        }
+        type = tag;
+    }
+
+    @Override
+    public int compareTo(SpatialRecord other) {
+        int c = Integer.compare(type & 1, other.type & 1);
+        if (c == 0) c = Byte.compare(type, other.type);
+        if (c == 0) c = Integer.compare(x1, other.x1);
+        if (c == 0) c = Integer.compare(y1, other.y1);
+        if (c == 0) c = Integer.compare(x2, other.x2);
+        if (c == 0) c = Integer.compare(y2, other.y2);
+        if (c == 0) c = Integer.compare(id, other.id);
+        return c;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof SpatialRecord && compareTo((SpatialRecord) o) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((((type * 31 + id) * 31 + x1) * 31 + y1) * 31 + x2) * 31 + y2;
+    }
+
+    @Override
+    public String toString() {
+        if (isPoint(type)) {
+            return "(" + x1 + "," + y1 + ")";
+        }
+        return "r" + id + "," + x1 + "," + y1 + "," + x2 + "," + y2;
+    }
+
+    /**
+     * Compares serialized records in the same order as {@link #compareTo(SpatialRecord)}.
+     */
+    public static class Comparator extends WritableComparator {
+        public Comparator() {
+            super(SpatialRecord.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            int c = Integer.compare(b1[s1] & 1, b2[s2] & 1);
+            if (c == 0) {
+                c = Byte.compare(b1[s1], b2[s2]);
+            }
+            if (c != 0) {
+                return c;
+            }
+            if (isPoint(b1[s1])) {
+                c = Integer.compare(readInt(b1, s1 + 1), readInt(b2, s2 + 1));
+                return c != 0 ? c : Integer.compare(readInt(b1, s1 + 5), readInt(b2, s2 + 5));
+            }
+            // Rectangles: corners first, id last, as in compareTo.
+            for (int offset = 5; offset <= 17; offset += 4) {
+                c = Integer.compare(readInt(b1, s1 + offset), readInt(b2, s2 + offset));
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return Integer.compare(readInt(b1, s1 + 1), readInt(b2, s2 + 1));
+        }
+    }
+
+    static {
+        WritableComparator.define(SpatialRecord.class, new Comparator());
+    }
+}
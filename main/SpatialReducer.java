@@ -1,57 +1,275 @@
+import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
 
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.LocalDirAllocator;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.MRConfig;
 import org.apache.hadoop.mapreduce.Reducer;
 
 public class SpatialReducer {
 
-/**
- Reducer class  receives a key and a list of values (points or rectangles - comma separated strings) from a mapper.
- */
-    public static class SpatialJoinReduce extends Reducer<Text, Text, Text, Text> {
+    /** Default number of bytes of rectangles a reducer keeps on the heap for one cell before spilling them to disk. */
+    public static final long DEFAULT_RECTANGLE_HEAP_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Base of the reducers of the repartition join. The shuffle groups the records by cell and delivers the
+     * rectangles of the cell first, sorted by x1, then its points sorted by x (see {@link CellKey}). The
+     * rectangles are kept in a {@link RectangleStore} holding at most "reduce.rectangle.heap.bytes" on the heap
+     * (64 MB) and spilling the rest to a memory-mapped file in "reduce.rectangle.spill.dir" (by default a local
+     * directory of the task), and each point is probed by a {@link StreamingJoin} as it is read, so an oversized
+     * cell no longer has to fit in memory. With another "join.predicate" the build and probe records are those of the
+     * {@link JoinPredicate}: a probe rectangle sets {@code probeId} and the corners of the probe to pointX/pointY.
+     */
+    abstract static class CellReduce<K, V> extends Reducer<CellKey, NullWritable, K, V> {
+        protected StreamingJoin join;
+        protected int pointX;
+        protected int pointY;
+        protected int probeId;
+        protected JoinPredicate predicate;
+        protected WindowIndex windows;
+        private JoinMetrics metrics;
+
+        @Override
+        protected void setup(Context context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            RectangleStore store = new RectangleStore(conf.getLong("reduce.rectangle.heap.bytes", DEFAULT_RECTANGLE_HEAP_BYTES),
+                    spillDir(conf));
+            join = new StreamingJoin(conf.get("join.engine", LocalJoin.DEFAULT_ENGINE),
+                    Partitioning.fromBlocks(DivideIntoBlocks.loadBlocks(context)), store);
+            predicate = JoinPredicate.of(conf);
+            join.setPredicate(predicate, predicate.expansion(conf));
+            metrics = new JoinMetrics(conf);
+            windows = WindowIndex.load(conf);
+        }
+
+        /**
+         * @return "reduce.rectangle.spill.dir", or else a directory of the task under its local directories
+         * ("mapreduce.cluster.local.dir"), which the node manager removes with the job like the shuffle files.
+         */
+        private static File spillDir(Configuration conf) throws IOException {
+            String spillDir = conf.get("reduce.rectangle.spill.dir");
+            if (spillDir != null) {
+                return new File(spillDir);
+            }
+            File dir = new File(new LocalDirAllocator(MRConfig.LOCAL_DIR).getLocalPathForWrite("rectangles", conf).toUri().getPath());
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create the rectangle spill directory " + dir);
+            }
+            return dir;
+        }
 
     /**
-    reduce extracts the points and rectangles from the values list and checks if each point lies inside any of the rectangles.
-    It emits the rectangle ID and the point coordinates as the key-value pair for the output.
+    reduce reads the rectangles of the cell into the store, then checks each following point against them.
+    The key holds the current record and is refilled by the framework as the values are iterated.
+    Loading the rectangles and preparing them for the probes count as the build phase (see JoinMetrics).
 
     @param key The key received by the reducer.
-    @param values The list of values received by the reducer.
+    @param values One NullWritable per record of the cell.
     @param context The context object for writing the output key-value pairs.
 */
-        protected void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
-            List<Point> pointList = new ArrayList<>();
-            List<Rectangle> rectangleList = new ArrayList<>();
-            for(Text value: values){
-                String[] valueArr = value.toString().split(",");
-                if(valueArr.length==2){
-                    int pointX = Integer.parseInt(valueArr[0]);
-                    int pointY = Integer.parseInt(valueArr[1]);
-                    pointList.add(new Point(pointX, pointY));
+        @Override
+        protected void reduce(CellKey key, Iterable<NullWritable> values, final Context context) throws IOException, InterruptedException {
+            long cellStart = System.nanoTime();
+            join.startCell(CellKey.gridCell(key.getCell()));
+            SpatialRecord record = key.getRecord();
+            LocalJoin.Collector collector = new LocalJoin.Collector() {
+                @Override
+                public void collect(int point, int rectangle) throws IOException, InterruptedException {
+                    metrics.lap(JoinMetrics.Phase.PROBE);
+                    metrics.increment(JoinMetrics.Join.MATCHES);
+                    match(rectangle, context);
+                    metrics.lap(JoinMetrics.Phase.WRITE);
                 }
-                else{
-                    int recX1 = Integer.parseInt(valueArr[1]);
-                    int recY1 = Integer.parseInt(valueArr[2]);
-                    int recX2 = Integer.parseInt(valueArr[3]);
-                    int recY2 = Integer.parseInt(valueArr[4]);
-                    rectangleList.add(new Rectangle(valueArr[0], recX1, recY1, recX2, recY2));
+            };
+            boolean points = false;
+            long pointCount = 0;
+            for (NullWritable ignored : values) {
+                if (record.isBuild()) {
+                    metrics.startRecord();
+                    join.addRectangle(record.getId(), record.getX1(), record.getY1(), record.getX2(), record.getY2());
+                    metrics.lap(JoinMetrics.Phase.BUILD);
+                    continue;
                 }
-            }
-            for(Point point:pointList){
-                Set<String> overlappingRectangleIds = new HashSet<>();
-                for(Rectangle rectangle:rectangleList){
-                    if(rectangle.contains(point)){
-                        overlappingRectangleIds.add(rectangle.getId());
-                    }
+                if (!points) {
+                    points = true;
+                    long start = System.nanoTime();
+                    join.prepare();
+                    metrics.addTime(JoinMetrics.Phase.BUILD, System.nanoTime() - start);
+                    startPoints();
                 }
-                for(String overlappingRectangleId : overlappingRectangleIds) {
-                    String resultVal = point.toString();
-                    context.write(new Text(overlappingRectangleId), new Text(resultVal));
+                metrics.startRecord();
+                pointCount++;
+                pointX = record.getX1();
+                pointY = record.getY1();
+                if (record.isPoint()) {
+                    join.probe(pointX, pointY, collector);
+                } else {
+                    probeId = record.getId();
+                    join.probeRectangle(pointX, pointY, record.getX2(), record.getY2(), collector);
                 }
+                metrics.lap(JoinMetrics.Phase.PROBE);
             }
+            if (points) {
+                long start = System.nanoTime();
+                finishCell(context);
+                metrics.addTime(JoinMetrics.Phase.WRITE, System.nanoTime() - start);
+            }
+            metrics.increment(JoinMetrics.Join.CELLS);
+            metrics.add(JoinMetrics.Join.CELL_RECTANGLES, join.getRectangles().size());
+            metrics.add(JoinMetrics.Join.CELL_POINTS, pointCount);
+            metrics.cellTime(System.nanoTime() - cellStart);
+        }
+
+        /**
+         * Called once all the rectangles of the cell are in the store, before its first point.
+         */
+        protected void startPoints() {
+        }
+
+        /**
+         * Handles a match of the current point (pointX, pointY) with a rectangle of the store.
+         */
+        protected abstract void match(int rectangle, Context context) throws IOException, InterruptedException;
+
+        /**
+         * Called after the last point of a cell that had points.
+         */
+        protected void finishCell(Context context) throws IOException, InterruptedException {
         }
+
+        @Override
+        protected void cleanup(Context context) throws IOException {
+            metrics.add(JoinMetrics.Join.CANDIDATE_PAIRS, join.getCandidates());
+            metrics.flush(context);
+            join.close();
+        }
+    }
+
+/**
+ Reducer class  receives the records of a grid cell (points and rectangles - binary SpatialRecords) from the mappers
+ and emits the rectangle ID and the point coordinates of every match.
+ In a batch of windows the match is emitted once for every window containing the point, keyed by "wK  rN".
+ An overlap join emits "rN  rM", the probe rectangle first, and a distance join "(x,y)  (x,y)", the probe point first.
+ */
+    public static class SpatialJoinReduce extends CellReduce<Text, Text> {
+        private final Text rectangleId = new Text();
+        private final Text pointText = new Text();
+        private final MatchText text = new MatchText();
+        private int[] pointWindows;
+
+        @Override
+        protected void setup(Context context) throws IOException {
+            super.setup(context);
+            pointWindows = new int[windows == null ? 0 : windows.size()];
+        }
+
+        @Override
+        protected void match(int rectangle, Context context) throws IOException, InterruptedException {
+            RectangleStore store = join.getRectangles();
+            if (predicate == JoinPredicate.OVERLAPS) {
+                text.clear().id('r', probeId).set(rectangleId);
+                text.clear().id('r', store.id(rectangle)).set(pointText);
+                context.write(rectangleId, pointText);
+                return;
+            }
+            text.clear().point(pointX, pointY).set(pointText);
+            if (predicate == JoinPredicate.DISTANCE) {
+                rectangleId.set(pointText);
+                text.clear().point(store.x1(rectangle), store.y1(rectangle)).set(pointText);
+                context.write(rectangleId, pointText);
+                return;
+            }
+            if (windows == null) {
+                text.clear().id('r', store.id(rectangle)).set(rectangleId);
+                context.write(rectangleId, pointText);
+                return;
+            }
+            for (int i = 0, count = windows.containing(pointX, pointY, pointWindows); i < count; i++) {
+                text.clear().id('w', windows.id(pointWindows[i])).append('\t').id('r', store.id(rectangle)).set(rectangleId);
+                context.write(rectangleId, pointText);
+            }
         }
+    }
+
+    /**
+     * First stage of the aggregation output mode: joins a cell like SpatialJoinReduce but, instead of writing every
+     * (rectangle, point) pair, aggregates the matches of each rectangle of the cell and writes one partial
+     * MatchAggregate per matched rectangle, keyed by the numeric rectangle id.
+     */
+    public static class SpatialAggregateReduce extends CellReduce<IntWritable, MatchAggregate> {
+        private final MatchAggregate.Accumulator accumulator = new MatchAggregate.Accumulator();
+        private final IntWritable rectangleId = new IntWritable();
+        private final MatchAggregate aggregate = new MatchAggregate();
+
+        @Override
+        protected void startPoints() {
+            accumulator.reset(join.getRectangles().size());
+        }
+
+        @Override
+        protected void match(int rectangle, Context context) {
+            accumulator.add(rectangle, pointX, pointY);
+        }
+
+        @Override
+        protected void finishCell(Context context) throws IOException, InterruptedException {
+            RectangleStore rectangles = join.getRectangles();
+            for (int r = 0; r < rectangles.size(); r++) {
+                if (accumulator.count[r] > 0) {
+                    rectangleId.set(rectangles.id(r));
+                    accumulator.get(r, aggregate);
+                    context.write(rectangleId, aggregate);
+                }
+            }
+        }
+    }
+
+    /**
+     * Combiner of the aggregation stage: merges the partial aggregates of a rectangle on the map side so the
+     * shuffle carries at most one aggregate per rectangle and map task.
+     */
+    public static class AggregateCombine extends Reducer<IntWritable, MatchAggregate, IntWritable, MatchAggregate> {
+        private final MatchAggregate total = new MatchAggregate();
+
+        @Override
+        protected void reduce(IntWritable key, Iterable<MatchAggregate> values, Context context) throws IOException, InterruptedException {
+            total.clear();
+            for (MatchAggregate value : values) {
+                total.merge(value);
+            }
+            context.write(key, total);
+        }
+    }
+
+    /**
+     * Final reducer of the aggregation stage: merges the partial aggregates of a rectangle and writes
+     * "rN  count", or "rN  count,(minX,minY),(maxX,maxY)" when "output.mode" is "count-mbr".
+     */
+    public static class AggregateReduce extends Reducer<IntWritable, MatchAggregate, Text, Text> {
+        private final MatchAggregate total = new MatchAggregate();
+        private final Text rectangleId = new Text();
+        private final Text result = new Text();
+        private boolean withBoundingBox;
+
+        @Override
+        protected void setup(Context context) {
+            withBoundingBox = "count-mbr".equals(context.getConfiguration().get("output.mode"));
+        }
+
+        @Override
+        protected void reduce(IntWritable key, Iterable<MatchAggregate> values, Context context) throws IOException, InterruptedException {
+            total.clear();
+            for (MatchAggregate value : values) {
+                total.merge(value);
+            }
+            rectangleId.set("r" + key.get());
+            result.set(total.format(withBoundingBox));
+            context.write(rectangleId, result);
+        }
+    }
 
     /**
      * Point class represents a 2D point with x and y coordinates.
@@ -78,37 +296,4 @@ public class SpatialReducer {
                 return "(" + x + "," + y + ")";
             }
         }
-
-    /**
-     This is a Rectangle class that represents a rectangle with x and y coordinates of two opposite corners.
-     It also has a unique ID to identify the rectangle.
-     */
-
-        public static class Rectangle {
-            private final String id;
-            private final int x1;
-            private final int y1;
-            private final int x2;
-            private final int y2;
-
-            public Rectangle(String id, int x1, int y1, int x2, int y2){
-                this.id = id;
-                this.x1 = x1;
-                this.y1 = y1;
-                this.x2 = x2;
-                this.y2 = y2;
-            }
-
-            public String getId() {
-                return id;
-            }
-
-            public boolean contains(Point point){
-                int pointX = point.getX();
-                int pointY = point.getY();
-                return (pointX >= x1) && (pointX <= x2) && (pointY >= y1) && (pointY <= y2);
-            }
-        }
     }
-
-}
\ No newline at end of file
@@ -0,0 +1,275 @@
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Sort-Tile-Recursive packed R-tree over a set of rectangles, stored in flat primitive arrays.
+ *
+ * The rectangles are sorted into vertical slices on the x coordinate of their center, each slice
+ * is sorted on the y coordinate of the center and cut into leaves of {@code capacity} entries.
+ * Upper levels group consecutive nodes of the level below, which keeps the spatial locality of
+ * the STR order. All node boxes live in the same four coordinate arrays, level 0 (the rectangles
+ * themselves, in STR order) first and the root last. Searches read the boxes through int buffers, which wrap
+ * these arrays for a tree built here and are views of the buffer for a tree read from a memory-mapped file, so
+ * a read tree is probed in place.
+ */
+public class StrRTree {
+    private final int capacity;
+    private int[] minX = new int[0];
+    private int[] minY = new int[0];
+    private int[] maxX = new int[0];
+    private int[] maxY = new int[0];
+    private int[] order = new int[0];
+    private IntBuffer boxMinX = IntBuffer.allocate(0);
+    private IntBuffer boxMinY = IntBuffer.allocate(0);
+    private IntBuffer boxMaxX = IntBuffer.allocate(0);
+    private IntBuffer boxMaxY = IntBuffer.allocate(0);
+    private IntBuffer entries = IntBuffer.allocate(0);
+    private int[] levelStart = new int[1];
+    private int levels;
+    private int[] stackLevel = new int[0];
+    private int[] stackNode = new int[0];
+    private long candidates;
+
+    public StrRTree(int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("R-tree node capacity must be at least 2: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns a tree searching the boxes of this one with its own search stack and candidate count, so that several
+     * threads can search the same tree. The view must not be used after this tree is built or read again.
+     */
+    public StrRTree view() {
+        StrRTree view = new StrRTree(capacity);
+        view.levels = levels;
+        view.levelStart = levelStart;
+        view.boxMinX = boxMinX;
+        view.boxMinY = boxMinY;
+        view.boxMaxX = boxMaxX;
+        view.boxMaxY = boxMaxY;
+        view.entries = entries;
+        view.growStack();
+        return view;
+    }
+
+    /**
+     * Bulk-loads the tree from the first {@code size} rectangles of the given coordinate arrays,
+     * replacing whatever the tree held before.
+     */
+    public void build(int[] x1, int[] y1, int[] x2, int[] y2, int size) {
+        order = strOrder(x1, y1, x2, y2, size);
+
+        // Count the nodes of every level to size the flat arrays in one go.
+        int total = 0;
+        levels = 0;
+        int count = size;
+        int[] counts = new int[34];
+        while (count > 0) {
+            counts[levels++] = count;
+            total += count;
+            if (count == 1) {
+                break;
+            }
+            count = (count + capacity - 1) / capacity;
+        }
+        levelStart = new int[levels + 1];
+        for (int l = 0; l < levels; l++) {
+            levelStart[l + 1] = levelStart[l] + counts[l];
+        }
+        if (minX.length < total) {
+            minX = new int[total];
+            minY = new int[total];
+            maxX = new int[total];
+            maxY = new int[total];
+        }
+
+        for (int i = 0; i < size; i++) {
+            int r = order[i];
+            minX[i] = x1[r];
+            minY[i] = y1[r];
+            maxX[i] = x2[r];
+            maxY[i] = y2[r];
+        }
+        for (int l = 1; l < levels; l++) {
+            int childStart = levelStart[l - 1];
+            int childEnd = levelStart[l];
+            for (int node = levelStart[l], child = childStart; node < levelStart[l + 1]; node++) {
+                int last = Math.min(child + capacity, childEnd);
+                int nx1 = Integer.MAX_VALUE, ny1 = Integer.MAX_VALUE, nx2 = Integer.MIN_VALUE, ny2 = Integer.MIN_VALUE;
+                for (; child < last; child++) {
+                    nx1 = Math.min(nx1, minX[child]);
+                    ny1 = Math.min(ny1, minY[child]);
+                    nx2 = Math.max(nx2, maxX[child]);
+                    ny2 = Math.max(ny2, maxY[child]);
+                }
+                minX[node] = nx1;
+                minY[node] = ny1;
+                maxX[node] = nx2;
+                maxY[node] = ny2;
+            }
+        }
+
+        boxMinX = IntBuffer.wrap(minX);
+        boxMinY = IntBuffer.wrap(minY);
+        boxMaxX = IntBuffer.wrap(maxX);
+        boxMaxY = IntBuffer.wrap(maxY);
+        entries = IntBuffer.wrap(order);
+        growStack();
+    }
+
+    private void growStack() {
+        int stackSize = levels * capacity + 1;
+        if (stackLevel.length < stackSize) {
+            stackLevel = new int[stackSize];
+            stackNode = new int[stackSize];
+        }
+    }
+
+    /**
+     * Reports to the collector every rectangle that contains the point (x, y).
+     * @param point index of the point, passed through to the collector.
+     */
+    public void probe(int x, int y, int point, LocalJoin.Collector collector) throws IOException, InterruptedException {
+        search(x, y, x, y, point, collector);
+    }
+
+    /**
+     * Reports to the collector every rectangle that intersects the box (x1,y1)-(x2,y2).
+     * @param probe index of the probed record, passed through to the collector.
+     */
+    public void search(int x1, int y1, int x2, int y2, int probe, LocalJoin.Collector collector) throws IOException, InterruptedException {
+        if (levels == 0) {
+            return;
+        }
+        int top = 0;
+        stackLevel[top] = levels - 1;
+        stackNode[top] = 0;
+        top++;
+        while (top > 0) {
+            top--;
+            int level = stackLevel[top];
+            int node = stackNode[top];
+            int box = levelStart[level] + node;
+            candidates += level == 0 ? 1 : 0;
+            if (x2 < boxMinX.get(box) || x1 > boxMaxX.get(box) || y2 < boxMinY.get(box) || y1 > boxMaxY.get(box)) {
+                continue;
+            }
+            if (level == 0) {
+                collector.collect(probe, entries.get(node));
+                continue;
+            }
+            int first = node * capacity;
+            int last = Math.min(first + capacity, levelStart[level] - levelStart[level - 1]);
+            // Push children in reverse so they are visited in STR order.
+            for (int child = last - 1; child >= first; child--) {
+                stackLevel[top] = level - 1;
+                stackNode[top] = child;
+                top++;
+            }
+        }
+    }
+
+    /**
+     * Writes the tree as ints: its capacity, its number of levels, the start of every level, the boxes of all the
+     * levels as the minX, minY, maxX and maxY columns, and the index of the rectangle of every leaf entry.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(capacity);
+        out.writeInt(levels);
+        for (int l = 0; l <= levels; l++) {
+            out.writeInt(levelStart[l]);
+        }
+        int total = levelStart[levels];
+        for (IntBuffer column : new IntBuffer[]{boxMinX, boxMinY, boxMaxX, boxMaxY}) {
+            for (int i = 0; i < total; i++) {
+                out.writeInt(column.get(i));
+            }
+        }
+        for (int i = 0; i < levelStart[Math.min(1, levels)]; i++) {
+            out.writeInt(entries.get(i));
+        }
+    }
+
+    /**
+     * Reads a tree written by {@link #write(DataOutput)} from the buffer, for instance a memory-mapped file,
+     * replacing whatever the tree held before. Only the level starts are copied: the boxes and leaf entries stay in
+     * the buffer, which must not change while the tree is in use. The buffer is left after the tree.
+     * @throws IllegalArgumentException if the tree was written with another node capacity.
+     */
+    public void read(IntBuffer in) {
+        int written = in.get();
+        if (written != capacity) {
+            throw new IllegalArgumentException("R-tree written with capacity " + written + ", expected " + capacity);
+        }
+        levels = in.get();
+        levelStart = new int[levels + 1];
+        in.get(levelStart);
+        int total = levelStart[levels];
+        boxMinX = slice(in, total);
+        boxMinY = slice(in, total);
+        boxMaxX = slice(in, total);
+        boxMaxY = slice(in, total);
+        entries = slice(in, levelStart[Math.min(1, levels)]);
+        growStack();
+    }
+
+    /**
+     * @return A view of the next {@code length} ints of the buffer, which is moved past them.
+     */
+    static IntBuffer slice(IntBuffer in, int length) {
+        IntBuffer view = in.slice();
+        view.limit(length);
+        in.position(in.position() + length);
+        return view;
+    }
+
+    /**
+     * Adds the rectangles of the tree to the buffer in STR order, {@code ids.get(i)} being the id of rectangle i.
+     */
+    public void addRectangles(IntBuffer ids, LocalJoin.RectangleBuffer rectangles) {
+        for (int e = 0; e < levelStart[Math.min(1, levels)]; e++) {
+            rectangles.add(ids.get(entries.get(e)), boxMinX.get(e), boxMinY.get(e), boxMaxX.get(e), boxMaxY.get(e));
+        }
+    }
+
+    /**
+     * @return The number of rectangles tested against a probed point since the tree was created.
+     */
+    public long getCandidates() {
+        return candidates;
+    }
+
+    /**
+     * Returns the rectangle indexes in STR order: sorted into vertical slices by the x coordinate
+     * of their center, and by the y coordinate of their center within each slice.
+     */
+    private int[] strOrder(int[] x1, int[] y1, int[] x2, int[] y2, int size) {
+        long[] keys = new long[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = ((long) (x1[i] + ((x2[i] - x1[i]) >> 1)) << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        int leaves = (size + capacity - 1) / capacity;
+        int slices = (int) Math.ceil(Math.sqrt(leaves));
+        int sliceSize = Math.max(1, slices) * capacity;
+        for (int start = 0; start < size; start += sliceSize) {
+            int end = Math.min(start + sliceSize, size);
+            for (int i = start; i < end; i++) {
+                int r = (int) keys[i];
+                keys[i] = ((long) (y1[r] + ((y2[r] - y1[r]) >> 1)) << 32) | r;
+            }
+            Arrays.sort(keys, start, end);
+        }
+
+        int[] result = new int[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = (int) keys[i];
+        }
+        return result;
+    }
+}
@@ -0,0 +1,410 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Joins the records of one grid cell as they come out of the shuffle: the build records first, sorted by x1,
+ * then the probe records, sorted by x. Only the build records are held, in a {@link RectangleStore} that spills to
+ * a memory-mapped file when the cell is too large for the task heap; each probe record is joined and dropped. The
+ * build points of a distance join are held as rectangles of zero extent.
+ *
+ * The "sweep" engine activates the rectangles whose x1 the point has reached and retires those whose x2 it
+ * has passed, so it relies on both sorts and works on a spilled store. The "rtree" engine builds an STR
+ * R-tree over the rectangles of the cell on its first point and probes it; it needs the rectangles on the
+ * heap and falls back to the sweep for a spilled cell. The "nested" engine tests every rectangle.
+ *
+ * Each {@link JoinPredicate} has its own local join. A probe rectangle of an overlap join is searched in the R-tree,
+ * or swept: the active rectangles cover its x1 and the rectangles starting inside its x range are scanned ahead.
+ * A probe point of a distance join looks up the buckets of a grid hash of the build points, of side at least the
+ * distance, around it; a spilled cell sweeps the build points within the distance in x instead.
+ *
+ * A match is reported only if the cell owns its reference point, which for a point-in-rectangle pair or a distance
+ * pair is the probe point itself and for a pair of rectangles the lower corner of their intersection, so a pair is
+ * reported by exactly one cell even when a record, or a point sitting on a cell border, is sent to several cells.
+ * No per-point set of rectangle ids is needed to drop duplicates.
+ */
+public class StreamingJoin implements Closeable {
+    private final String engine;
+    private final Partitioning partitioning;
+    private final RectangleStore rectangles;
+    private StrRTree tree;
+    private JoinPredicate predicate = JoinPredicate.CONTAINS;
+    private int distance;
+    private long distanceSquared;
+
+    private int cell;
+    private int points;
+    private boolean probing;
+    private boolean sweep;
+    private int next;
+    private int[] active = new int[16];
+    private int activeSize;
+    private long candidates;
+
+    // Grid hash of the build points of a distance join: bucket b holds entries bucketStart[b] to bucketStart[b + 1] - 1
+    private boolean hashed;
+    private int gridX;
+    private int gridY;
+    private long gridSide;
+    private int gridColumns;
+    private int gridRows;
+    private int[] bucketStart = new int[1];
+    private int[] bucketEntries = new int[0];
+    private int[] buildX;
+    private int[] buildY;
+
+    // Reference point filter of the rectangle overlap join, wrapped around the collector of a probe
+    private int probeX1;
+    private int probeY1;
+    private LocalJoin.Collector target;
+    private final LocalJoin.Collector referenceFilter = new LocalJoin.Collector() {
+        @Override
+        public void collect(int probe, int rectangle) throws IOException, InterruptedException {
+            if (ownsReference(rectangle, probeX1, probeY1)) {
+                target.collect(probe, rectangle);
+            }
+        }
+    };
+
+    /**
+     * @param engine       Local join engine: "sweep", "rtree" or "nested".
+     * @param partitioning Cells of the job, used for the reference point test.
+     * @param rectangles   Store holding the rectangles of the current cell.
+     */
+    public StreamingJoin(String engine, Partitioning partitioning, RectangleStore rectangles) {
+        if (!engine.equals("sweep") && !engine.equals("rtree") && !engine.equals("nested")) {
+            throw new IllegalArgumentException("Unknown join engine: " + engine);
+        }
+        this.engine = engine;
+        this.partitioning = partitioning;
+        this.rectangles = rectangles;
+    }
+
+    /**
+     * Creates a join probing the prepared cell of the given one, sharing its store and index.
+     */
+    private StreamingJoin(StreamingJoin built) {
+        this.engine = built.engine;
+        this.partitioning = built.partitioning;
+        this.rectangles = built.rectangles;
+        this.tree = built.tree == null ? null : built.tree.view();
+        this.predicate = built.predicate;
+        this.distance = built.distance;
+        this.distanceSquared = built.distanceSquared;
+        this.cell = built.cell;
+        this.probing = true;
+        this.sweep = built.sweep;
+        this.hashed = built.hashed;
+        this.gridX = built.gridX;
+        this.gridY = built.gridY;
+        this.gridSide = built.gridSide;
+        this.gridColumns = built.gridColumns;
+        this.gridRows = built.gridRows;
+        this.bucketStart = built.bucketStart;
+        this.bucketEntries = built.bucketEntries;
+        this.buildX = built.buildX;
+        this.buildY = built.buildY;
+    }
+
+    /**
+     * Prepares the current cell and returns a join probing it with its own sweep state, so that several threads can
+     * probe ranges of the points of one cell while its rectangles are stored and indexed once. The store and the index
+     * are shared read-only: the cell must not change while the returned joins are in use, and they are not closed.
+     */
+    public StreamingJoin newProbe() {
+        prepare();
+        return new StreamingJoin(this);
+    }
+
+    /**
+     * Sets the predicate of the join, point-in-rectangle by default.
+     * @param distance Largest distance of a pair of a distance join.
+     */
+    public void setPredicate(JoinPredicate predicate, int distance) {
+        this.predicate = predicate;
+        this.distance = distance;
+        this.distanceSquared = (long) distance * distance;
+    }
+
+    public RectangleStore getRectangles() {
+        return rectangles;
+    }
+
+    /**
+     * @return The number of (rectangle, point) pairs tested since the join was created.
+     */
+    public long getCandidates() {
+        return candidates + (tree == null ? 0 : tree.getCandidates());
+    }
+
+    /**
+     * Starts a new cell, forgetting the rectangles of the previous one.
+     */
+    public void startCell(int cell) {
+        this.cell = cell;
+        rectangles.clear();
+        points = 0;
+        probing = false;
+        next = 0;
+        activeSize = 0;
+    }
+
+    /**
+     * Adds a rectangle of the current cell. Rectangles must be added before the points, in non-decreasing x1.
+     */
+    public void addRectangle(int id, int x1, int y1, int x2, int y2) throws IOException {
+        rectangles.add(id, x1, y1, x2, y2);
+    }
+
+    /**
+     * Probes a point of the current cell and reports every rectangle containing it, or every build point within the
+     * distance of a distance join, to the collector, with the running number of the point in the cell and the index
+     * of the rectangle in the store. Points must come in non-decreasing x. A point whose cell is not the current one
+     * is skipped.
+     */
+    public void probe(int x, int y, LocalJoin.Collector collector) throws IOException, InterruptedException {
+        int point = points++;
+        if (partitioning.cellOf(x, y) != cell || rectangles.size() == 0) {
+            return;
+        }
+        prepare();
+
+        if (sweep) {
+            sweep(point, x, y, collector);
+        } else if (hashed) {
+            probeGrid(point, x, y, collector);
+        } else if (engine.equals("rtree")) {
+            tree.probe(x, y, point, collector);
+        } else {
+            candidates += rectangles.size();
+            for (int r = 0; r < rectangles.size(); r++) {
+                if (matches(r, x, y)) {
+                    collector.collect(point, r);
+                }
+            }
+        }
+    }
+
+    /**
+     * Probes a rectangle of the current cell in an overlap join and reports every rectangle of the store that
+     * intersects it, and whose intersection with it starts in the cell. Probe rectangles must come in non-decreasing
+     * x1.
+     */
+    public void probeRectangle(int x1, int y1, int x2, int y2, LocalJoin.Collector collector) throws IOException, InterruptedException {
+        int probe = points++;
+        if (rectangles.size() == 0) {
+            return;
+        }
+        prepare();
+
+        if (sweep) {
+            sweepRectangle(probe, x1, y1, x2, y2, collector);
+        } else if (engine.equals("rtree")) {
+            probeX1 = x1;
+            probeY1 = y1;
+            target = collector;
+            tree.search(x1, y1, x2, y2, probe, referenceFilter);
+        } else {
+            candidates += rectangles.size();
+            for (int r = 0; r < rectangles.size(); r++) {
+                if (x1 <= rectangles.x2(r) && x2 >= rectangles.x1(r) && y1 <= rectangles.y2(r) && y2 >= rectangles.y1(r)
+                        && ownsReference(r, x1, y1)) {
+                    collector.collect(probe, r);
+                }
+            }
+        }
+    }
+
+    /**
+     * Prepares the rectangles of the cell for probing, building the R-tree of the "rtree" engine. Called by the
+     * first probe of a cell if not called before; calling it earlier lets the caller tell the build from the probes.
+     */
+    public void prepare() {
+        if (probing) {
+            return;
+        }
+        probing = true;
+        hashed = false;
+        if (predicate == JoinPredicate.DISTANCE) {
+            // The grid hash replaces both indexed engines; the nested loop stays the reference.
+            sweep = rectangles.isSpilled() && !engine.equals("nested");
+            if (!sweep && !engine.equals("nested") && rectangles.size() > 0) {
+                buildGrid();
+            }
+            return;
+        }
+        sweep = engine.equals("sweep") || (engine.equals("rtree") && rectangles.isSpilled());
+        if (!sweep && engine.equals("rtree") && rectangles.size() > 0) {
+            if (tree == null) {
+                tree = new StrRTree(LocalJoin.DEFAULT_RTREE_CAPACITY);
+            }
+            int[][] arrays = rectangles.arrays();
+            tree.build(arrays[0], arrays[1], arrays[2], arrays[3], rectangles.size());
+        }
+    }
+
+    /**
+     * @return true if the point is in rectangle r of the store, or within the distance of build point r.
+     */
+    private boolean matches(int r, int x, int y) {
+        if (predicate == JoinPredicate.DISTANCE) {
+            long dx = (long) x - rectangles.x1(r);
+            long dy = (long) y - rectangles.y1(r);
+            return dx * dx + dy * dy <= distanceSquared;
+        }
+        return x >= rectangles.x1(r) && x <= rectangles.x2(r) && y >= rectangles.y1(r) && y <= rectangles.y2(r);
+    }
+
+    /**
+     * @return true if the cell owns the lower corner of the intersection of rectangle r with a probe rectangle.
+     */
+    private boolean ownsReference(int r, int x1, int y1) {
+        return partitioning.cellOf(Math.max(x1, rectangles.x1(r)), Math.max(y1, rectangles.y1(r))) == cell;
+    }
+
+    private void sweep(int point, int x, int y, LocalJoin.Collector collector) throws IOException, InterruptedException {
+        int size = rectangles.size();
+        // A build point of a distance join is active while it is within the distance in x.
+        int reach = predicate == JoinPredicate.DISTANCE ? distance : 0;
+        while (next < size && rectangles.x1(next) <= (long) x + reach) {
+            if ((long) rectangles.x2(next) + reach >= x) {
+                if (activeSize == active.length) {
+                    active = Arrays.copyOf(active, activeSize * 2);
+                }
+                active[activeSize++] = next;
+            }
+            next++;
+        }
+        // Retired rectangles are compacted out in place, so the active list stays in store order and a point
+        // reports its matches in the same order whichever point the sweep started from.
+        int kept = 0;
+        candidates += activeSize;
+        for (int i = 0; i < activeSize; i++) {
+            int r = active[i];
+            if ((long) rectangles.x2(r) + reach < x) {
+                continue;
+            }
+            active[kept++] = r;
+            if (matches(r, x, y)) {
+                collector.collect(point, r);
+            }
+        }
+        activeSize = kept;
+    }
+
+    private void sweepRectangle(int probe, int x1, int y1, int x2, int y2, LocalJoin.Collector collector) throws IOException, InterruptedException {
+        int size = rectangles.size();
+        while (next < size && rectangles.x1(next) <= x1) {
+            if (rectangles.x2(next) >= x1) {
+                if (activeSize == active.length) {
+                    active = Arrays.copyOf(active, activeSize * 2);
+                }
+                active[activeSize++] = next;
+            }
+            next++;
+        }
+        int kept = 0;
+        candidates += activeSize;
+        for (int i = 0; i < activeSize; i++) {
+            int r = active[i];
+            if (rectangles.x2(r) < x1) {
+                continue;
+            }
+            active[kept++] = r;
+            if (y1 <= rectangles.y2(r) && y2 >= rectangles.y1(r) && ownsReference(r, x1, y1)) {
+                collector.collect(probe, r);
+            }
+        }
+        activeSize = kept;
+        // Rectangles starting inside the probe's x range are not active yet.
+        for (int r = next; r < size && rectangles.x1(r) <= x2; r++) {
+            candidates++;
+            if (y1 <= rectangles.y2(r) && y2 >= rectangles.y1(r) && ownsReference(r, x1, y1)) {
+                collector.collect(probe, r);
+            }
+        }
+    }
+
+    /**
+     * Hashes the build points of the cell into square buckets of side at least the distance, doubled until there
+     * are about as many buckets as points, with a counting sort into one array.
+     */
+    private void buildGrid() {
+        int size = rectangles.size();
+        int[][] arrays = rectangles.arrays();
+        buildX = arrays[0];
+        buildY = arrays[1];
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        for (int r = 0; r < size; r++) {
+            minX = Math.min(minX, buildX[r]);
+            minY = Math.min(minY, buildY[r]);
+            maxX = Math.max(maxX, buildX[r]);
+            maxY = Math.max(maxY, buildY[r]);
+        }
+        gridX = minX;
+        gridY = minY;
+        gridSide = Math.max(1, distance);
+        while ((((long) maxX - minX) / gridSide + 1) * (((long) maxY - minY) / gridSide + 1) > 2L * size + 16) {
+            gridSide *= 2;
+        }
+        gridColumns = (int) (((long) maxX - minX) / gridSide + 1);
+        gridRows = (int) (((long) maxY - minY) / gridSide + 1);
+
+        int buckets = gridColumns * gridRows;
+        if (bucketStart.length < buckets + 1) {
+            bucketStart = new int[buckets + 1];
+        } else {
+            Arrays.fill(bucketStart, 0, buckets + 1, 0);
+        }
+        if (bucketEntries.length < size) {
+            bucketEntries = new int[size];
+        }
+        for (int r = 0; r < size; r++) {
+            bucketStart[bucket(buildX[r], buildY[r]) + 1]++;
+        }
+        for (int b = 0; b < buckets; b++) {
+            bucketStart[b + 1] += bucketStart[b];
+        }
+        for (int r = 0; r < size; r++) {
+            int b = bucket(buildX[r], buildY[r]);
+            bucketEntries[bucketStart[b]++] = r;
+        }
+        // The fill moved every start to the end of its bucket, which is the start of the next one.
+        System.arraycopy(bucketStart, 0, bucketStart, 1, buckets);
+        bucketStart[0] = 0;
+        hashed = true;
+    }
+
+    private int bucket(int x, int y) {
+        return (int) (((long) x - gridX) / gridSide) * gridRows + (int) (((long) y - gridY) / gridSide);
+    }
+
+    private void probeGrid(int point, int x, int y, LocalJoin.Collector collector) throws IOException, InterruptedException {
+        long firstColumn = Math.max(0, Math.floorDiv((long) x - distance - gridX, gridSide));
+        long lastColumn = Math.min(gridColumns - 1, Math.floorDiv((long) x + distance - gridX, gridSide));
+        long firstRow = Math.max(0, Math.floorDiv((long) y - distance - gridY, gridSide));
+        long lastRow = Math.min(gridRows - 1, Math.floorDiv((long) y + distance - gridY, gridSide));
+        for (long column = firstColumn; column <= lastColumn; column++) {
+            for (long row = firstRow; row <= lastRow; row++) {
+                int b = (int) (column * gridRows + row);
+                candidates += bucketStart[b + 1] - bucketStart[b];
+                for (int e = bucketStart[b]; e < bucketStart[b + 1]; e++) {
+                    int r = bucketEntries[e];
+                    long dx = (long) x - buildX[r];
+                    long dy = (long) y - buildY[r];
+                    if (dx * dx + dy * dy <= distanceSquared) {
+                        collector.collect(point, r);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        rectangles.close();
+    }
+}
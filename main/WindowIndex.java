@@ -0,0 +1,197 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Interval index over the query windows of a batch, given in "windows" as "x1,y1,x2,y2" windows separated by ';'
+ * and numbered from 1 in that order.
+ *
+ * The x axis is cut into slabs at every window edge, and each slab lists the windows covering it in id order, so
+ * the windows containing a point are found with one binary search and a scan of the windows of its slab, checked on
+ * y. Windows are closed boxes, like the single "window" of a job.
+ */
+public class WindowIndex {
+    private final int[] x1;
+    private final int[] y1;
+    private final int[] x2;
+    private final int[] y2;
+    // Slab k holds the x values from slabStart[k] to slabStart[k + 1] - 1; the last start only ends the last slab.
+    private final long[] slabStart;
+    private final int[][] slabWindows;
+    private final int[] stamp;
+    private int query;
+
+    private WindowIndex(int[] x1, int[] y1, int[] x2, int[] y2) {
+        this.x1 = x1;
+        this.y1 = y1;
+        this.x2 = x2;
+        this.y2 = y2;
+        stamp = new int[x1.length];
+
+        long[] edges = new long[2 * x1.length];
+        for (int w = 0; w < x1.length; w++) {
+            edges[2 * w] = x1[w];
+            edges[2 * w + 1] = x2[w] + 1L;
+        }
+        Arrays.sort(edges);
+        int distinct = 0;
+        for (int i = 0; i < edges.length; i++) {
+            if (distinct == 0 || edges[i] != edges[distinct - 1]) {
+                edges[distinct++] = edges[i];
+            }
+        }
+        slabStart = Arrays.copyOf(edges, distinct);
+
+        List<List<Integer>> covering = new ArrayList<>();
+        for (int k = 0; k + 1 < slabStart.length; k++) {
+            covering.add(new ArrayList<>());
+        }
+        for (int w = 0; w < x1.length; w++) {
+            for (int k = Arrays.binarySearch(slabStart, x1[w]); slabStart[k] <= x2[w]; k++) {
+                covering.get(k).add(w);
+            }
+        }
+        slabWindows = new int[covering.size()][];
+        for (int k = 0; k < slabWindows.length; k++) {
+            slabWindows[k] = new int[covering.get(k).size()];
+            for (int i = 0; i < slabWindows[k].length; i++) {
+                slabWindows[k][i] = covering.get(k).get(i);
+            }
+        }
+    }
+
+    /**
+     * Parses windows "x1,y1,x2,y2" separated by ';'.
+     * @throws IllegalArgumentException if there is no window or a window is empty.
+     */
+    public static WindowIndex parse(String windows) {
+        List<int[]> boxes = new ArrayList<>();
+        for (String window : windows.split(";")) {
+            if (window.trim().isEmpty()) {
+                continue;
+            }
+            String[] fields = window.split(",");
+            int[] box = new int[4];
+            for (int i = 0; i < box.length; i++) {
+                box[i] = Integer.parseInt(fields[i].trim());
+            }
+            if (box[0] > box[2] || box[1] > box[3]) {
+                throw new IllegalArgumentException("Empty window: " + window);
+            }
+            boxes.add(box);
+        }
+        if (boxes.isEmpty()) {
+            throw new IllegalArgumentException("No windows: " + windows);
+        }
+        int[][] columns = new int[4][boxes.size()];
+        for (int w = 0; w < boxes.size(); w++) {
+            for (int i = 0; i < 4; i++) {
+                columns[i][w] = boxes.get(w)[i];
+            }
+        }
+        return new WindowIndex(columns[0], columns[1], columns[2], columns[3]);
+    }
+
+    /**
+     * @return The index of the "windows" of a batch job, or null for a job with a single window.
+     */
+    public static WindowIndex load(Configuration conf) {
+        String windows = conf.get("windows");
+        return windows == null || windows.isEmpty() ? null : parse(windows);
+    }
+
+    public int size() {
+        return x1.length;
+    }
+
+    /**
+     * @return The bounding box of the windows as "x1,y1,x2,y2", the format of "window".
+     */
+    public String boundingBox() {
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        for (int w = 0; w < x1.length; w++) {
+            minX = Math.min(minX, x1[w]);
+            minY = Math.min(minY, y1[w]);
+            maxX = Math.max(maxX, x2[w]);
+            maxY = Math.max(maxY, y2[w]);
+        }
+        return minX + "," + minY + "," + maxX + "," + maxY;
+    }
+
+    /**
+     * Writes the window of index {@code w} to {@code box} as {x1, y1, x2, y2}.
+     */
+    public void window(int w, int[] box) {
+        box[0] = x1[w];
+        box[1] = y1[w];
+        box[2] = x2[w];
+        box[3] = y2[w];
+    }
+
+    /**
+     * @return The id of the window of index {@code w}, counted from 1.
+     */
+    public int id(int w) {
+        return w + 1;
+    }
+
+    /**
+     * Writes to {@code windows} the indexes of the windows containing the point, in increasing order.
+     * @param windows Output array, at least {@link #size()} long.
+     * @return The number of windows written.
+     */
+    public int containing(int x, int y, int[] windows) {
+        int k = slab(x);
+        if (k < 0) {
+            return 0;
+        }
+        int count = 0;
+        for (int w : slabWindows[k]) {
+            if (y >= y1[w] && y <= y2[w]) {
+                windows[count++] = w;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes to {@code windows} the indexes of the windows intersecting the box (minX,minY)-(maxX,maxY), in
+     * increasing order.
+     * @param windows Output array, at least {@link #size()} long.
+     * @return The number of windows written.
+     */
+    public int intersecting(int minX, int minY, int maxX, int maxY, int[] windows) {
+        if (++query == 0) {
+            Arrays.fill(stamp, 0);
+            query = 1;
+        }
+        int count = 0;
+        int k = Arrays.binarySearch(slabStart, minX);
+        for (k = k >= 0 ? k : Math.max(0, -k - 2); k < slabWindows.length && slabStart[k] <= maxX; k++) {
+            for (int w : slabWindows[k]) {
+                if (stamp[w] != query && maxY >= y1[w] && minY <= y2[w] && maxX >= x1[w] && minX <= x2[w]) {
+                    stamp[w] = query;
+                    windows[count++] = w;
+                }
+            }
+        }
+        Arrays.sort(windows, 0, count);
+        return count;
+    }
+
+    /**
+     * @return The slab holding x, or -1 if x is left of the first window or right of the last one.
+     */
+    private int slab(long x) {
+        int k = Arrays.binarySearch(slabStart, x);
+        if (k < 0) {
+            k = -k - 2;
+        }
+        return k >= 0 && k < slabWindows.length ? k : -1;
+    }
+}
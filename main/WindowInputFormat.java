@@ -0,0 +1,122 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+
+/**
+ * Text input format that pushes the query window into split generation.
+ *
+ * Files written by {@link SpatialLayout} come with a block index giving the byte range and MBR of
+ * every block of records. For those files only the blocks whose MBR intersects the window are turned
+ * into splits, consecutive selected blocks being merged up to the maximum split size, so the rest of
+ * the file is never read. Files without an index are split as usual by {@link TextInputFormat}.
+ */
+public class WindowInputFormat extends TextInputFormat {
+
+    /**
+     * Returns the path of the block index of a data file: "_name.index" next to it. The leading
+     * underscore keeps the index itself out of the job input.
+     */
+    public static Path indexPath(Path data) {
+        return new Path(data.getParent(), "_" + data.getName() + ".index");
+    }
+
+    @Override
+    public List<InputSplit> getSplits(JobContext job) throws IOException {
+        SpatialMapper.MapRectangles.Window window = SpatialMapper.MapRectangles.Window.parseWindowString(job.getConfiguration().get("window"));
+        long maxSize = getMaxSplitSize(job);
+        if (maxSize == Long.MAX_VALUE) {
+            maxSize = 128L * 1024 * 1024;
+        }
+
+        List<InputSplit> splits = new ArrayList<>();
+        Set<Path> indexed = new HashSet<>();
+        for (FileStatus file : listStatus(job)) {
+            Path data = file.getPath();
+            FileSystem fs = data.getFileSystem(job.getConfiguration());
+            Path index = indexPath(data);
+            if (!fs.exists(index)) {
+                continue;
+            }
+            indexed.add(data);
+            addWindowSplits(fs, file, index, window, maxSize, splits);
+        }
+
+        for (InputSplit split : super.getSplits(job)) {
+            if (!indexed.contains(((FileSplit) split).getPath())) {
+                splits.add(split);
+            }
+        }
+        return splits;
+    }
+
+    private void addWindowSplits(FileSystem fs, FileStatus file, Path index, SpatialMapper.MapRectangles.Window window,
+                                 long maxSize, List<InputSplit> splits) throws IOException {
+        for (long[] range : windowRanges(fs, index, window, maxSize)) {
+            splits.add(blockSplit(fs, file, range[0], range[1]));
+        }
+    }
+
+    /**
+     * Reads a block index and selects the blocks whose MBR intersects the window, merging consecutive selected
+     * blocks up to {@code maxSize} bytes.
+     * @return The byte ranges {start, end} of the selected blocks, in file order.
+     */
+    static List<long[]> windowRanges(FileSystem fs, Path index, SpatialMapper.MapRectangles.Window window, long maxSize) throws IOException {
+        List<long[]> ranges = new ArrayList<>();
+        long start = -1;
+        long end = -1;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(index), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] block = line.split(",");
+                long offset = Long.parseLong(block[0]);
+                long length = Long.parseLong(block[1]);
+                boolean intersects = Integer.parseInt(block[5]) >= window.getX1() && Integer.parseInt(block[3]) <= window.getX2()
+                        && Integer.parseInt(block[6]) >= window.getY1() && Integer.parseInt(block[4]) <= window.getY2();
+                if (!intersects || length == 0) {
+                    continue;
+                }
+                if (start >= 0 && offset == end && end + length - start <= maxSize) {
+                    end += length;
+                    continue;
+                }
+                if (start >= 0) {
+                    ranges.add(new long[]{start, end});
+                }
+                start = offset;
+                end = offset + length;
+            }
+        }
+        if (start >= 0) {
+            ranges.add(new long[]{start, end});
+        }
+        return ranges;
+    }
+
+    /**
+     * Makes a split reading exactly the lines in [start, end). The line reader skips the first line of
+     * a split that does not start at offset 0 and reads one line past the split end, so the split starts
+     * on the newline ending the previous block and ends on the newline ending its own last line.
+     */
+    private FileSplit blockSplit(FileSystem fs, FileStatus file, long start, long end) throws IOException {
+        long splitStart = start == 0 ? 0 : start - 1;
+        long splitLength = end - 1 - splitStart;
+        BlockLocation[] locations = fs.getFileBlockLocations(file, start, end - start);
+        String[] hosts = locations.length > 0 ? locations[0].getHosts() : new String[0];
+        return makeSplit(file.getPath(), splitStart, splitLength, hosts);
+    }
+}
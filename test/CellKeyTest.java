@@ -0,0 +1,64 @@
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.WritableComparator;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CellKeyTest {
+
+    private static byte[] serialize(CellKey key) throws Exception {
+        DataOutputBuffer out = new DataOutputBuffer();
+        key.write(out);
+        byte[] bytes = new byte[out.getLength()];
+        System.arraycopy(out.getData(), 0, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    private static CellKey point(int cell, int x, int y) {
+        CellKey key = new CellKey();
+        key.setCell(cell);
+        key.getRecord().setPoint(x, y);
+        return key;
+    }
+
+    private static CellKey rectangle(int cell, int id, int x1, int y1, int x2, int y2) {
+        CellKey key = new CellKey();
+        key.setCell(cell);
+        key.getRecord().setRectangle(id, x1, y1, x2, y2);
+        return key;
+    }
+
+    @Test
+    public void sortsRectanglesBeforePointsWithinACell() throws Exception {
+        CellKey[] keys = {
+                rectangle(3, 1, 0, 0, 9, 9),
+                rectangle(3, 2, 4, 0, 5, 5),
+                point(3, -5, 0),
+                point(3, 2, 8),
+                rectangle(4, 0, -9, -9, 0, 0),
+                point(4, 0, 0),
+        };
+
+        WritableComparator comparator = WritableComparator.get(CellKey.class);
+        assertTrue(comparator instanceof CellKey.Comparator);
+        WritableComparator grouping = new CellKey.GroupingComparator();
+        for (int i = 0; i < keys.length; i++) {
+            for (int j = 0; j < keys.length; j++) {
+                byte[] a = serialize(keys[i]);
+                byte[] b = serialize(keys[j]);
+                assertEquals(Integer.signum(Integer.compare(i, j)), Integer.signum(comparator.compare(a, 0, a.length, b, 0, b.length)));
+                assertEquals(Integer.signum(keys[i].compareTo(keys[j])), Integer.signum(Integer.compare(i, j)));
+                assertEquals(keys[i].getCell() == keys[j].getCell(), grouping.compare(a, 0, a.length, b, 0, b.length) == 0);
+            }
+        }
+    }
+
+    @Test
+    public void partitionsByCellOnly() {
+        CellKey.CellPartitioner partitioner = new CellKey.CellPartitioner();
+        assertEquals(partitioner.getPartition(point(17, 1, 1), NullWritable.get(), 5),
+                partitioner.getPartition(rectangle(17, 9, 0, 0, 3, 3), NullWritable.get(), 5));
+        assertEquals(2, partitioner.getPartition(point(17, 1, 1), NullWritable.get(), 5));
+    }
+}
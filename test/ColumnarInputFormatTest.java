@@ -0,0 +1,183 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ColumnarInputFormatTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void blocksRoundTripAnyCoordinates() throws Exception {
+        ColumnarBlock block = new ColumnarBlock();
+        block.rectangles = true;
+        block.add(7, Integer.MIN_VALUE, -5, Integer.MAX_VALUE, 3);
+        block.add(-1, 10, 10, 10, 10);
+        block.add(Integer.MAX_VALUE, 4, Integer.MIN_VALUE, 9, Integer.MAX_VALUE);
+        DataOutputBuffer out = new DataOutputBuffer();
+        block.write(out);
+        assertEquals(out.getLength(), block.serializedSize());
+
+        ColumnarBlock copy = new ColumnarBlock();
+        copy.readFields(new DataInputStream(new ByteArrayInputStream(out.getData(), 0, out.getLength())));
+        assertTrue(copy.rectangles);
+        assertEquals(3, copy.size);
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(new int[]{block.id[i], block.x1[i], block.y1[i], block.x2[i], block.y2[i]},
+                    new int[]{copy.id[i], copy.x1[i], copy.y1[i], copy.x2[i], copy.y2[i]});
+        }
+        assertEquals(Integer.MIN_VALUE, copy.minX);
+        assertEquals(Integer.MAX_VALUE, copy.maxY);
+
+        // A block of points reuses the same object, sharing the upper corner columns.
+        ColumnarBlock points = new ColumnarBlock();
+        points.add(0, 3, 4, 3, 4);
+        out.reset();
+        points.write(out);
+        copy.readFields(new DataInputStream(new ByteArrayInputStream(out.getData(), 0, out.getLength())));
+        assertFalse(copy.rectangles);
+        assertEquals(1, copy.size);
+        assertEquals(3, copy.x2[0]);
+        assertEquals(4, copy.y2[0]);
+    }
+
+    @Test
+    public void readsOnlyBlocksInsideTheWindow() throws Exception {
+        File rectangles = folder.newFile("Rectangle.txt");
+        List<String> expected = new ArrayList<>();
+        Random rand = new Random(13);
+        try (PrintWriter writer = new PrintWriter(rectangles)) {
+            for (int i = 0; i < 20000; i++) {
+                int x = rand.nextInt(10000) + 1;
+                int y = rand.nextInt(10000) + 1;
+                int h = rand.nextInt(20) + 1;
+                int w = rand.nextInt(7) + 1;
+                writer.println("r" + i + "," + x + "," + y + "," + h + "," + w);
+                if (x + w >= 250 && x <= 750 && y + h >= 250 && y <= 750) {
+                    expected.add(i + "," + x + "," + y + "," + (x + w) + "," + (y + h));
+                }
+            }
+        }
+        Configuration conf = new Configuration();
+        Path layout = new Path(folder.getRoot().toURI().toString(), "rectangles");
+        assertEquals(40, ColumnarLayout.write(conf, true, new Path(rectangles.toURI().toString()), layout, 500));
+        assertTrue(ColumnarLayout.isColumnar(conf, layout));
+        File data = new File(folder.getRoot(), "rectangles/" + ColumnarLayout.DATA_FILE);
+        assertTrue("columnar size " + data.length(), data.length() < rectangles.length() / 2);
+
+        conf.set("window", "250,250,750,750");
+        Job job = Job.getInstance(conf);
+        FileInputFormat.addInputPath(job, layout);
+        ColumnarInputFormat format = new ColumnarInputFormat();
+        List<InputSplit> splits = format.getSplits(job);
+
+        long bytesRead = 0;
+        int recordsRead = 0;
+        List<String> inWindow = new ArrayList<>();
+        for (InputSplit split : splits) {
+            bytesRead += split.getLength();
+            RecordReader<?, ColumnarBlock> reader = format.createRecordReader(split, null);
+            reader.initialize(split, new TaskAttemptContextImpl(job.getConfiguration(), new TaskAttemptID()));
+            while (reader.nextKeyValue()) {
+                ColumnarBlock block = reader.getCurrentValue();
+                for (int i = 0; i < block.size; i++) {
+                    recordsRead++;
+                    if (block.x2[i] >= 250 && block.x1[i] <= 750 && block.y2[i] >= 250 && block.y1[i] <= 750) {
+                        inWindow.add(block.id[i] + "," + block.x1[i] + "," + block.y1[i] + "," + block.x2[i] + "," + block.y2[i]);
+                    }
+                }
+            }
+            reader.close();
+        }
+
+        Collections.sort(expected);
+        Collections.sort(inWindow);
+        assertEquals(expected, inWindow);
+        assertEquals(0, recordsRead % 500);
+        assertTrue("read " + bytesRead + " bytes", bytesRead < data.length() / 4);
+        assertEquals(ColumnarLayout.DATA_FILE, ((FileSplit) splits.get(0)).getPath().getName());
+
+        // The broadcast estimate counts the rectangles loaded, not the compressed bytes or the index
+        assertEquals(20000, ColumnarLayout.countRecords(conf, layout));
+        conf.set("window", "0,0,20000,20000");
+        assertEquals(20000 * JoinPlanner.HEAP_BYTES_PER_RECTANGLE, JoinPlanner.estimateFilteredBytes(conf, layout));
+    }
+
+    /**
+     * Joins columnar copies of the inputs, which must give the same pairs as the CSV files.
+     */
+    @Test
+    public void joinOfColumnarDatasetsMatchesTheCsvJoin() throws Exception {
+        Random rand = new Random(17);
+        StringBuilder pointLines = new StringBuilder();
+        for (int i = 0; i < 4000; i++) {
+            pointLines.append(1 + rand.nextInt(1000)).append(',').append(1 + rand.nextInt(1000)).append('\n');
+        }
+        StringBuilder rectangleLines = new StringBuilder();
+        for (int i = 0; i < 1200; i++) {
+            rectangleLines.append('r').append(i).append(',').append(1 + rand.nextInt(990)).append(',').append(1 + rand.nextInt(980))
+                    .append(',').append(1 + rand.nextInt(20)).append(',').append(1 + rand.nextInt(7)).append('\n');
+        }
+        File points = folder.newFile("Point.txt");
+        File rectangles = folder.newFile("Rectangle.txt");
+        Files.write(points.toPath(), pointLines.toString().getBytes(StandardCharsets.UTF_8));
+        Files.write(rectangles.toPath(), rectangleLines.toString().getBytes(StandardCharsets.UTF_8));
+        Configuration conf = new Configuration();
+        Path columnarPoints = new Path(folder.getRoot().toURI().toString(), "points");
+        Path columnarRectangles = new Path(folder.getRoot().toURI().toString(), "rectangles");
+        ColumnarLayout.write(conf, false, new Path(points.toURI().toString()), columnarPoints, 256);
+        ColumnarLayout.write(conf, true, new Path(rectangles.toURI().toString()), columnarRectangles, 256);
+
+        List<String> expected = join(points.toURI().toString(), rectangles.toURI().toString(), "join.mode=repartition");
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, join(columnarPoints.toString(), columnarRectangles.toString(), "join.mode=repartition"));
+        assertEquals(expected, join(columnarPoints.toString(), columnarRectangles.toString(), "join.mode=broadcast"));
+        assertEquals(expected, join(points.toURI().toString(), columnarRectangles.toString(), "join.mode=auto", "join.reducers=2"));
+    }
+
+    private List<String> join(String points, String rectangles, String... options) throws Exception {
+        File output = new File(folder.getRoot(), "output");
+        List<String> args = new ArrayList<>();
+        for (String option : options) {
+            args.add("-D");
+            args.add(option);
+        }
+        args.add(points);
+        args.add(rectangles);
+        args.add(output.toURI().toString());
+        args.add("250,250,750,750");
+        new Spatial2dJoin().debugSpatial2dJoin(args.toArray(new String[0]));
+
+        List<String> lines = new ArrayList<>();
+        File[] parts = output.listFiles((dir, name) -> name.startsWith("part-"));
+        assertNotNull(parts);
+        for (File part : parts) {
+            lines.addAll(Files.readAllLines(part.toPath(), StandardCharsets.UTF_8));
+        }
+        Collections.sort(lines);
+        return lines;
+    }
+}
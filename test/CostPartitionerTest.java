@@ -0,0 +1,51 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.NullWritable;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CostPartitionerTest {
+
+    @Test
+    public void packsTheCostliestCellsOnDifferentReducers() {
+        long[] points = {10, 1000, 10, 900, 10, 0};
+        long[] rectangles = {10, 100, 10, 100, 10, 50};
+        int[] salts = {1, 1, 1, 1, 1, 1};
+        int[][] assignment = CostPartitioner.assign(points, rectangles, salts, 3);
+        assertEquals(0, assignment[1][0]);
+        assertEquals(1, assignment[3][0]);
+        // The cheap cells fill the remaining reducer first.
+        assertEquals(2, assignment[0][0]);
+        assertEquals(2, assignment[2][0]);
+        assertEquals(2, assignment[4][0]);
+
+        points[1] = 9000;
+        int[][] salted = CostPartitioner.assign(points, rectangles, new int[]{1, 3, 1, 1, 1, 1}, 3);
+        assertEquals(3, salted[1].length);
+        assertNotEquals(salted[1][0], salted[1][1]);
+        assertNotEquals(salted[1][1], salted[1][2]);
+        assertNotEquals(salted[1][0], salted[1][2]);
+    }
+
+    @Test
+    public void readsTheAssignmentFromTheConfiguration() {
+        int[][] assignment = {{2}, {0, 1, 2}, {1}};
+        assertEquals("0:2,1:0/1/2,2:1", CostPartitioner.format(assignment));
+        assertArrayEquals(assignment, CostPartitioner.parse(CostPartitioner.format(assignment)));
+
+        Configuration conf = new Configuration(false);
+        conf.set("partition.reducer.assignment", "0:2,1:0/1/2,2:1");
+        CostPartitioner partitioner = new CostPartitioner();
+        partitioner.setConf(conf);
+        CellKey key = new CellKey();
+        key.setCell(0);
+        assertEquals(2, partitioner.getPartition(key, NullWritable.get(), 3));
+        key.setCell(CellKey.salted(1, 2));
+        assertEquals(2, partitioner.getPartition(key, NullWritable.get(), 3));
+        // Unknown cells and reducers beyond the job fall back to the cell index.
+        key.setCell(7);
+        assertEquals(1, partitioner.getPartition(key, NullWritable.get(), 3));
+        key.setCell(0);
+        assertEquals(0, partitioner.getPartition(key, NullWritable.get(), 2));
+    }
+}
@@ -0,0 +1,103 @@
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CreateDatabaseTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path generate(String name, boolean rectangles, long count, String... options) throws Exception {
+        Configuration conf = new Configuration(false);
+        for (String option : options) {
+            String[] keyValue = option.split("=", 2);
+            conf.set(keyValue[0], keyValue[1]);
+        }
+        Path file = folder.getRoot().toPath().resolve(name);
+        CreateDatabase generator = new CreateDatabase(conf);
+        if (rectangles) {
+            generator.rectangleDataSet(file, count);
+        } else {
+            generator.pointDataSet(file, count);
+        }
+        return file;
+    }
+
+    @Test
+    public void outputDependsOnTheSeedOnly() throws Exception {
+        for (String distribution : Arrays.asList("uniform", "gaussian", "zipf")) {
+            Path one = generate("one", true, 600000, "generate.distribution=" + distribution, "generate.threads=1");
+            Path four = generate("four", true, 600000, "generate.distribution=" + distribution, "generate.threads=4");
+            Path other = generate("other", true, 600000, "generate.distribution=" + distribution, "generate.seed=2");
+            assertArrayEquals(distribution, Files.readAllBytes(one), Files.readAllBytes(four));
+            assertFalse(distribution, Arrays.equals(Files.readAllBytes(one), Files.readAllBytes(other)));
+        }
+    }
+
+    @Test
+    public void rectanglesStayInsideTheSpace() throws Exception {
+        Path file = generate("Rectangle.txt", true, 100000, "generate.distribution=gaussian",
+                "generate.rectangle.size=pareto");
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(100000, lines.size());
+        int largest = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            String[] fields = lines.get(i).split(",");
+            assertEquals("r" + i, fields[0]);
+            int x = Integer.parseInt(fields[1]);
+            int y = Integer.parseInt(fields[2]);
+            int h = Integer.parseInt(fields[3]);
+            int w = Integer.parseInt(fields[4]);
+            assertTrue(lines.get(i), x >= 1 && y >= 1 && h >= 1 && w >= 1 && x + w <= 10000 && y + h <= 10000);
+            largest = Math.max(largest, h);
+        }
+        assertTrue(largest > 20);
+    }
+
+    @Test
+    public void binaryHoldsTheCsvRecords() throws Exception {
+        Path csv = generate("Point.txt", false, 1000, "generate.distribution=zipf");
+        Path binary = generate("Point.bin", false, 1000, "generate.distribution=zipf", "generate.format=binary");
+        List<String> lines = Files.readAllLines(csv, StandardCharsets.UTF_8);
+        File file = binary.toFile();
+        assertEquals(8 * lines.size(), file.length());
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            for (String line : lines) {
+                assertEquals(line, in.readInt() + "," + in.readInt());
+            }
+        }
+    }
+
+    @Test
+    public void layoutsReadTheBinaryFiles() throws Exception {
+        Configuration conf = new Configuration();
+        for (boolean rectangles : new boolean[]{false, true}) {
+            String name = rectangles ? "Rectangle" : "Point";
+            Path csv = generate(name + ".txt", rectangles, 5000, "generate.distribution=gaussian");
+            Path binary = generate(name + CreateDatabase.BINARY_EXTENSION, rectangles, 5000, "generate.distribution=gaussian",
+                    "generate.format=binary");
+            int[][] expected = SpatialLayout.readColumns(conf, rectangles, hadoopPath(csv));
+            int[][] columns = SpatialLayout.readColumns(conf, rectangles, hadoopPath(binary));
+            assertEquals(5000, columns[0].length);
+            for (int c = 0; c < columns.length; c++) {
+                assertArrayEquals(name, expected[c], columns[c]);
+            }
+        }
+    }
+
+    private static org.apache.hadoop.fs.Path hadoopPath(Path file) {
+        return new org.apache.hadoop.fs.Path(file.toUri().toString());
+    }
+}
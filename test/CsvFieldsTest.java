@@ -0,0 +1,35 @@
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CsvFieldsTest {
+
+    @Test
+    public void parsesPointAndRectangleLines() {
+        CsvFields fields = new CsvFields();
+        fields.reset(new Text("12,-7"));
+        assertEquals(12, fields.nextInt());
+        assertEquals(-7, fields.nextInt());
+
+        fields.reset(new Text("r4200, 1,2 ,20,7\r"));
+        assertEquals(4200, fields.nextId());
+        assertEquals(1, fields.nextInt());
+        assertEquals(2, fields.nextInt());
+        assertEquals(20, fields.nextInt());
+        assertEquals(7, fields.nextInt());
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void rejectsMissingFields() {
+        CsvFields fields = new CsvFields();
+        fields.reset(new Text("12"));
+        fields.nextInt();
+        fields.nextInt();
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void rejectsGarbage() {
+        new CsvFields().reset(new Text("1x,2")).nextInt();
+    }
+}
@@ -0,0 +1,39 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.NullWritable;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HotCellsTest {
+
+    @Test
+    public void saltsCellsFarAboveTheMean() {
+        long[] points = {100, 100, 100, 5000, 100, 1, 100, 100};
+        long[] rectangles = {10, 10, 10, 100, 10, 3000, 10, 10};
+        int[] salts = HotCells.plan(points, rectangles, 4, 4);
+        assertArrayEquals(new int[]{1, 1, 1, 4, 1, 1, 1, 1}, salts);
+        // A cell with one point cannot be split, and one reducer cannot spread anything.
+        assertArrayEquals(new int[]{1, 1, 1, 1, 1, 1, 1, 1}, HotCells.plan(points, rectangles, 1, 4));
+    }
+
+    @Test
+    public void saltsReachTheTasksThroughTheConfiguration() {
+        Configuration conf = new Configuration(false);
+        conf.set("partition.salts", "3:4, 6:2");
+        assertArrayEquals(new int[]{1, 1, 1, 4, 1, 1, 2, 1}, HotCells.salts(conf, 8));
+        assertArrayEquals(new int[]{1, 1, 1, 1, 1, 1, 1, 1}, HotCells.salts(new Configuration(false), 8));
+    }
+
+    @Test
+    public void saltsOfACellGoToConsecutiveReducers() {
+        CellKey.CellPartitioner partitioner = new CellKey.CellPartitioner();
+        CellKey key = new CellKey();
+        for (int salt = 0; salt < 4; salt++) {
+            key.setCell(CellKey.salted(13, salt));
+            assertEquals(13, CellKey.gridCell(key.getCell()));
+            assertEquals(salt, CellKey.salt(key.getCell()));
+            assertEquals((13 + salt) % 4, partitioner.getPartition(key, NullWritable.get(), 4));
+        }
+        assertEquals(13, CellKey.salted(13, 0));
+    }
+}
@@ -0,0 +1,51 @@
+import org.apache.hadoop.mapreduce.Counters;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class JoinMetricsTest {
+
+    @Test
+    public void cellTimesFallInPowerOfTwoBuckets() {
+        assertEquals("<1", JoinMetrics.bucketName(0));
+        assertEquals("1-2", JoinMetrics.bucketName(1));
+        assertEquals("2-4", JoinMetrics.bucketName(2));
+        assertEquals(">=16384", JoinMetrics.bucketName(15));
+    }
+
+    @Test
+    public void reportSummarizesTheCounters() {
+        Counters counters = new Counters();
+        counters.findCounter(JoinMetrics.Join.POINTS_READ).increment(1000);
+        counters.findCounter(JoinMetrics.Join.POINTS_OUTSIDE_WINDOW).increment(400);
+        counters.findCounter(JoinMetrics.Join.RECTANGLES_READ).increment(300);
+        counters.findCounter(JoinMetrics.Join.RECTANGLES_OUTSIDE_WINDOW).increment(100);
+        counters.findCounter(JoinMetrics.Join.RECTANGLE_COPIES).increment(250);
+        counters.findCounter(JoinMetrics.Join.CELLS).increment(4);
+        counters.findCounter(JoinMetrics.Join.CELL_POINTS).increment(600);
+        counters.findCounter(JoinMetrics.Join.CELL_RECTANGLES).increment(250);
+        counters.findCounter(JoinMetrics.Join.CANDIDATE_PAIRS).increment(2000);
+        counters.findCounter(JoinMetrics.Join.MATCHES).increment(500);
+        counters.findCounter(JoinMetrics.Phase.PROBE).increment(3000000);
+        counters.findCounter(JoinMetrics.Phase.WRITE).increment(1000000);
+        counters.findCounter(JoinMetrics.CELL_TIME_GROUP, "2-4").increment(3);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        List<String> blocks = Arrays.asList("g1,0,0,5,5", "g2,5,0,10,5", "g3,0,5,10,10");
+        long[][] cellCounts = {{0, 400, 0}, {10, 50, 420}};
+        JoinMetrics.report(counters, blocks, cellCounts, new PrintStream(bytes, true));
+        String report = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(report, report.contains("1000 (400 outside the window)"));
+        assertTrue(report, report.contains("1.250 copies per rectangle"));
+        assertTrue(report, report.contains("62 rectangles and 150 points on average, largest g2 (450 records)"));
+        assertTrue(report, report.contains("500 matches (25.00% of the candidates)"));
+        assertTrue(report, report.contains("probe 3 (75%), write 1 (25%)"));
+        assertTrue(report, report.contains("2-4: 3"));
+    }
+}
@@ -0,0 +1,155 @@
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LocalSpatialJoinTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String run(File points, File rectangles, String outputMode, String engine, int splitPoints, int threads) throws Exception {
+        Configuration conf = new Configuration(false);
+        conf.set("window", "1000,1000,9000,9000");
+        conf.set("partition.mode", "grid");
+        conf.set("output.mode", outputMode);
+        conf.set("join.engine", engine);
+        conf.setInt("local.split.points", splitPoints);
+        conf.setInt("local.threads", threads);
+        File output = new File(folder.getRoot(), "out-" + outputMode + "-" + engine + "-" + splitPoints + "-" + threads);
+        LocalSpatialJoin.run(conf, points.getPath(), rectangles.getPath(), output.getPath());
+        assertTrue(new File(output, "_SUCCESS").isFile());
+        return new String(Files.readAllBytes(new File(output, "part-r-00000").toPath()), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Joins clustered points so some cells are split, and checks the output against a brute force join and
+     * that it does not depend on how the cells were split or on the number of threads.
+     */
+    @Test
+    public void splitCellsGiveTheSameOutput() throws Exception {
+        Random rand = new Random(11);
+        StringBuilder pointLines = new StringBuilder();
+        int[] px = new int[20000];
+        int[] py = new int[px.length];
+        for (int i = 0; i < px.length; i++) {
+            boolean clustered = i % 2 == 0;
+            px[i] = clustered ? 4000 + rand.nextInt(500) : rand.nextInt(10001);
+            py[i] = clustered ? 4000 + rand.nextInt(500) : rand.nextInt(10001);
+            pointLines.append(px[i]).append(',').append(py[i]).append('\n');
+        }
+        StringBuilder rectangleLines = new StringBuilder();
+        int[][] rects = new int[2000][];
+        for (int i = 0; i < rects.length; i++) {
+            int x = rand.nextInt(10000);
+            int y = rand.nextInt(10000);
+            int h = 1 + rand.nextInt(200);
+            int w = 1 + rand.nextInt(200);
+            rects[i] = new int[]{x, y, x + w, y + h};
+            rectangleLines.append('r').append(i + 1).append(',').append(x).append(',').append(y).append(',')
+                    .append(h).append(',').append(w).append("\r\n");
+        }
+        File points = folder.newFile("points.txt");
+        File rectangles = folder.newFile("rectangles.txt");
+        Files.write(points.toPath(), pointLines.toString().getBytes(StandardCharsets.UTF_8));
+        Files.write(rectangles.toPath(), rectangleLines.toString().getBytes(StandardCharsets.UTF_8));
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < px.length; i++) {
+            if (px[i] < 1000 || px[i] > 9000 || py[i] < 1000 || py[i] > 9000) {
+                continue;
+            }
+            for (int r = 0; r < rects.length; r++) {
+                if (px[i] >= rects[r][0] && px[i] <= rects[r][2] && py[i] >= rects[r][1] && py[i] <= rects[r][3]) {
+                    expected.add("r" + (r + 1) + "\t(" + px[i] + "," + py[i] + ")");
+                }
+            }
+        }
+        Collections.sort(expected);
+
+        for (String engine : new String[]{"sweep", "rtree"}) {
+            String whole = run(points, rectangles, "pairs", engine, Integer.MAX_VALUE, 1);
+            List<String> actual = new ArrayList<>();
+            Collections.addAll(actual, whole.split("\n"));
+            Collections.sort(actual);
+            assertEquals(engine, expected, actual);
+            assertEquals(engine, whole, run(points, rectangles, "pairs", engine, 100, 4));
+        }
+        assertEquals(run(points, rectangles, "count-mbr", "sweep", Integer.MAX_VALUE, 1),
+                run(points, rectangles, "count-mbr", "rtree", 100, 4));
+    }
+
+    /**
+     * Splits the points of one cell into many pieces and checks that the rectangles of every cell are stored and
+     * indexed once, however many pieces probe them.
+     */
+    @Test
+    public void splitCellsAreBuiltOnce() throws Exception {
+        Random rand = new Random(5);
+        StringBuilder pointLines = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            pointLines.append(100 + rand.nextInt(2000)).append(',').append(100 + rand.nextInt(2000)).append('\n');
+        }
+        StringBuilder rectangleLines = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            rectangleLines.append('r').append(i + 1).append(',').append(rand.nextInt(9800)).append(',')
+                    .append(rand.nextInt(9800)).append(',').append(1 + rand.nextInt(200)).append(',')
+                    .append(1 + rand.nextInt(200)).append('\n');
+        }
+        File points = folder.newFile("points.txt");
+        File rectangles = folder.newFile("rectangles.txt");
+        Files.write(points.toPath(), pointLines.toString().getBytes(StandardCharsets.UTF_8));
+        Files.write(rectangles.toPath(), rectangleLines.toString().getBytes(StandardCharsets.UTF_8));
+
+        Partitioning partitioning = Partitioning.fromBlocks(DivideIntoBlocks.createBlocks(10000, 2500));
+        int pointCell = partitioning.cellOf(100, 100);
+        for (String engine : new String[]{"sweep", "rtree"}) {
+            Configuration conf = new Configuration(false);
+            conf.set("window", "0,0,10000,10000");
+            conf.set("join.engine", engine);
+            conf.setInt("local.split.points", 10);
+            conf.setInt("local.threads", 4);
+            LocalSpatialJoin join = new LocalSpatialJoin(conf, partitioning);
+            try {
+                join.read(points.toPath(), rectangles.toPath());
+                join.write(new ByteArrayOutputStream());
+                for (int cell = 0; cell < partitioning.size(); cell++) {
+                    assertEquals(engine + " cell " + cell, cell == pointCell ? 1 : 0, join.builds(cell));
+                }
+            } finally {
+                join.close();
+            }
+        }
+    }
+
+    @Test
+    public void sortsCellsInShuffleOrder() {
+        LocalJoin.PointBuffer points = new LocalJoin.PointBuffer();
+        points.add(3, -1);
+        points.add(-2, 5);
+        points.add(3, -7);
+        LocalSpatialJoin.sortPoints(points);
+        assertArrayEquals(new int[]{-2, 3, 3}, Arrays.copyOf(points.x, 3));
+        assertArrayEquals(new int[]{5, -7, -1}, Arrays.copyOf(points.y, 3));
+
+        LocalJoin.RectangleBuffer rectangles = new LocalJoin.RectangleBuffer();
+        rectangles.add(9, 1, 2, 5, 5);
+        rectangles.add(4, 1, 2, 5, 5);
+        rectangles.add(7, 0, 9, 1, 9);
+        rectangles.add(2, 1, 1, 8, 8);
+        LocalSpatialJoin.sortRectangles(rectangles);
+        assertArrayEquals(new int[]{7, 2, 4, 9}, Arrays.copyOf(rectangles.id, 4));
+    }
+}
@@ -0,0 +1,46 @@
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MatchAggregateTest {
+
+    @Test
+    public void partialAggregatesMergeIntoCountAndBoundingBox() {
+        MatchAggregate.Accumulator accumulator = new MatchAggregate.Accumulator();
+        accumulator.reset(2);
+        accumulator.add(1, 5, 7);
+        accumulator.add(1, 3, 9);
+        MatchAggregate first = new MatchAggregate();
+        accumulator.get(1, first);
+        assertEquals("2,(3,7),(5,9)", first.format(true));
+
+        // A partial of the same rectangle from another cell, and one that matched nothing
+        MatchAggregate second = new MatchAggregate();
+        second.set(3, 4, 2, 12, 8);
+        MatchAggregate total = new MatchAggregate();
+        total.merge(first);
+        total.merge(second);
+        total.merge(new MatchAggregate());
+        assertEquals(5, total.getCount());
+        assertEquals("5", total.format(false));
+        assertEquals("5,(3,2),(12,9)", total.format(true));
+
+        total.clear();
+        assertEquals("0", total.format(false));
+    }
+
+    @Test
+    public void aggregateRoundTrips() throws Exception {
+        MatchAggregate aggregate = new MatchAggregate();
+        aggregate.set(1L << 40, -3, Integer.MIN_VALUE, Integer.MAX_VALUE, 0);
+        DataOutputBuffer out = new DataOutputBuffer();
+        aggregate.write(out);
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(out.getData(), out.getLength());
+        MatchAggregate copy = new MatchAggregate();
+        copy.readFields(in);
+        assertEquals(aggregate.toString(), copy.toString());
+    }
+}
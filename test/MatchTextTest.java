@@ -0,0 +1,33 @@
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class MatchTextTest {
+
+    @Test
+    public void formatsTheLinesOfTheStringFormats() throws Exception {
+        MatchText line = new MatchText();
+        Text text = new Text();
+        line.clear().id('w', 3).append('\t').id('r', 12).set(text);
+        assertEquals("w3\tr12", text.toString());
+        line.clear().point(0, -45).set(text);
+        assertEquals(new SpatialReducer.Point(0, -45).toString(), text.toString());
+        line.clear().point(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        assertEquals(new SpatialReducer.Point(Integer.MIN_VALUE, Integer.MAX_VALUE).toString(), line.toString());
+
+        // Longer than the initial buffer
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StringBuilder expected = new StringBuilder();
+        line.clear();
+        for (int i = 0; i < 20; i++) {
+            line.id('r', 1000000 * i).append('\n');
+            expected.append('r').append(1000000 * i).append('\n');
+        }
+        line.writeTo(out);
+        assertEquals(expected.toString(), new String(out.toByteArray(), StandardCharsets.US_ASCII));
+    }
+}
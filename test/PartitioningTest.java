@@ -0,0 +1,104 @@
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PartitioningTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void bordersBelongToTheFirstCell() {
+        Partitioning partitioning = Partitioning.fromBlocks(DivideIntoBlocks.createBlocks(10000, 2500));
+        assertEquals(16, partitioning.size());
+        assertEquals("g1", partitioning.name(partitioning.cellOf(0, 0)));
+        assertEquals("g1", partitioning.name(partitioning.cellOf(2500, 2500)));
+        assertEquals("g2", partitioning.name(partitioning.cellOf(2500, 2501)));
+        assertEquals("g6", partitioning.name(partitioning.cellOf(2501, 2501)));
+        assertEquals("g16", partitioning.name(partitioning.cellOf(10000, 10000)));
+        assertEquals("g16", partitioning.name(partitioning.cellOf(20000, 10001)));
+        assertEquals(15, partitioning.cellIndex("g16"));
+    }
+
+    /**
+     * A cache link left in the working directory by an earlier local job must not replace the partition file the
+     * driver just wrote.
+     */
+    @Test
+    public void driverReadsThePartitionFileNotTheCacheLink() throws Exception {
+        File file = folder.newFile("blocks.txt");
+        Files.write(file.toPath(), "g1,0,0,10,10\ng2,10,0,20,10\n".getBytes(StandardCharsets.UTF_8));
+        Configuration conf = new Configuration();
+        conf.set("partition.file", file.toURI().toString());
+
+        File link = new File(AdaptivePartitioner.PARTITION_LINK);
+        assertFalse("stale " + link.getAbsolutePath(), link.exists());
+        try {
+            Files.write(link.toPath(), Collections.singletonList("g1,0,0,5,5"), StandardCharsets.UTF_8);
+            assertEquals(Arrays.asList("g1,0,0,10,10", "g2,10,0,20,10"), DivideIntoBlocks.loadBlocks(conf));
+        } finally {
+            Files.delete(link.toPath());
+        }
+    }
+
+    /**
+     * The regular grid shortcut and the binary search over STR tiles must both pick the first block,
+     * in block order, whose closed box contains the point.
+     */
+    @Test
+    public void cellOfMatchesFirstContainingBlock() {
+        Random rand = new Random(3);
+        int[] xs = new int[2000];
+        int[] ys = new int[xs.length];
+        for (int i = 0; i < xs.length; i++) {
+            xs[i] = (int) Math.abs(rand.nextGaussian() * 100) + 200;
+            ys[i] = rand.nextInt(1000);
+        }
+        List<List<String>> tilings = Arrays.asList(
+                DivideIntoBlocks.createBlocks(1000, 50),
+                AdaptivePartitioner.strTiles(xs, ys, xs.length, 30, 0, 0, 1000, 1000));
+
+        for (List<String> blocks : tilings) {
+            Partitioning partitioning = Partitioning.fromBlocks(blocks);
+            int[] cells = new int[partitioning.size()];
+            for (int i = 0; i < 20000; i++) {
+                int x = rand.nextInt(1001);
+                int y = rand.nextInt(1001);
+                assertEquals(firstContaining(blocks, x, y), partitioning.cellOf(x, y));
+
+                int count = partitioning.overlapping(x, y, Math.min(1000, x + rand.nextInt(120)), Math.min(1000, y + rand.nextInt(120)), cells);
+                assertTrue(Arrays.asList(box(cells, count)).contains(partitioning.cellOf(x, y)));
+            }
+        }
+    }
+
+    private static Integer[] box(int[] cells, int count) {
+        Integer[] result = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = cells[i];
+        }
+        return result;
+    }
+
+    private static int firstContaining(List<String> blocks, int x, int y) {
+        for (int i = 0; i < blocks.size(); i++) {
+            String[] gridDef = blocks.get(i).split(",");
+            if (x >= Integer.parseInt(gridDef[1]) && x <= Integer.parseInt(gridDef[3])
+                    && y >= Integer.parseInt(gridDef[2]) && y <= Integer.parseInt(gridDef[4])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -1,19 +1,321 @@
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
 
 import static org.junit.Assert.*;
 
 public class Spatial2dJoinTest {
 
-    @Test
-    public void debug() throws Exception{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File points;
+    private File rectangles;
+    private List<String> expected;
+    private int[] px;
+    private int[] py;
+    private int[][] rects;
+
+    /**
+     * Writes random points, a third of them clustered, and small rectangles over a 1000x1000 space, and computes
+     * the pairs inside the window "250,250,750,750" by brute force.
+     */
+    private void createInputs() throws Exception {
+        Random rand = new Random(7);
+        px = new int[5000];
+        py = new int[px.length];
+        StringBuilder pointLines = new StringBuilder();
+        for (int i = 0; i < px.length; i++) {
+            px[i] = i % 3 == 0 ? 300 + rand.nextInt(50) : 1 + rand.nextInt(1000);
+            py[i] = i % 3 == 0 ? 300 + rand.nextInt(50) : 1 + rand.nextInt(1000);
+            pointLines.append(px[i]).append(',').append(py[i]).append('\n');
+        }
+        rects = new int[1500][];
+        StringBuilder rectangleLines = new StringBuilder();
+        for (int i = 0; i < rects.length; i++) {
+            int x = 1 + rand.nextInt(990);
+            int y = 1 + rand.nextInt(980);
+            int h = 1 + rand.nextInt(20);
+            int w = 1 + rand.nextInt(7);
+            rects[i] = new int[]{x, y, x + w, y + h};
+            rectangleLines.append('r').append(i).append(',').append(x).append(',').append(y).append(',')
+                    .append(h).append(',').append(w).append('\n');
+        }
+        points = folder.newFile("Point.txt");
+        rectangles = folder.newFile("Rectangle.txt");
+        Files.write(points.toPath(), pointLines.toString().getBytes(StandardCharsets.UTF_8));
+        Files.write(rectangles.toPath(), rectangleLines.toString().getBytes(StandardCharsets.UTF_8));
+
+        expected = new ArrayList<>();
+        for (int i = 0; i < px.length; i++) {
+            if (px[i] < 250 || px[i] > 750 || py[i] < 250 || py[i] > 750) {
+                continue;
+            }
+            for (int r = 0; r < rects.length; r++) {
+                if (px[i] >= rects[r][0] && px[i] <= rects[r][2] && py[i] >= rects[r][1] && py[i] <= rects[r][3]) {
+                    expected.add("r" + r + "\t(" + px[i] + "," + py[i] + ")");
+                }
+            }
+        }
+        Collections.sort(expected);
+    }
 
-        String[] input = new String[4];
-        input[0] = "file:///IdeaProjects/SpatialJoin/input/Point.txt";
-        input[1] = "file:///IdeaProjects/SpatialJoin/input/Rectangle.txt";
-        input[2] = "file:///IdeaProjects/SpatialJoin/output/outputFileSpatial";
-        input[3] = "250,250,750,750";
+    private List<String> join(String... options) throws Exception {
+        return joinWindows("250,250,750,750", options);
+    }
+
+    private List<String> joinWindows(String window, String... options) throws Exception {
+        return joinFiles(points, rectangles, window, options);
+    }
+
+    private List<String> joinFiles(File first, File second, String window, String... options) throws Exception {
+        File output = new File(folder.getRoot(), "output");
+        List<String> input = new ArrayList<>();
+        for (String option : options) {
+            input.add("-D");
+            input.add(option);
+        }
+        input.add(first.toURI().toString());
+        input.add(second.toURI().toString());
+        input.add(output.toURI().toString());
+        input.add(window);
 
         Spatial2dJoin spatial2dJoin = new Spatial2dJoin();
-        spatial2dJoin.debugSpatial2dJoin(input);
+        spatial2dJoin.debugSpatial2dJoin(input.toArray(new String[0]));
+
+        List<String> lines = new ArrayList<>();
+        File[] parts = output.listFiles((dir, name) -> name.startsWith("part-"));
+        assertNotNull(parts);
+        for (File part : parts) {
+            lines.addAll(Files.readAllLines(part.toPath(), StandardCharsets.UTF_8));
+        }
+        Collections.sort(lines);
+        return lines;
+    }
+
+    @Test
+    public void repartitionAndBroadcastJoinsFindEveryPair() throws Exception {
+        createInputs();
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, join("join.mode=repartition"));
+        assertEquals(expected, join("join.mode=repartition", "partition.mode=grid", "join.engine=rtree"));
+        // Cells spill their rectangles to the local directory of the reduce task
+        assertEquals(expected, join("join.mode=repartition", "reduce.rectangle.heap.bytes=1024"));
+        assertEquals(expected, join("join.mode=broadcast"));
+        assertEquals(expected, join("join.mode=local"));
+    }
+
+    @Test
+    public void batchOfWindowsIsJoinedInOneJob() throws Exception {
+        createInputs();
+        int[][] windows = {{250, 250, 750, 750}, {300, 300, 360, 360}, {700, 0, 1000, 200}};
+        StringBuilder batch = new StringBuilder();
+        List<String> pairs = new ArrayList<>();
+        for (int w = 0; w < windows.length; w++) {
+            batch.append(w == 0 ? "" : ";").append(windows[w][0]).append(',').append(windows[w][1]).append(',')
+                    .append(windows[w][2]).append(',').append(windows[w][3]);
+            for (int i = 0; i < px.length; i++) {
+                if (px[i] < windows[w][0] || px[i] > windows[w][2] || py[i] < windows[w][1] || py[i] > windows[w][3]) {
+                    continue;
+                }
+                for (int r = 0; r < rects.length; r++) {
+                    if (px[i] >= rects[r][0] && px[i] <= rects[r][2] && py[i] >= rects[r][1] && py[i] <= rects[r][3]) {
+                        pairs.add("w" + (w + 1) + "\tr" + r + "\t(" + px[i] + "," + py[i] + ")");
+                    }
+                }
+            }
+        }
+        Collections.sort(pairs);
+        assertEquals(pairs, joinWindows(batch.toString(), "join.reducers=2"));
+
+        File file = folder.newFile("windows.txt");
+        Files.write(file.toPath(), batch.toString().replace(';', '\n').getBytes(StandardCharsets.UTF_8));
+        assertEquals(pairs, joinWindows("unused", "windows.file=" + file.toURI(), "partition.mode=grid"));
+    }
+
+    @Test
+    public void cellsAreAssignedToSeveralReducers() throws Exception {
+        createInputs();
+        assertEquals(expected, join("join.mode=repartition", "join.reducers=3"));
+        assertTrue(new File(folder.getRoot(), "output/part-r-00002").length() > 0);
+        assertEquals(expected, join("join.mode=repartition", "join.reducers=3", "partition.assignment=hash"));
+    }
+
+    /**
+     * The test data fits in the first cell of the fixed grid, which is salted over the four reducers.
+     */
+    @Test
+    public void hotCellsAreSaltedWithoutLosingPairs() throws Exception {
+        createInputs();
+        File stats = new File(folder.getRoot(), "stats.txt");
+        assertEquals(expected, join("join.mode=repartition", "partition.mode=grid", "partition.skew=sample",
+                "mapreduce.job.reduces=4", "partition.stats.file=" + stats.toURI()));
+
+        List<String> lines = Files.readAllLines(stats.toPath(), StandardCharsets.UTF_8);
+        assertEquals(16, lines.size());
+        assertTrue(lines.get(0), lines.get(0).startsWith("g1,0,0,2500,2500,"));
+        assertTrue(lines.get(1), lines.get(1).endsWith(",0,0"));
+        assertTrue(new File(folder.getRoot(), "output/part-r-00003").length() > 0);
+
+        assertEquals(expected, join("join.mode=repartition", "partition.mode=grid", "partition.skew=stats",
+                "mapreduce.job.reduces=4", "partition.stats.file=" + stats.toURI()));
+        assertTrue(new File(folder.getRoot(), "output/part-r-00003").length() > 0);
+    }
+
+    /**
+     * Two hundred cells are more than the 120 counters Hadoop allows a job, so the per-cell counts go through side files.
+     */
+    @Test
+    public void cellCountsOfManyCellsReachTheStatsFile() throws Exception {
+        createInputs();
+        File stats = new File(folder.getRoot(), "stats.txt");
+        assertEquals(expected, join("join.mode=repartition", "partition.cells=200", "join.reducers=2",
+                "partition.stats.file=" + stats.toURI()));
+
+        List<String> lines = Files.readAllLines(stats.toPath(), StandardCharsets.UTF_8);
+        assertTrue(lines.size() > 60);
+        long points = 0;
+        for (String line : lines) {
+            points += Long.parseLong(line.split(",")[5]);
+        }
+        long inWindow = 0;
+        for (int i = 0; i < px.length; i++) {
+            if (px[i] >= 250 && px[i] <= 750 && py[i] >= 250 && py[i] <= 750) {
+                inWindow++;
+            }
+        }
+        assertEquals(inWindow, points);
+        String[] sideFiles = new File(folder.getRoot(), "output").list((dir, name) -> name.startsWith(HotCells.CELL_COUNTS));
+        assertEquals(0, sideFiles.length);
+    }
+
+    @Test
+    public void countModeCountsTheMatchesOfEachRectangle() throws Exception {
+        createInputs();
+        List<String> counts = new ArrayList<>();
+        String current = null;
+        int count = 0;
+        for (String pair : expected) {
+            String rectangle = pair.substring(0, pair.indexOf('\t'));
+            if (!rectangle.equals(current)) {
+                if (current != null) {
+                    counts.add(current + "\t" + count);
+                }
+                current = rectangle;
+                count = 0;
+            }
+            count++;
+        }
+        counts.add(current + "\t" + count);
+        Collections.sort(counts);
+
+        assertEquals(counts, join("join.mode=repartition", "output.mode=count"));
+        assertEquals(counts, join("join.mode=broadcast", "output.mode=count"));
+    }
+
+    /**
+     * The partial aggregates of the cells of a rectangle, spread over two reducers, are merged by the second job.
+     */
+    @Test
+    public void countMbrModeAddsTheBoundingBoxOfTheMatches() throws Exception {
+        createInputs();
+        Map<String, long[]> aggregates = new TreeMap<>();
+        for (String pair : expected) {
+            String[] point = pair.substring(pair.indexOf('(') + 1, pair.length() - 1).split(",");
+            int x = Integer.parseInt(point[0]);
+            int y = Integer.parseInt(point[1]);
+            long[] aggregate = aggregates.computeIfAbsent(pair.substring(0, pair.indexOf('\t')),
+                    rectangle -> new long[]{0, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE});
+            aggregate[0]++;
+            aggregate[1] = Math.min(aggregate[1], x);
+            aggregate[2] = Math.min(aggregate[2], y);
+            aggregate[3] = Math.max(aggregate[3], x);
+            aggregate[4] = Math.max(aggregate[4], y);
+        }
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, long[]> entry : aggregates.entrySet()) {
+            long[] a = entry.getValue();
+            lines.add(entry.getKey() + "\t" + a[0] + ",(" + a[1] + "," + a[2] + "),(" + a[3] + "," + a[4] + ")");
+        }
+        Collections.sort(lines);
+
+        assertEquals(lines, join("join.mode=repartition", "output.mode=count-mbr", "join.reducers=2"));
+        assertFalse(new File(folder.getRoot(), "output.matches").exists());
+    }
+
+    /**
+     * Joins the rectangles with a second set of rectangles, the pairs intersecting inside the window.
+     */
+    @Test
+    public void overlapsPredicateJoinsTwoRectangleSets() throws Exception {
+        createInputs();
+        Random rand = new Random(9);
+        int[][] others = new int[800][];
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < others.length; i++) {
+            int x = 1 + rand.nextInt(990);
+            int y = 1 + rand.nextInt(980);
+            int h = 1 + rand.nextInt(30);
+            int w = 1 + rand.nextInt(30);
+            others[i] = new int[]{x, y, x + w, y + h};
+            lines.append('r').append(i).append(',').append(x).append(',').append(y).append(',')
+                    .append(h).append(',').append(w).append('\n');
+        }
+        File second = folder.newFile("Rectangle-2.txt");
+        Files.write(second.toPath(), lines.toString().getBytes(StandardCharsets.UTF_8));
+
+        List<String> pairs = new ArrayList<>();
+        for (int a = 0; a < rects.length; a++) {
+            for (int b = 0; b < others.length; b++) {
+                if (Math.max(250, Math.max(rects[a][0], others[b][0])) <= Math.min(750, Math.min(rects[a][2], others[b][2]))
+                        && Math.max(250, Math.max(rects[a][1], others[b][1])) <= Math.min(750, Math.min(rects[a][3], others[b][3]))) {
+                    pairs.add("r" + a + "\tr" + b);
+                }
+            }
+        }
+        Collections.sort(pairs);
+        assertFalse(pairs.isEmpty());
+        assertEquals(pairs, joinFiles(rectangles, second, "250,250,750,750", "join.predicate=overlaps", "join.reducers=3"));
+        assertEquals(pairs, joinFiles(rectangles, second, "250,250,750,750", "join.predicate=overlaps", "join.engine=rtree",
+                "partition.mode=grid", "partition.skew=sample", "mapreduce.job.reduces=4"));
+    }
+
+    /**
+     * Joins the points with a copy of themselves, the pairs within join.distance of each other inside the window.
+     */
+    @Test
+    public void distancePredicateJoinsTwoPointSets() throws Exception {
+        createInputs();
+        List<String> pairs = new ArrayList<>();
+        for (int i = 0; i < px.length; i++) {
+            if (px[i] < 250 || px[i] > 750 || py[i] < 250 || py[i] > 750) {
+                continue;
+            }
+            for (int j = 0; j < px.length; j++) {
+                long dx = px[i] - px[j];
+                long dy = py[i] - py[j];
+                if (dx * dx + dy * dy <= 9 && px[j] >= 250 && px[j] <= 750 && py[j] >= 250 && py[j] <= 750) {
+                    pairs.add("(" + px[i] + "," + py[i] + ")\t(" + px[j] + "," + py[j] + ")");
+                }
+            }
+        }
+        Collections.sort(pairs);
+        assertFalse(pairs.isEmpty());
+        File copy = folder.newFile("Point-2.txt");
+        Files.copy(points.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        assertEquals(pairs, joinFiles(points, copy, "250,250,750,750", "join.predicate=distance", "join.distance=3", "join.reducers=3"));
+        assertEquals(pairs, joinFiles(points, copy, "250,250,750,750", "join.predicate=distance", "join.distance=3",
+                "join.engine=nested", "partition.mode=grid", "partition.skew=sample", "mapreduce.job.reduces=4"));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,183 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class SpatialIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Configuration conf = new Configuration();
+    private int[] px;
+    private int[] py;
+    private int[][] rects;
+
+    private void createInputs() {
+        Random rand = new Random(11);
+        px = new int[4000];
+        py = new int[px.length];
+        for (int i = 0; i < px.length; i++) {
+            px[i] = 1 + rand.nextInt(1000);
+            py[i] = i % 4 == 0 ? px[i] : 1 + rand.nextInt(1000);
+        }
+        rects = new int[1200][];
+        for (int i = 0; i < rects.length; i++) {
+            int x = 1 + rand.nextInt(990);
+            int y = 1 + rand.nextInt(980);
+            rects[i] = new int[]{x, y, x + 1 + rand.nextInt(7), y + 1 + rand.nextInt(20)};
+        }
+    }
+
+    /**
+     * Writes the points and rectangles of indexes [from, to) to new files.
+     */
+    private Path writePoints(String name, int from, int to) throws Exception {
+        StringBuilder lines = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            lines.append(px[i]).append(',').append(py[i]).append('\n');
+        }
+        File file = folder.newFile(name);
+        Files.write(file.toPath(), lines.toString().getBytes(StandardCharsets.UTF_8));
+        return path(file);
+    }
+
+    private Path writeRectangles(String name, int from, int to) throws Exception {
+        StringBuilder lines = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            lines.append('r').append(i).append(',').append(rects[i][0]).append(',').append(rects[i][1]).append(',')
+                    .append(rects[i][3] - rects[i][1]).append(',').append(rects[i][2] - rects[i][0]).append('\n');
+        }
+        File file = folder.newFile(name);
+        Files.write(file.toPath(), lines.toString().getBytes(StandardCharsets.UTF_8));
+        return path(file);
+    }
+
+    private static Path path(File file) {
+        return new Path(file.toURI().toString());
+    }
+
+    private List<String> bruteForce(int points, int rectangles, int x1, int y1, int x2, int y2) {
+        List<String> pairs = new ArrayList<>();
+        for (int i = 0; i < points; i++) {
+            if (px[i] < x1 || px[i] > x2 || py[i] < y1 || py[i] > y2) {
+                continue;
+            }
+            for (int r = 0; r < rectangles; r++) {
+                if (px[i] >= rects[r][0] && px[i] <= rects[r][2] && py[i] >= rects[r][1] && py[i] <= rects[r][3]) {
+                    pairs.add("r" + r + "\t(" + px[i] + "," + py[i] + ")");
+                }
+            }
+        }
+        Collections.sort(pairs);
+        return pairs;
+    }
+
+    private List<String> readOutput(File output) throws Exception {
+        List<String> lines = new ArrayList<>();
+        File[] parts = output.listFiles((dir, name) -> name.startsWith("part-"));
+        assertNotNull(parts);
+        for (File part : parts) {
+            lines.addAll(Files.readAllLines(part.toPath(), StandardCharsets.UTF_8));
+        }
+        Collections.sort(lines);
+        return lines;
+    }
+
+    private List<String> query(Path index, String window) throws Exception {
+        File output = new File(folder.getRoot(), "query");
+        assertTrue(SpatialIndex.query(conf, index, path(output), window));
+        return readOutput(output);
+    }
+
+    @Test
+    public void queriesOfTheIndexMatchTheJoin() throws Exception {
+        createInputs();
+        File indexDir = new File(folder.getRoot(), "index");
+        Path index = path(indexDir);
+        conf.setInt("join.reducers", 2);
+        SpatialIndex.build(conf, writePoints("Point.txt", 0, px.length), writeRectangles("Rectangle.txt", 0, rects.length), index);
+
+        List<String> cells = SpatialIndex.readGlobalIndex(conf, index);
+        assertFalse(cells.isEmpty());
+        long indexedPoints = 0;
+        for (String cell : cells) {
+            assertTrue(new File(indexDir, SpatialIndex.CELL_PREFIX + cell.split(",")[0]).isFile());
+            indexedPoints += Long.parseLong(cell.split(",")[6]);
+        }
+        assertEquals(px.length, indexedPoints);
+
+        List<String> expected = bruteForce(px.length, rects.length, 250, 250, 750, 750);
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, query(index, "250,250,750,750"));
+        assertEquals(bruteForce(px.length, rects.length, 1, 1, 1000, 1000), query(index, "1,1,1000,1000"));
+        assertEquals(bruteForce(px.length, rects.length, 400, 400, 400, 1000), query(index, "400,400,400,1000"));
+    }
+
+    @Test
+    public void appendedBatchesAreMergedIntoTheOutput() throws Exception {
+        createInputs();
+        Path index = path(new File(folder.getRoot(), "index"));
+        SpatialIndex.build(conf, writePoints("Point.txt", 0, 3000), writeRectangles("Rectangle.txt", 0, 900), index);
+        File output = new File(folder.getRoot(), "output");
+        assertTrue(SpatialIndex.query(conf, index, path(output), "250,250,750,750"));
+        assertEquals(bruteForce(3000, 900, 250, 250, 750, 750), readOutput(output));
+
+        // New points only, then new points and rectangles
+        SpatialIndex.update(conf, index, path(output), "250,250,750,750", writePoints("Point-1.txt", 3000, 3500), null);
+        assertEquals(bruteForce(3500, 900, 250, 250, 750, 750), readOutput(output));
+        SpatialIndex.update(conf, index, path(output), "250,250,750,750",
+                writePoints("Point-2.txt", 3500, px.length), writeRectangles("Rectangle-2.txt", 900, rects.length));
+        assertEquals(bruteForce(px.length, rects.length, 250, 250, 750, 750), readOutput(output));
+        assertEquals(bruteForce(px.length, rects.length, 1, 1, 1000, 1000), query(index, "1,1,1000,1000"));
+
+        // Aggregates of the first batch, then merged with those of the second
+        Configuration counts = new Configuration(conf);
+        counts.set("output.mode", "count-mbr");
+        Path emptyIndex = path(new File(folder.getRoot(), "counted"));
+        SpatialIndex.build(counts, writePoints("Empty-points.txt", 0, 0), writeRectangles("Empty-rectangles.txt", 0, 0), emptyIndex);
+        File aggregated = new File(folder.getRoot(), "aggregated");
+        SpatialIndex.update(counts, emptyIndex, path(aggregated), "250,250,750,750",
+                path(new File(folder.getRoot(), "Point.txt")), path(new File(folder.getRoot(), "Rectangle.txt")));
+        SpatialIndex.update(counts, emptyIndex, path(aggregated), "250,250,750,750",
+                path(new File(folder.getRoot(), "Point-1.txt")), path(new File(folder.getRoot(), "Rectangle-2.txt")));
+
+        Map<Integer, int[]> expected = new TreeMap<>();
+        for (int i = 0; i < 3500; i++) {
+            if (px[i] < 250 || px[i] > 750 || py[i] < 250 || py[i] > 750) {
+                continue;
+            }
+            for (int r = 0; r < rects.length; r++) {
+                if (px[i] >= rects[r][0] && px[i] <= rects[r][2] && py[i] >= rects[r][1] && py[i] <= rects[r][3]) {
+                    int[] aggregate = expected.computeIfAbsent(r, k -> new int[]{0, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE});
+                    aggregate[0]++;
+                    aggregate[1] = Math.min(aggregate[1], px[i]);
+                    aggregate[2] = Math.min(aggregate[2], py[i]);
+                    aggregate[3] = Math.max(aggregate[3], px[i]);
+                    aggregate[4] = Math.max(aggregate[4], py[i]);
+                }
+            }
+        }
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<Integer, int[]> entry : expected.entrySet()) {
+            int[] a = entry.getValue();
+            lines.add("r" + entry.getKey() + "\t" + a[0] + ",(" + a[1] + "," + a[2] + "),(" + a[3] + "," + a[4] + ")");
+        }
+        Collections.sort(lines);
+        assertFalse(lines.isEmpty());
+        assertEquals(lines, readOutput(aggregated));
+    }
+}
@@ -0,0 +1,70 @@
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableComparator;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+
+import static org.junit.Assert.*;
+
+public class SpatialRecordTest {
+
+    private static byte[] serialize(SpatialRecord record) throws Exception {
+        DataOutputBuffer out = new DataOutputBuffer();
+        record.write(out);
+        byte[] bytes = new byte[out.getLength()];
+        System.arraycopy(out.getData(), 0, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    @Test
+    public void roundTripsFixedWidthRecords() throws Exception {
+        SpatialRecord point = new SpatialRecord();
+        point.setPoint(12, -3);
+        SpatialRecord rectangle = new SpatialRecord();
+        rectangle.setRectangle(42, 1, 2, 8, 22);
+
+        assertEquals(9, serialize(point).length);
+        assertEquals(21, serialize(rectangle).length);
+
+        SpatialRecord copy = new SpatialRecord();
+        copy.readFields(new DataInputStream(new ByteArrayInputStream(serialize(rectangle))));
+        assertEquals(rectangle, copy);
+        assertEquals("r42,1,2,8,22", copy.toString());
+        copy.readFields(new DataInputStream(new ByteArrayInputStream(serialize(point))));
+        assertEquals("(12,-3)", copy.toString());
+        assertEquals(42, SpatialRecord.parseRectangleId("r42"));
+    }
+
+    @Test
+    public void rawComparatorAgreesWithCompareTo() throws Exception {
+        SpatialRecord[] records = new SpatialRecord[8];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = new SpatialRecord();
+        }
+        records[0].setPoint(5, 5);
+        records[1].setPoint(5, 6);
+        records[2].setPoint(-1, 9);
+        records[3].setRectangle(1, 5, 5, 9, 9);
+        records[4].setRectangle(0, 5, 5, 9, 9);
+        records[5].setRectangle(7, 4, 8, 6, 9);
+        records[6].setBuildPoint(5, 5);
+        records[7].setProbeRectangle(3, 1, 1, 2, 2);
+
+        WritableComparator comparator = WritableComparator.get(SpatialRecord.class);
+        assertTrue(comparator instanceof SpatialRecord.Comparator);
+        for (SpatialRecord a : records) {
+            for (SpatialRecord b : records) {
+                byte[] ba = serialize(a);
+                byte[] bb = serialize(b);
+                assertEquals(Integer.signum(a.compareTo(b)), Integer.signum(comparator.compare(ba, 0, ba.length, bb, 0, bb.length)));
+            }
+        }
+        assertTrue(records[3].compareTo(records[2]) < 0);
+        // Build records, rectangles or points, come before every probe record
+        assertTrue(records[6].compareTo(records[2]) < 0);
+        assertTrue(records[6].compareTo(records[7]) < 0);
+        assertFalse(records[7].isPoint() || records[7].isBuild());
+        assertTrue(records[6].isPoint() && records[6].isBuild());
+    }
+}
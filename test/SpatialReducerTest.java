@@ -0,0 +1,285 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SpatialReducerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Splits a 100x100 space into 400 cells of 5x5 and replicates every rectangle to each cell it touches,
+     * and every point to each cell whose closed box contains it (four cells for a point on a cell corner).
+     * The reference point test must still report every matching pair exactly once, also when the rectangles of
+     * a cell spill to disk.
+     */
+    @Test
+    public void referencePointReportsEachPairOnce() throws Exception {
+        List<String> blocks = DivideIntoBlocks.createBlocks(100, 5);
+        Partitioning partitioning = Partitioning.fromBlocks(blocks);
+        int cells = blocks.size();
+
+        Random rand = new Random(7);
+        int[] px = new int[3000];
+        int[] py = new int[px.length];
+        for (int i = 0; i < px.length; i++) {
+            // Put a third of the points on cell borders and corners.
+            px[i] = i % 3 == 0 ? rand.nextInt(21) * 5 : rand.nextInt(101);
+            py[i] = i % 3 == 0 ? rand.nextInt(21) * 5 : rand.nextInt(101);
+        }
+        int[][] rects = new int[300][];
+        for (int i = 0; i < rects.length; i++) {
+            int x = rand.nextInt(90);
+            int y = rand.nextInt(90);
+            rects[i] = new int[]{x, y, x + rand.nextInt(30), y + rand.nextInt(30)};
+        }
+
+        LocalJoin.PointBuffer[] cellPoints = new LocalJoin.PointBuffer[cells];
+        LocalJoin.RectangleBuffer[] cellRectangles = new LocalJoin.RectangleBuffer[cells];
+        for (int c = 0; c < cells; c++) {
+            cellPoints[c] = new LocalJoin.PointBuffer();
+            cellRectangles[c] = new LocalJoin.RectangleBuffer();
+            String[] gridDef = blocks.get(c).split(",");
+            int gx1 = Integer.parseInt(gridDef[1]);
+            int gy1 = Integer.parseInt(gridDef[2]);
+            int gx2 = Integer.parseInt(gridDef[3]);
+            int gy2 = Integer.parseInt(gridDef[4]);
+            for (int i = 0; i < px.length; i++) {
+                if (px[i] >= gx1 && px[i] <= gx2 && py[i] >= gy1 && py[i] <= gy2) {
+                    cellPoints[c].add(px[i], py[i]);
+                }
+            }
+            for (int i = 0; i < rects.length; i++) {
+                if (rects[i][2] >= gx1 && rects[i][0] <= gx2 && rects[i][3] >= gy1 && rects[i][1] <= gy2) {
+                    cellRectangles[c].add(i, rects[i][0], rects[i][1], rects[i][2], rects[i][3]);
+                }
+            }
+        }
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < px.length; i++) {
+            for (int r = 0; r < rects.length; r++) {
+                if (px[i] >= rects[r][0] && px[i] <= rects[r][2] && py[i] >= rects[r][1] && py[i] <= rects[r][3]) {
+                    expected.add("r" + r + "(" + px[i] + "," + py[i] + ")#" + i);
+                }
+            }
+        }
+
+        boolean spilled = false;
+        for (long heapBytes : new long[]{SpatialReducer.DEFAULT_RECTANGLE_HEAP_BYTES, 100}) {
+            for (String engine : new String[]{"nested", "sweep", "rtree"}) {
+                List<String> actual = new ArrayList<>();
+                try (StreamingJoin join = new StreamingJoin(engine, partitioning, new RectangleStore(heapBytes, folder.getRoot()))) {
+                    for (int c = 0; c < cells; c++) {
+                        joinSorted(join, c, cellPoints[c], cellRectangles[c], actual);
+                        spilled |= join.getRectangles().isSpilled();
+                    }
+                }
+                assertEquals(engine + " " + heapBytes, sortedWithoutIndex(expected), sorted(actual));
+            }
+        }
+        assertTrue(spilled);
+    }
+
+    /**
+     * Replicates both rectangle datasets of an overlap join to every cell they touch: each intersecting pair must be
+     * reported once, by the cell holding the lower corner of the intersection, with every engine and a spilled store.
+     */
+    @Test
+    public void rectangleOverlapsAreReportedOnce() throws Exception {
+        List<String> blocks = DivideIntoBlocks.createBlocks(100, 5);
+        Partitioning partitioning = Partitioning.fromBlocks(blocks);
+        Random rand = new Random(5);
+        int[][][] sides = new int[2][200][];
+        for (int[][] side : sides) {
+            for (int i = 0; i < side.length; i++) {
+                // Put a third of the rectangles on cell borders.
+                int x = i % 3 == 0 ? rand.nextInt(15) * 5 : rand.nextInt(75);
+                int y = i % 3 == 0 ? rand.nextInt(15) * 5 : rand.nextInt(75);
+                side[i] = new int[]{x, y, x + rand.nextInt(25), y + rand.nextInt(25)};
+            }
+        }
+        List<String> expected = new ArrayList<>();
+        for (int a = 0; a < sides[0].length; a++) {
+            for (int b = 0; b < sides[1].length; b++) {
+                int[] p = sides[0][a];
+                int[] q = sides[1][b];
+                if (p[0] <= q[2] && p[2] >= q[0] && p[1] <= q[3] && p[3] >= q[1]) {
+                    expected.add("r" + a + "r" + b);
+                }
+            }
+        }
+
+        List<List<SpatialRecord>> cells = new ArrayList<>();
+        int[] overlapping = new int[blocks.size()];
+        for (int c = 0; c < blocks.size(); c++) {
+            cells.add(new ArrayList<>());
+        }
+        for (int side = 0; side < 2; side++) {
+            for (int i = 0; i < sides[side].length; i++) {
+                int[] r = sides[side][i];
+                for (int k = 0, count = partitioning.overlapping(r[0], r[1], r[2], r[3], overlapping); k < count; k++) {
+                    SpatialRecord record = new SpatialRecord();
+                    if (side == 0) {
+                        record.setProbeRectangle(i, r[0], r[1], r[2], r[3]);
+                    } else {
+                        record.setRectangle(i, r[0], r[1], r[2], r[3]);
+                    }
+                    cells.get(overlapping[k]).add(record);
+                }
+            }
+        }
+        assertEquals(sorted(expected), joinAll(partitioning, JoinPredicate.OVERLAPS, 0, cells));
+    }
+
+    /**
+     * Sends the build points of a distance join to every cell within the distance and the probe points to every cell
+     * whose closed box contains them: each pair within the distance must be reported once.
+     */
+    @Test
+    public void distancePairsAreReportedOnce() throws Exception {
+        List<String> blocks = DivideIntoBlocks.createBlocks(100, 5);
+        Partitioning partitioning = Partitioning.fromBlocks(blocks);
+        Random rand = new Random(3);
+        int distance = 4;
+        int[][][] sides = new int[2][1500][];
+        for (int[][] side : sides) {
+            for (int i = 0; i < side.length; i++) {
+                side[i] = i % 3 == 0
+                        ? new int[]{rand.nextInt(21) * 5, rand.nextInt(21) * 5}
+                        : new int[]{rand.nextInt(101), rand.nextInt(101)};
+            }
+        }
+        List<String> expected = new ArrayList<>();
+        for (int[] p : sides[0]) {
+            for (int[] q : sides[1]) {
+                int dx = p[0] - q[0];
+                int dy = p[1] - q[1];
+                if (dx * dx + dy * dy <= distance * distance) {
+                    expected.add("(" + p[0] + "," + p[1] + ")(" + q[0] + "," + q[1] + ")");
+                }
+            }
+        }
+
+        List<List<SpatialRecord>> cells = new ArrayList<>();
+        int[] overlapping = new int[blocks.size()];
+        for (int c = 0; c < blocks.size(); c++) {
+            cells.add(new ArrayList<>());
+        }
+        for (int side = 0; side < 2; side++) {
+            int reach = side == 0 ? 0 : distance;
+            for (int[] p : sides[side]) {
+                for (int k = 0, count = partitioning.overlapping(p[0] - reach, p[1] - reach, p[0] + reach, p[1] + reach, overlapping); k < count; k++) {
+                    SpatialRecord record = new SpatialRecord();
+                    if (side == 0) {
+                        record.setPoint(p[0], p[1]);
+                    } else {
+                        record.setBuildPoint(p[0], p[1]);
+                    }
+                    cells.get(overlapping[k]).add(record);
+                }
+            }
+        }
+        assertFalse(expected.isEmpty());
+        assertEquals(sorted(expected), joinAll(partitioning, JoinPredicate.DISTANCE, distance, cells));
+    }
+
+    /**
+     * Joins every cell with each engine, on the heap and spilled, and checks that they all report the same pairs.
+     * @return The pairs reported by the first engine.
+     */
+    private List<String> joinAll(Partitioning partitioning, JoinPredicate predicate, int distance, List<List<SpatialRecord>> cells) throws Exception {
+        List<String> first = null;
+        boolean spilled = false;
+        for (long heapBytes : new long[]{SpatialReducer.DEFAULT_RECTANGLE_HEAP_BYTES, 100}) {
+            for (String engine : new String[]{"nested", "sweep", "rtree"}) {
+                List<String> actual = new ArrayList<>();
+                try (StreamingJoin join = new StreamingJoin(engine, partitioning, new RectangleStore(heapBytes, folder.getRoot()))) {
+                    join.setPredicate(predicate, distance);
+                    for (int c = 0; c < cells.size(); c++) {
+                        joinRecords(join, c, cells.get(c), actual);
+                        spilled |= join.getRectangles().isSpilled();
+                    }
+                }
+                if (first == null) {
+                    first = sorted(actual);
+                }
+                assertEquals(engine + " " + heapBytes, first, sorted(actual));
+            }
+        }
+        assertTrue(spilled);
+        return first;
+    }
+
+    /**
+     * Feeds the records of a cell to the streaming join in shuffle order and records "rA" "rB" for a pair of
+     * rectangles and "(x,y)" "(x,y)" for a pair of points, the probe record first.
+     */
+    private static void joinRecords(StreamingJoin join, int cell, List<SpatialRecord> records, final List<String> actual) throws Exception {
+        Collections.sort(records);
+        join.startCell(cell);
+        final RectangleStore store = join.getRectangles();
+        for (final SpatialRecord record : records) {
+            if (record.isBuild()) {
+                join.addRectangle(record.getId(), record.getX1(), record.getY1(), record.getX2(), record.getY2());
+            } else if (record.isPoint()) {
+                join.probe(record.getX1(), record.getY1(),
+                        (point, rectangle) -> actual.add(record + "(" + store.x1(rectangle) + "," + store.y1(rectangle) + ")"));
+            } else {
+                join.probeRectangle(record.getX1(), record.getY1(), record.getX2(), record.getY2(),
+                        (probe, rectangle) -> actual.add("r" + record.getId() + "r" + store.id(rectangle)));
+            }
+        }
+    }
+
+    /**
+     * Feeds a cell to the streaming join in shuffle order: rectangles sorted like SpatialRecords, then points sorted by x.
+     */
+    private static void joinSorted(StreamingJoin join, int cell, LocalJoin.PointBuffer points,
+                                   final LocalJoin.RectangleBuffer rectangles, final List<String> actual) throws Exception {
+        List<SpatialRecord> records = new ArrayList<>();
+        for (int r = 0; r < rectangles.size; r++) {
+            SpatialRecord record = new SpatialRecord();
+            record.setRectangle(rectangles.id[r], rectangles.x1[r], rectangles.y1[r], rectangles.x2[r], rectangles.y2[r]);
+            records.add(record);
+        }
+        for (int p = 0; p < points.size; p++) {
+            SpatialRecord record = new SpatialRecord();
+            record.setPoint(points.x[p], points.y[p]);
+            records.add(record);
+        }
+        Collections.sort(records);
+
+        join.startCell(cell);
+        final RectangleStore store = join.getRectangles();
+        for (final SpatialRecord record : records) {
+            if (!record.isPoint()) {
+                join.addRectangle(record.getId(), record.getX1(), record.getY1(), record.getX2(), record.getY2());
+                continue;
+            }
+            join.probe(record.getX1(), record.getY1(),
+                    (point, rectangle) -> actual.add("r" + store.id(rectangle) + record));
+        }
+    }
+
+    private static List<String> sortedWithoutIndex(List<String> pairs) {
+        List<String> result = new ArrayList<>();
+        for (String pair : pairs) {
+            result.add(pair.substring(0, pair.indexOf('#')));
+        }
+        return sorted(result);
+    }
+
+    private static List<String> sorted(List<String> pairs) {
+        List<String> result = new ArrayList<>(pairs);
+        Collections.sort(result);
+        return result;
+    }
+}
@@ -0,0 +1,97 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class StreamingJoinTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Joins the points and rectangles as the single cell of a partitioning, fed in shuffle order.
+     * @return The "rectangle id:(x,y)" matches, sorted.
+     */
+    private List<String> run(String engine, LocalJoin.PointBuffer points, LocalJoin.RectangleBuffer rectangles) throws Exception {
+        Partitioning partitioning = Partitioning.fromBlocks(Collections.singletonList("g1,-1,-1,100000,100000"));
+        long[] rectangleOrder = new long[rectangles.size];
+        for (int r = 0; r < rectangles.size; r++) {
+            rectangleOrder[r] = ((long) rectangles.x1[r] << 32) | r;
+        }
+        Arrays.sort(rectangleOrder);
+        long[] pointOrder = new long[points.size];
+        for (int p = 0; p < points.size; p++) {
+            pointOrder[p] = ((long) points.x[p] << 32) | p;
+        }
+        Arrays.sort(pointOrder);
+
+        final List<String> matches = new ArrayList<>();
+        try (StreamingJoin join = new StreamingJoin(engine, partitioning, new RectangleStore(1L << 24, folder.getRoot()))) {
+            join.startCell(0);
+            for (long key : rectangleOrder) {
+                int r = (int) key;
+                join.addRectangle(rectangles.id[r], rectangles.x1[r], rectangles.y1[r], rectangles.x2[r], rectangles.y2[r]);
+            }
+            final RectangleStore store = join.getRectangles();
+            for (long key : pointOrder) {
+                final int p = (int) key;
+                join.probe(points.x[p], points.y[p], (point, rectangle) -> matches.add(store.id(rectangle) + ":(" + points.x[p] + "," + points.y[p] + ")"));
+            }
+        }
+        Collections.sort(matches);
+        return matches;
+    }
+
+    @Test
+    public void sweepAndRtreeMatchNestedLoop() throws Exception {
+        Random rand = new Random(42);
+        LocalJoin.PointBuffer points = new LocalJoin.PointBuffer();
+        LocalJoin.RectangleBuffer rectangles = new LocalJoin.RectangleBuffer();
+        for (int i = 0; i < 5000; i++) {
+            points.add(rand.nextInt(1000), rand.nextInt(1000));
+        }
+        for (int i = 0; i < 2000; i++) {
+            int x = rand.nextInt(1000);
+            int y = rand.nextInt(1000);
+            rectangles.add(i, x, y, x + rand.nextInt(40), y + rand.nextInt(40));
+        }
+
+        List<String> expected = run("nested", points, rectangles);
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, run("sweep", points, rectangles));
+        assertEquals(expected, run("rtree", points, rectangles));
+    }
+
+    @Test
+    public void rtreeHandlesTinyAndEmptyCells() throws Exception {
+        LocalJoin.PointBuffer points = new LocalJoin.PointBuffer();
+        LocalJoin.RectangleBuffer rectangles = new LocalJoin.RectangleBuffer();
+        points.add(3, 3);
+        assertTrue(run("rtree", points, rectangles).isEmpty());
+
+        rectangles.add(0, 0, 0, 5, 5);
+        assertEquals(1, run("rtree", points, rectangles).size());
+    }
+
+    @Test
+    public void enginesReportBoundaryAndDegenerateMatches() throws Exception {
+        LocalJoin.PointBuffer points = new LocalJoin.PointBuffer();
+        LocalJoin.RectangleBuffer rectangles = new LocalJoin.RectangleBuffer();
+        points.add(5, 5);
+        points.add(10, 10);
+        points.add(11, 10);
+        rectangles.add(0, 5, 5, 10, 10);
+        rectangles.add(1, 10, 10, 10, 10);
+
+        assertEquals(run("nested", points, rectangles), run("sweep", points, rectangles));
+        assertEquals(3, run("sweep", points, rectangles).size());
+        assertEquals(3, run("rtree", points, rectangles).size());
+    }
+}
@@ -0,0 +1,48 @@
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class WindowIndexTest {
+
+    @Test
+    public void findsTheSameWindowsAsAScan() {
+        Random rand = new Random(11);
+        StringBuilder windows = new StringBuilder();
+        int[][] boxes = new int[40][];
+        for (int w = 0; w < boxes.length; w++) {
+            int x = rand.nextInt(900);
+            int y = rand.nextInt(900);
+            boxes[w] = new int[]{x, y, x + rand.nextInt(200), y + rand.nextInt(200)};
+            windows.append(boxes[w][0]).append(',').append(boxes[w][1]).append(',')
+                    .append(boxes[w][2]).append(',').append(boxes[w][3]).append(';');
+        }
+        WindowIndex index = WindowIndex.parse(windows.toString());
+        assertEquals(40, index.size());
+        assertEquals(1, index.id(0));
+
+        int[] found = new int[index.size()];
+        for (int i = 0; i < 20000; i++) {
+            int x1 = rand.nextInt(1200) - 100;
+            int y1 = rand.nextInt(1200) - 100;
+            int x2 = x1 + (i % 2 == 0 ? 0 : rand.nextInt(50));
+            int y2 = y1 + (i % 2 == 0 ? 0 : rand.nextInt(50));
+            int count = i % 2 == 0 ? index.containing(x1, y1, found) : index.intersecting(x1, y1, x2, y2, found);
+            int expected = 0;
+            for (int w = 0; w < boxes.length; w++) {
+                if (x2 >= boxes[w][0] && x1 <= boxes[w][2] && y2 >= boxes[w][1] && y1 <= boxes[w][3]) {
+                    assertTrue(expected < count);
+                    assertEquals(w, found[expected++]);
+                }
+            }
+            assertEquals(expected, count);
+        }
+    }
+
+    @Test
+    public void boundingBoxCoversEveryWindow() {
+        WindowIndex index = WindowIndex.parse("10,20,30,40; 5,25,15,60;");
+        assertEquals("5,20,30,60", index.boundingBox());
+    }
+}
@@ -0,0 +1,80 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.LineRecordReader;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class WindowInputFormatTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsOnlyBlocksInsideTheWindow() throws Exception {
+        File points = folder.newFile("Point.txt");
+        List<String> expected = new ArrayList<>();
+        Random rand = new Random(11);
+        try (PrintWriter writer = new PrintWriter(points)) {
+            for (int i = 0; i < 20000; i++) {
+                int x = rand.nextInt(10000) + 1;
+                int y = rand.nextInt(10000) + 1;
+                writer.println(x + "," + y);
+                if (x >= 250 && x <= 750 && y >= 250 && y <= 750) {
+                    expected.add(x + "," + y);
+                }
+            }
+        }
+        Configuration conf = new Configuration();
+        Path layout = new Path(folder.getRoot().toURI().toString(), "points");
+        assertEquals(40, SpatialLayout.write(conf, false, new Path(points.toURI().toString()), layout, 500));
+
+        conf.set("window", "250,250,750,750");
+        Job job = Job.getInstance(conf);
+        FileInputFormat.addInputPath(job, layout);
+        List<InputSplit> splits = new WindowInputFormat().getSplits(job);
+
+        long bytesRead = 0;
+        List<String> inWindow = new ArrayList<>();
+        int linesRead = 0;
+        for (InputSplit split : splits) {
+            bytesRead += split.getLength();
+            LineRecordReader reader = new LineRecordReader();
+            reader.initialize(split, new TaskAttemptContextImpl(job.getConfiguration(), new TaskAttemptID()));
+            while (reader.nextKeyValue()) {
+                linesRead++;
+                String line = reader.getCurrentValue().toString();
+                String[] parts = line.split(",");
+                int x = Integer.parseInt(parts[0]);
+                int y = Integer.parseInt(parts[1]);
+                if (x >= 250 && x <= 750 && y >= 250 && y <= 750) {
+                    inWindow.add(line);
+                }
+            }
+            reader.close();
+        }
+
+        Collections.sort(expected);
+        Collections.sort(inWindow);
+        assertEquals(expected, inWindow);
+        // Whole blocks only: no line lost or read twice at block boundaries.
+        assertEquals(0, linesRead % 500);
+        assertTrue("read " + bytesRead + " bytes", bytesRead < points.length() / 4);
+        assertEquals(SpatialLayout.DATA_FILE, ((FileSplit) splits.get(0)).getPath().getName());
+    }
+}